@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.benchmark.BenchmarkTraces;
+import cn.nekocode.tracehelper.benchmark.ThroughputCounters;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The disk write of the trace data received by {@link StudioProfilerHack#onSuccess(byte[], com.android.ddmlib.Client)},
+ * as is or compressed by the block gzip writer. It's in the main package to reach the package-private write path.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SaveTraceBenchmark {
+    @Param({"10", "100"})
+    public int sizeMb;
+
+    @Param("")
+    public String traceFile;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private byte[] mData;
+    private long mRecordCount;
+    private File mOutputFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        File file = BenchmarkTraces.resolve(traceFile, sizeMb);
+        mData = Files.readAllBytes(file.toPath());
+        try (TraceFile trace = TraceFile.open(file)) {
+            mRecordCount = trace.getRecordCount();
+        }
+        mOutputFile = BenchmarkTraces.outputFile(compressed ? ".trace.gz" : ".trace");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mOutputFile.delete();
+    }
+
+    @Benchmark
+    public long save(ThroughputCounters counters) throws IOException {
+        StudioProfilerHack.writeTraceData(mData, mOutputFile, compressed);
+        counters.add(mData.length, mRecordCount);
+        return mOutputFile.length();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.benchmark;
+
+import cn.nekocode.tracehelper.trace.CallTree;
+import cn.nekocode.tracehelper.trace.MethodSummary;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-method aggregation and call tree building, which every report is derived from
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AggregateBenchmark {
+    @Param({"10", "100"})
+    public int sizeMb;
+
+    @Param("")
+    public String traceFile;
+
+    private TraceFile mTrace;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        File file = BenchmarkTraces.resolve(traceFile, sizeMb);
+        mTrace = TraceFile.open(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mTrace.close();
+    }
+
+    @Benchmark
+    public MethodSummary summary(ThroughputCounters counters) throws IOException {
+        MethodSummary summary = MethodSummary.build(mTrace, false);
+        counters.add(mTrace.getFileSize(), mTrace.getRecordCount());
+        return summary;
+    }
+
+    @Benchmark
+    public CallTree callTree(ThroughputCounters counters) throws IOException {
+        CallTree tree = CallTree.build(mTrace, false, ForkJoinPool.commonPool());
+        counters.add(mTrace.getFileSize(), mTrace.getRecordCount());
+        return tree;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Resolves the trace file of a benchmark, which is either a recorded trace or a cached synthetic trace
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class BenchmarkTraces {
+    private static final long SEED = 20171222;
+
+
+    /**
+     * @param recordedFile the path of a recorded trace, or empty to use a synthetic trace
+     * @param sizeMb       the size of the synthetic trace
+     */
+    public static File resolve(String recordedFile, int sizeMb) throws IOException {
+        if (!recordedFile.isEmpty()) {
+            File file = new File(recordedFile);
+            if (!file.isFile()) {
+                throw new IOException("Trace file not found: " + recordedFile);
+            }
+            return file;
+        }
+
+        // The generator is deterministic, so a synthetic trace is generated only once
+        File dir = new File(System.getProperty("java.io.tmpdir"), "method-tracer-benchmark");
+        File file = new File(dir, String.format("synthetic-%d-%dmb.trace", SEED, sizeMb));
+        if (!file.isFile()) {
+            dir.mkdirs();
+            System.out.println("Generating " + file + "...");
+            new TraceGenerator(SEED).generate(file, sizeMb * 1024L * 1024L);
+        }
+        return file;
+    }
+
+    /**
+     * @return a temp file for the output of a benchmark, deleted on exit
+     */
+    public static File outputFile(String suffix) throws IOException {
+        File file = File.createTempFile("benchmark", suffix);
+        file.deleteOnExit();
+        return file;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.benchmark;
+
+import cn.nekocode.tracehelper.trace.RecordCursor;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the text header with the method table, and of the records
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class DecodeBenchmark {
+    /**
+     * The size of the synthetic trace in MB
+     */
+    @Param({"10", "100"})
+    public int sizeMb;
+
+    /**
+     * The path of a recorded trace used instead of the synthetic one
+     */
+    @Param("")
+    public String traceFile;
+
+    private File mFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mFile = BenchmarkTraces.resolve(traceFile, sizeMb);
+    }
+
+    @Benchmark
+    public int header(ThroughputCounters counters) throws IOException {
+        try (TraceFile trace = TraceFile.open(mFile)) {
+            counters.add(trace.getDataOffset(), 0);
+            return trace.getMethods().size();
+        }
+    }
+
+    @Benchmark
+    public long records(ThroughputCounters counters) throws IOException {
+        try (TraceFile trace = TraceFile.open(mFile)) {
+            RecordCursor cursor = trace.records();
+            long checksum = 0;
+            while (cursor.next()) {
+                checksum += cursor.methodValue() + cursor.wallTime();
+            }
+            counters.add(trace.getFileSize(), trace.getRecordCount());
+            return checksum;
+        }
+    }
+}
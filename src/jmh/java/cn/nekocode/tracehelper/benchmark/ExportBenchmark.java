@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.benchmark;
+
+import cn.nekocode.tracehelper.report.ChromeTraceWriter;
+import cn.nekocode.tracehelper.report.FlameGraphWriter;
+import cn.nekocode.tracehelper.report.SummaryWriter;
+import cn.nekocode.tracehelper.trace.CallTree;
+import cn.nekocode.tracehelper.trace.MethodSummary;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing of the export formats. The call tree and the summary are built once per trial,
+ * so only the writing is measured, except for the chrome format which is streamed from the records.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ExportBenchmark {
+    private static final int SUMMARY_TOP = 50;
+
+    @Param({"10", "100"})
+    public int sizeMb;
+
+    @Param("")
+    public String traceFile;
+
+    @Param({"folded", "svg", "chrome", "summary"})
+    public String format;
+
+    private TraceFile mTrace;
+    private FlameGraphWriter mFlameGraph;
+    private SummaryWriter mSummary;
+    private File mOutputFile;
+
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        mTrace = TraceFile.open(BenchmarkTraces.resolve(traceFile, sizeMb));
+        mOutputFile = BenchmarkTraces.outputFile("." + format);
+        switch (format) {
+            case "folded":
+            case "svg":
+                mFlameGraph = new FlameGraphWriter(mTrace, CallTree.build(mTrace, false, ForkJoinPool.commonPool()));
+                break;
+            case "summary":
+                mSummary = new SummaryWriter(MethodSummary.build(mTrace, false), SUMMARY_TOP);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mTrace.close();
+        mOutputFile.delete();
+    }
+
+    @Benchmark
+    public long export(ThroughputCounters counters) throws IOException {
+        switch (format) {
+            case "folded":
+                mFlameGraph.writeFolded(mOutputFile);
+                break;
+            case "svg":
+                mFlameGraph.writeSvg(mOutputFile);
+                break;
+            case "chrome":
+                new ChromeTraceWriter(mTrace).write(mOutputFile);
+                break;
+            case "summary":
+                mSummary.writeJson(mOutputFile);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown format: " + format);
+        }
+        // Counted against the trace for all formats, so they compare with each other
+        counters.add(mTrace.getFileSize(), mTrace.getRecordCount());
+        return mOutputFile.length();
+    }
+}
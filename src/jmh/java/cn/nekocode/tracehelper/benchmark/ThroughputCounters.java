@@ -0,0 +1,47 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extra counters reported by JMH as rates next to the benchmark score,
+ * i.e. the trace bytes and the trace records (events) processed per second
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ThroughputCounters {
+    public long bytes;
+    public long events;
+
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+        events = 0;
+    }
+
+    public void add(long bytes, long events) {
+        this.bytes += bytes;
+        this.events += events;
+    }
+}
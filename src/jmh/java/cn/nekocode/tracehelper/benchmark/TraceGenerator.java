@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.SplittableRandom;
+
+/**
+ * Generates dmtrace files with a dual clock, which look like the traces of a real app, without a device.
+ * <p>
+ * Every thread keeps its own call stack, the methods are picked with a skewed distribution
+ * so a few hot methods dominate as usual, and the threads are interleaved in scheduling bursts.
+ * The output only depends on the seed, the method count, the thread count and the size.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceGenerator {
+    private static final int MAGIC = 0x574f4c53;    // "SLOW"
+    private static final int RECORD_SIZE = 14;
+    private static final int BINARY_HEADER_SIZE = 32;
+    private static final long START_TIME = 1500000000000000L;
+    private static final int MAX_DEPTH = 48;
+    private static final String[] PACKAGES = {
+            "android.view", "android.widget", "android.os", "androidx.recyclerview.widget",
+            "com.example.app.feed", "com.example.app.net", "com.example.app.image", "com.example.app.db",
+            "kotlin.collections", "okhttp3.internal.http", "java.util", "java.lang",
+    };
+    private static final String[] TYPES = {"I", "J", "Z", "Ljava/lang/String;", "Landroid/view/View;", "[B"};
+
+    private final long mSeed;
+    private int mMethodCount = 20000;
+    private int mThreadCount = 16;
+
+
+    public TraceGenerator(long seed) {
+        this.mSeed = seed;
+    }
+
+    public TraceGenerator setMethodCount(int methodCount) {
+        this.mMethodCount = methodCount;
+        return this;
+    }
+
+    public TraceGenerator setThreadCount(int threadCount) {
+        this.mThreadCount = Math.max(2, threadCount);
+        return this;
+    }
+
+    /**
+     * Generate a trace of about the target size, the file is written through a temp file
+     *
+     * @return the number of records
+     */
+    public long generate(File file, long targetBytes) throws IOException {
+        final SplittableRandom random = new SplittableRandom(mSeed);
+        final byte[] header = headerOf(random, targetBytes / RECORD_SIZE);
+        final long recordCount = Math.max(0, (targetBytes - header.length) / RECORD_SIZE);
+
+        File tempFile = new File(file.getPath() + ".part");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(header));
+
+            final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            final int[][] stacks = new int[mThreadCount][MAX_DEPTH];
+            final int[] depths = new int[mThreadCount];
+            final long[] threadTimes = new long[mThreadCount];
+            long wallTime = 0;
+            int thread = 0;
+            int burst = 0;
+
+            for (long i = 0; i < recordCount; i++) {
+                if (burst-- <= 0) {
+                    // The main thread and the render thread run most of the time
+                    double r = random.nextDouble();
+                    thread = r < 0.5 ? 0 : r < 0.7 ? 1 : 2 + random.nextInt(mThreadCount - 2);
+                    burst = 1 + random.nextInt(200);
+                }
+
+                int elapsed = 1 + (int) (-3 * Math.log(1 - random.nextDouble()));
+                wallTime += elapsed;
+                threadTimes[thread] += random.nextInt(elapsed + 1);
+
+                // Go deeper less often on a deep stack, so the depth stays around a dozen frames
+                int depth = depths[thread];
+                int methodValue;
+                if (depth > 0 && (depth >= MAX_DEPTH || random.nextInt(MAX_DEPTH) < depth + 10)) {
+                    methodValue = stacks[thread][--depths[thread]] | 1;
+                } else {
+                    int method = methodIdOf(hotMethod(random));
+                    stacks[thread][depths[thread]++] = method;
+                    methodValue = method;
+                }
+
+                if (!buffer.hasRemaining()) {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                buffer.putShort((short) (thread + 1));
+                buffer.putInt(methodValue);
+                buffer.putInt((int) threadTimes[thread]);
+                buffer.putInt((int) wallTime);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return recordCount;
+    }
+
+    private byte[] headerOf(SplittableRandom random, long recordCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*version\n3\n")
+                .append("data-file-overflow=false\n")
+                .append("clock=dual\n")
+                .append("elapsed-time-usec=").append(recordCount * 3).append('\n')
+                .append("num-method-calls=").append(recordCount).append('\n')
+                .append("clock-call-overhead-nsec=300\n")
+                .append("vm=art\n")
+                .append("pid=12345\n");
+
+        sb.append("*threads\n");
+        sb.append("1\tmain\n");
+        sb.append("2\tRenderThread\n");
+        for (int i = 2; i < mThreadCount; i++) {
+            sb.append(i + 1).append('\t').append(i % 3 == 0 ? "OkHttp Dispatcher" : "pool-1-thread-" + (i - 1))
+                    .append('\n');
+        }
+
+        sb.append("*methods\n");
+        for (int i = 0; i < mMethodCount; i++) {
+            String pkg = PACKAGES[random.nextInt(PACKAGES.length)];
+            String className = "Class" + (i / 8);
+            sb.append(String.format("0x%08x", methodIdOf(i)))
+                    .append('\t').append(pkg).append('.').append(className)
+                    .append('\t').append(i % 8 == 0 ? "<init>" : "method" + i)
+                    .append('\t').append(descriptorOf(random))
+                    .append('\t').append(className).append(".java")
+                    .append('\t').append(1 + random.nextInt(2000))
+                    .append('\n');
+        }
+        sb.append("*end\n");
+
+        byte[] text = sb.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(text.length + BINARY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(text);
+        header.putInt(MAGIC);
+        header.putShort((short) 3);
+        header.putShort((short) BINARY_HEADER_SIZE);
+        header.putLong(START_TIME);
+        header.putShort((short) RECORD_SIZE);
+        return header.array();
+    }
+
+    private static String descriptorOf(SplittableRandom random) {
+        StringBuilder sb = new StringBuilder("(");
+        int parameters = random.nextInt(4);
+        for (int i = 0; i < parameters; i++) {
+            sb.append(TYPES[random.nextInt(TYPES.length)]);
+        }
+        return sb.append(')').append(random.nextInt(3) == 0 ? TYPES[random.nextInt(TYPES.length)] : "V").toString();
+    }
+
+    /**
+     * Pick a method index, where the lower indexes are much hotter
+     */
+    private int hotMethod(SplittableRandom random) {
+        double u = random.nextDouble();
+        return (int) (mMethodCount * u * u * u);
+    }
+
+    /**
+     * The lower 2 bits of a method value are the action
+     */
+    private static int methodIdOf(int index) {
+        return (index + 1) << 2;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Usage: TraceGenerator &lt;out-file&gt; &lt;size-MB&gt; [seed]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: TraceGenerator <out-file> <size-MB> [seed]");
+            return;
+        }
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        long records = new TraceGenerator(seed).generate(new File(args[0]), Long.parseLong(args[1]) * 1024 * 1024);
+        System.out.println(records + " records have been saved to \"" + args[0] + "\"");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.AndroidDebugBridge;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks the device list on a connection of its own to the adb server. ddmlib reports no event when the bridge
+ * gets connected or when the device list is empty, so every list reported by the adb server wakes up the
+ * {@link AdbEventWaiter waits} instead.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class AdbDeviceTracker implements Closeable {
+    private static final String TRACK_DEVICES_COMMAND = "host:track-devices";
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    static final String STATE_ONLINE = "device";
+
+    private final InetSocketAddress mAddress;
+    private final Socket mSocket = new Socket();
+    private volatile Map<String, String> mDevices;
+
+
+    AdbDeviceTracker(InetSocketAddress address) {
+        this.mAddress = address;
+    }
+
+    /**
+     * Track the devices of the adb server used by the bridge
+     */
+    static AdbDeviceTracker start() {
+        AdbDeviceTracker tracker = new AdbDeviceTracker(AndroidDebugBridge.getSocketAddress());
+        tracker.startTracking();
+        return tracker;
+    }
+
+    void startTracking() {
+        Thread thread = new Thread(this::track, "adb-device-tracker");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void track() {
+        try {
+            mSocket.connect(mAddress, CONNECT_TIMEOUT_MILLIS);
+            OutputStream out = mSocket.getOutputStream();
+            out.write(String.format("%04x%s", TRACK_DEVICES_COMMAND.length(), TRACK_DEVICES_COMMAND)
+                    .getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            DataInputStream in = new DataInputStream(mSocket.getInputStream());
+            if (!"OKAY".equals(read(in, 4))) {
+                return;
+            }
+            while (true) {
+                Map<String, String> devices = new LinkedHashMap<>();
+                for (String line : read(in, Integer.parseInt(read(in, 4), 16)).split("\n")) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 2) {
+                        devices.put(fields[0], fields[1]);
+                    }
+                }
+                mDevices = Collections.unmodifiableMap(devices);
+                AdbEventWaiter.wakeUp();
+            }
+
+        } catch (IOException | NumberFormatException ignored) {
+            // The waits still get the events of ddmlib
+        }
+    }
+
+    private static String read(DataInputStream in, int length) throws IOException {
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the latest device list reported by the adb server, as the states like "device" by serial,
+     * or null if it isn't reported yet
+     */
+    Map<String, String> getDevices() {
+        return mDevices;
+    }
+
+    boolean hasDeviceList() {
+        return mDevices != null;
+    }
+
+    @Override
+    public void close() {
+        try {
+            mSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
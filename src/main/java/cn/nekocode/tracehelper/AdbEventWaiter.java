@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.Client;
+import com.android.ddmlib.IDevice;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Wait for a condition on the bridge, devices or clients.
+ * The condition is re-checked whenever ddmlib reports a change instead of polling it,
+ * or when {@link #wakeUp()} reports a change which ddmlib doesn't.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class AdbEventWaiter implements AndroidDebugBridge.IDebugBridgeChangeListener,
+        AndroidDebugBridge.IDeviceChangeListener, AndroidDebugBridge.IClientChangeListener {
+
+    private static final Set<AdbEventWaiter> sWaiters = new CopyOnWriteArraySet<>();
+
+
+    private AdbEventWaiter() {
+    }
+
+    /**
+     * Re-check the conditions of all the waits, e.g. when a future which a condition depends on is completed
+     */
+    static void wakeUp() {
+        for (AdbEventWaiter waiter : sWaiters) {
+            waiter.onChanged();
+        }
+    }
+
+    /**
+     * @return the final value of the condition, false if it isn't met before timeout
+     */
+    static boolean await(BooleanSupplier condition, long timeout, TimeUnit unit) throws InterruptedException {
+        AdbEventWaiter waiter = new AdbEventWaiter();
+        AndroidDebugBridge.addDebugBridgeChangeListener(waiter);
+        AndroidDebugBridge.addDeviceChangeListener(waiter);
+        AndroidDebugBridge.addClientChangeListener(waiter);
+        sWaiters.add(waiter);
+        try {
+            return waiter.awaitCondition(condition, unit.toNanos(timeout));
+        } finally {
+            sWaiters.remove(waiter);
+            AndroidDebugBridge.removeDebugBridgeChangeListener(waiter);
+            AndroidDebugBridge.removeDeviceChangeListener(waiter);
+            AndroidDebugBridge.removeClientChangeListener(waiter);
+        }
+    }
+
+    private synchronized boolean awaitCondition(BooleanSupplier condition, long timeoutNanos)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!condition.getAsBoolean()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return condition.getAsBoolean();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    private synchronized void onChanged() {
+        notifyAll();
+    }
+
+    @Override
+    public void bridgeChanged(AndroidDebugBridge bridge) {
+        onChanged();
+    }
+
+    @Override
+    public void deviceConnected(IDevice device) {
+        onChanged();
+    }
+
+    @Override
+    public void deviceDisconnected(IDevice device) {
+        onChanged();
+    }
+
+    @Override
+    public void deviceChanged(IDevice device, int changeMask) {
+        onChanged();
+    }
+
+    @Override
+    public void clientChanged(Client client, int changeMask) {
+        onChanged();
+    }
+}
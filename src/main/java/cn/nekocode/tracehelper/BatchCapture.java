@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.NullOutputReceiver;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traces a list of scenarios through a pipeline. The scenarios of a device are captured one after another
+ * on a single perfd connection, and the next capture starts as soon as the previous one is requested to stop,
+ * while its trace is still being received, saved and post-processed in the background.
+ * The devices are traced in parallel.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class BatchCapture {
+    /**
+     * The max number of traces of a device being received at the same time, which bounds the memory
+     */
+    private static final int MAX_PENDING_TRANSFERS = 2;
+    private static final long LAUNCH_TIMEOUT_SECONDS = 60;
+
+    private final List<Scenario> mScenarios;
+    private final int mPerfdPort;
+    private final AtomicInteger mSucceeded = new AtomicInteger();
+
+
+    BatchCapture(List<Scenario> scenarios, int perfdPort) {
+        this.mScenarios = scenarios;
+        this.mPerfdPort = perfdPort;
+    }
+
+    /**
+     * Run all scenarios, the scenarios without a device run on the first device
+     *
+     * @return the number of succeeded scenarios
+     */
+    public int run(List<IDevice> devices) throws InterruptedException {
+        // Group the scenarios by device, in the order of the scenario file
+        final Map<IDevice, List<Scenario>> lanes = new LinkedHashMap<>();
+        for (Scenario scenario : mScenarios) {
+            IDevice device = scenario.device == null ? devices.get(0) : findDevice(devices, scenario.device);
+            if (device == null) {
+                System.out.println(prefixOf(scenario) + "Device:" + scenario.device + " not found.");
+                continue;
+            }
+            lanes.computeIfAbsent(device, key -> new ArrayList<>()).add(scenario);
+        }
+        if (lanes.isEmpty()) {
+            return 0;
+        }
+
+        final ExecutorService laneExecutor = Executors.newFixedThreadPool(lanes.size());
+        final ExecutorService postExecutor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(lanes.size() * MAX_PENDING_TRANSFERS, Runtime.getRuntime().availableProcessors())),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "trace-post-processor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (Map.Entry<IDevice, List<Scenario>> lane : lanes.entrySet()) {
+                tasks.add(() -> {
+                    runLane(lane.getKey(), lane.getValue(), postExecutor);
+                    return null;
+                });
+            }
+            for (Future<Void> future : laneExecutor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        } finally {
+            laneExecutor.shutdownNow();
+            postExecutor.shutdown();
+            postExecutor.awaitTermination(1, TimeUnit.HOURS);
+        }
+        return mSucceeded.get();
+    }
+
+    private void runLane(IDevice device, List<Scenario> scenarios, ExecutorService postExecutor)
+            throws InterruptedException {
+        // perfd is deployed and forwarded once for all scenarios of the device
+        final PerfdConnection connection = new PerfdConnection(device, mPerfdPort);
+        final Deque<Transfer> transfers = new ArrayDeque<>();
+        try {
+            if (!connection.connect()) {
+                System.out.println("[" + device.getSerialNumber() + "] Connect to perfd failed.");
+                return;
+            }
+
+            for (Scenario scenario : scenarios) {
+                // Bound the traces in flight, and an app can't be profiled again until its trace is received
+                while (transfers.size() >= MAX_PENDING_TRANSFERS || isTransferring(transfers, scenario.app)) {
+                    awaitTransfer(transfers.removeFirst());
+                }
+                Transfer transfer = capture(connection, scenario, postExecutor);
+                if (transfer != null) {
+                    transfers.addLast(transfer);
+                }
+            }
+
+        } finally {
+            while (!transfers.isEmpty()) {
+                awaitTransfer(transfers.removeFirst());
+            }
+            connection.close();
+        }
+    }
+
+    /**
+     * Start the profiler, and request it to stop after the duration
+     *
+     * @return the transfer of the trace, or null if the capture failed
+     */
+    private Transfer capture(PerfdConnection connection, Scenario scenario, ExecutorService postExecutor)
+            throws InterruptedException {
+        final String prefix = prefixOf(scenario);
+        if (scenario.launch != null) {
+            try {
+                connection.getDevice().executeShellCommand(scenario.launch, new NullOutputReceiver(),
+                        LAUNCH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                System.out.println(prefix + "Run the launch command failed: " + e.getMessage());
+                return null;
+            }
+        }
+
+        File parent = new File(scenario.output).getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+
+        final StudioProfilerHack profiler = new StudioProfilerHack(
+                connection, scenario.app, scenario.interval, scenario.output);
+        if (!profiler.startProfilingApp()) {
+            System.out.println(prefix + "Start profiling failed.");
+            profiler.terminate();
+            return null;
+        }
+        System.out.println(prefix + "Start profiling...");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(scenario.duration));
+
+        final CompletableFuture<Boolean> saved = profiler.stopProfilingAppAsync();
+        saved.thenAcceptAsync(success -> {
+            profiler.terminate();
+            if (!success) {
+                System.out.println(prefix + "Stop profiling failed.");
+                return;
+            }
+            System.out.println(prefix + "The trace file has been saved to \"" + scenario.output + "\"");
+            TraceExporter.export(scenario.output, scenario.toTraceOptions(), prefix);
+            mSucceeded.incrementAndGet();
+        }, postExecutor);
+        return new Transfer(scenario, saved);
+    }
+
+    /**
+     * Wait until the trace is received and saved, the post-processing goes on in the background
+     */
+    private static void awaitTransfer(Transfer transfer) {
+        if (!StudioProfilerHack.awaitTraceSaved(transfer.mSaved)) {
+            // Timed out, so the profiler is released by the post-processing
+            transfer.mSaved.complete(false);
+        }
+    }
+
+    private static boolean isTransferring(Deque<Transfer> transfers, String app) {
+        for (Transfer transfer : transfers) {
+            if (transfer.mScenario.app.equals(app)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static IDevice findDevice(List<IDevice> devices, String serial) {
+        for (IDevice device : devices) {
+            if (serial.equals(device.getSerialNumber())) {
+                return device;
+            }
+        }
+        return null;
+    }
+
+    private static String prefixOf(Scenario scenario) {
+        return "[" + (scenario.device != null ? scenario.device + " " : "") + scenario.app + "] ";
+    }
+
+    private static class Transfer {
+        final Scenario mScenario;
+        final CompletableFuture<Boolean> mSaved;
+
+        Transfer(Scenario scenario, CompletableFuture<Boolean> saved) {
+            this.mScenario = scenario;
+            this.mSaved = saved;
+        }
+    }
+}
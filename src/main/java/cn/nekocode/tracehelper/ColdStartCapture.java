@@ -0,0 +1,146 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.NullOutputReceiver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Capture of the app startup. The app is force-stopped and launched by "am start" with the profiler
+ * of the platform attached before the first instruction, so Application.onCreate and the first frame
+ * are traced. The trace file on device is collected by {@link StudioProfilerHack} after it's complete.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class ColdStartCapture {
+    private static final long FILE_COMPLETE_TIMEOUT_SECONDS = 60;
+    private static final long FILE_POLL_MILLIS = 500;
+    private static final Pattern TOTAL_TIME_PATTERN = Pattern.compile("TotalTime:\\s*(\\d+)");
+    // The output lines of "am start -W", the names in the intent or the activity may contain "Error" as well
+    private static final Pattern STATUS_OK_PATTERN = Pattern.compile("^Status: ok\\s*$", Pattern.MULTILINE);
+    private static final Pattern ERROR_PATTERN = Pattern.compile("^Error:", Pattern.MULTILINE);
+
+    private final StudioProfilerHack mProfiler;
+    private final IDevice mDevice;
+    private final String mPackageName;
+    private final int mSamplingInterval;
+    private final String mComponent;
+    private final String mRemoteFile;
+    private final long mExtraMillis;
+
+
+    /**
+     * @param activity     the activity to launch, e.g. ".MainActivity" or "com.foo/.MainActivity"
+     * @param remoteFile   the trace file on device, which must be writable by the shell
+     * @param extraSeconds how long to keep profiling after the activity is drawn
+     */
+    public ColdStartCapture(StudioProfilerHack profiler, int samplingInterval, String activity,
+                            String remoteFile, int extraSeconds) {
+        this.mProfiler = profiler;
+        this.mDevice = profiler.getDevice();
+        this.mPackageName = profiler.getPackageName();
+        this.mSamplingInterval = samplingInterval;
+        this.mComponent = activity.contains("/") ? activity : mPackageName + "/" + activity;
+        this.mRemoteFile = remoteFile;
+        this.mExtraMillis = TimeUnit.SECONDS.toMillis(extraSeconds);
+    }
+
+    /**
+     * @return false if the app couldn't be launched or the trace couldn't be collected
+     */
+    public boolean run() throws InterruptedException {
+        final SessionMetrics metrics = mProfiler.getConnection().getMetrics();
+        try {
+            mDevice.executeShellCommand("am force-stop " + mPackageName + "; rm -f " + mRemoteFile,
+                    new NullOutputReceiver());
+
+            // -W returns after the first frame of the activity is drawn
+            String command = "am start -W -n " + mComponent + " --start-profiler " + mRemoteFile +
+                    (mSamplingInterval > 0 ? " --sampling " + mSamplingInterval : "");
+            CollectingOutputReceiver launchOutput = new CollectingOutputReceiver();
+            long start = metrics.start();
+            mDevice.executeShellCommand(command, launchOutput, 0L, null);
+            metrics.end(SessionMetrics.PHASE_LAUNCH, start);
+
+            String output = launchOutput.getOutput();
+            if (!isLaunched(output)) {
+                System.out.println("Launch " + mComponent + " failed: " + output.trim());
+                return false;
+            }
+            Matcher matcher = TOTAL_TIME_PATTERN.matcher(output);
+            if (matcher.find()) {
+                System.out.println("Launched " + mComponent + " in " + matcher.group(1) + " ms.");
+            }
+
+            if (mExtraMillis > 0) {
+                Thread.sleep(mExtraMillis);
+            }
+
+            long stopStart = metrics.start();
+            mDevice.executeShellCommand("am profile " + mPackageName + " stop", new NullOutputReceiver());
+
+            // The app writes the trace after stopping, wait until the file stops growing
+            if (!awaitFileComplete()) {
+                System.out.println("The trace file " + mRemoteFile + " wasn't written.");
+                return false;
+            }
+            metrics.end(SessionMetrics.PHASE_STOP_TO_DATA, stopStart);
+
+            return mProfiler.collectDeviceFile(mRemoteFile, stopStart);
+
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            System.out.println("Cold start profiling failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param output the output of "am start -W"
+     */
+    static boolean isLaunched(String output) {
+        return STATUS_OK_PATTERN.matcher(output).find() && !ERROR_PATTERN.matcher(output).find();
+    }
+
+    private boolean awaitFileComplete() throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(FILE_COMPLETE_TIMEOUT_SECONDS);
+        long lastSize = -1;
+        while (System.nanoTime() < deadline) {
+            Thread.sleep(FILE_POLL_MILLIS);
+
+            CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+            mDevice.executeShellCommand("stat -c %s " + mRemoteFile, receiver);
+            long size;
+            try {
+                size = Long.parseLong(receiver.getOutput().trim());
+            } catch (NumberFormatException e) {
+                // Not created yet
+                continue;
+            }
+            if (size > 0 && size == lastSize) {
+                return true;
+            }
+            lastSize = size;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.Client;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Method tracing which is written to a file on device by the app, instead of being sent to ddmlib in one chunk.
+ * ddmlib only uses it for old devices, so the package-private HandleProfiling is called by reflection.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class DeviceFileTracing {
+    private static final String HANDLE_PROFILING_CLASS = "com.android.ddmlib.HandleProfiling";
+    private static Method sSendMPRS;
+    private static Method sSendMPRE;
+
+
+    private DeviceFileTracing() {
+    }
+
+    /**
+     * Start method tracing to the file on device, the status is queried afterwards like other profilers
+     *
+     * @param bufferSize the size of the trace buffer of the app, the tracing stops when it is full
+     */
+    static void start(Client client, String remoteFile, int bufferSize) throws IOException {
+        invoke(getMethods()[0], client, remoteFile, bufferSize, 0);
+    }
+
+    /**
+     * Stop method tracing, the remote file is reported to {@link com.android.ddmlib.ClientData.IMethodProfilingHandler}
+     */
+    static void stop(Client client) throws IOException {
+        invoke(getMethods()[1], client);
+    }
+
+    private static synchronized Method[] getMethods() throws IOException {
+        if (sSendMPRS == null) {
+            try {
+                Class<?> clazz = Class.forName(HANDLE_PROFILING_CLASS);
+                sSendMPRS = clazz.getDeclaredMethod("sendMPRS", Client.class, String.class, int.class, int.class);
+                sSendMPRE = clazz.getDeclaredMethod("sendMPRE", Client.class);
+                sSendMPRS.setAccessible(true);
+                sSendMPRE.setAccessible(true);
+            } catch (ReflectiveOperationException | SecurityException e) {
+                throw new IOException("Method tracing to device file is not supported by this ddmlib", e);
+            }
+        }
+        return new Method[]{sSendMPRS, sSendMPRE};
+    }
+
+    private static void invoke(Method method, Object... args) throws IOException {
+        try {
+            method.invoke(null, args);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Gives out the local ports of adb forwards. A port is leased until it's released, so two connections
+ * in this process never get the same port, and it's probed before leasing, so the ports taken by other
+ * processes are skipped. The ports are below the ephemeral ranges of common systems, so the system doesn't
+ * hand them out to other sockets between the probe and the forward.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class ForwardPortPool {
+    private static final int FIRST_PORT = 28100;
+    private static final int PORT_COUNT = 900;
+    private static final ForwardPortPool sDefault = new ForwardPortPool(FIRST_PORT, PORT_COUNT);
+
+    private final int mFirstPort;
+    private final int mPortCount;
+    private final Set<Integer> mLeasedPorts = new HashSet<>();
+    private int mNext = 0;
+
+
+    ForwardPortPool(int firstPort, int portCount) {
+        this.mFirstPort = firstPort;
+        this.mPortCount = portCount;
+    }
+
+    static ForwardPortPool getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Lease a free port. The ports are handed out in turn, so a port just released isn't reused at once.
+     */
+    synchronized int acquire() throws IOException {
+        for (int i = 0; i < mPortCount; i++) {
+            final int offset = (mNext + i) % mPortCount;
+            final int port = mFirstPort + offset;
+            if (!mLeasedPorts.contains(port) && isFree(port)) {
+                mLeasedPorts.add(port);
+                mNext = (offset + 1) % mPortCount;
+                return port;
+            }
+        }
+        throw new IOException("No free local port in " + mFirstPort + "-" + (mFirstPort + mPortCount - 1));
+    }
+
+    synchronized void release(int port) {
+        mLeasedPorts.remove(port);
+    }
+
+    private static boolean isFree(int port) {
+        // adb listens on the loopback address for a forward
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
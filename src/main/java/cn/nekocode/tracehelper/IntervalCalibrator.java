@@ -0,0 +1,130 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.trace.TraceFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the sampling interval which makes the trace grow at about the budget rate on the device.
+ * The number of samples, and so the trace size, is roughly inversely proportional to the interval,
+ * so the interval is scaled by the ratio of the measured rate to the budget.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class IntervalCalibrator {
+    public static final int MIN_INTERVAL = 10;
+    public static final int MAX_INTERVAL = 100 * 1000;
+    private static final int PROBE_INTERVAL = 1000;
+    private static final long CALIBRATION_MILLIS = 2000;
+    private static final int MAX_CALIBRATIONS = 3;
+    private static final double TOLERANCE = 0.25;
+    // Between segments the interval changes at most by this factor, so a short idle segment doesn't overshoot
+    private static final double MAX_ADJUST_FACTOR = 4;
+
+    private final long mBudget;
+
+
+    /**
+     * @param budget the max trace bytes per second
+     */
+    public IntervalCalibrator(long budget) {
+        this.mBudget = budget;
+    }
+
+    /**
+     * Run short captures to find the interval
+     *
+     * @param tempFile the file of the captures, it's deleted afterwards
+     * @return the interval in microseconds, or -1 if the profiler couldn't be started or stopped
+     */
+    public int calibrate(PerfdConnection connection, String packageName, String tempFile)
+            throws InterruptedException {
+        int interval = PROBE_INTERVAL;
+        try {
+            for (int i = 0; i < MAX_CALIBRATIONS; i++) {
+                StudioProfilerHack profiler = new StudioProfilerHack(connection, packageName, interval, tempFile);
+                long elapsed;
+                try {
+                    if (!profiler.startProfilingApp()) {
+                        return -1;
+                    }
+                    long start = System.nanoTime();
+                    Thread.sleep(CALIBRATION_MILLIS);
+                    elapsed = System.nanoTime() - start;
+                    if (!profiler.stopProfilingApp()) {
+                        return -1;
+                    }
+                } finally {
+                    profiler.terminate();
+                }
+
+                double rate = dataRateOf(new File(tempFile), elapsed);
+                int next = intervalFor(interval, rate, Double.MAX_VALUE);
+                System.out.println(String.format(Locale.ROOT, "Calibration: %d us interval makes %.1f KB/s",
+                        interval, rate / 1024));
+                if (Math.abs(rate - mBudget) <= mBudget * TOLERANCE || next == interval) {
+                    return interval;
+                }
+                interval = next;
+            }
+            return interval;
+
+        } catch (IOException e) {
+            System.out.println("Read calibration trace failed: " + e.getMessage());
+            return -1;
+
+        } finally {
+            new File(tempFile).delete();
+        }
+    }
+
+    /**
+     * Re-calibrate by a captured trace, such as a segment of rolling capture
+     *
+     * @param elapsedNanos the duration of the capture
+     * @return the interval for the next capture
+     */
+    public int adjust(int interval, File trace, long elapsedNanos) {
+        try {
+            return intervalFor(interval, dataRateOf(trace, elapsedNanos), MAX_ADJUST_FACTOR);
+        } catch (IOException e) {
+            return interval;
+        }
+    }
+
+    private int intervalFor(int interval, double rate, double maxFactor) {
+        double factor = rate / mBudget;
+        factor = Math.max(1 / maxFactor, Math.min(maxFactor, factor));
+        long next = Math.round(interval * factor);
+        return (int) Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, next));
+    }
+
+    /**
+     * @return the bytes of records per second, the header doesn't grow with the duration
+     */
+    private static double dataRateOf(File trace, long elapsedNanos) throws IOException {
+        long dataSize;
+        try (TraceFile traceFile = TraceFile.open(trace)) {
+            dataSize = traceFile.getRecordCount() * traceFile.getRecordSize();
+        }
+        return dataSize / Math.max(1e-3, elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+}
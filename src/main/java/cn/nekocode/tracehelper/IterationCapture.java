@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.trace.IterationStats;
+import cn.nekocode.tracehelper.trace.MethodSummary;
+import cn.nekocode.tracehelper.trace.ProguardMapping;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import com.android.ddmlib.NullOutputReceiver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture which profiles the same scenario several times and aggregates the per-method times.
+ * Each trace is decoded while the next one is being captured, and only its totals are kept in memory.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class IterationCapture {
+    private final PerfdConnection mConnection;
+    private final String mPackageName;
+    private final int mSamplingInterval;
+    private final String mOutputFile;
+    private final int mIterations;
+    private final long mIterationMillis;
+    private final String mBetweenCommand;
+    private final IterationStats mStats;
+    private ProguardMapping mMapping;
+    private String mDeviceFile;
+    private int mDeviceBufferSize = 0;
+
+
+    /**
+     * @param betweenCommand the shell command run on device between iterations, can be null
+     */
+    public IterationCapture(PerfdConnection connection, String packageName, int samplingInterval, String outputFile,
+                            int iterations, int iterationSeconds, String betweenCommand) {
+        this.mConnection = connection;
+        this.mPackageName = packageName;
+        this.mSamplingInterval = samplingInterval;
+        this.mOutputFile = outputFile;
+        this.mIterations = iterations;
+        this.mIterationMillis = TimeUnit.SECONDS.toMillis(iterationSeconds);
+        this.mBetweenCommand = betweenCommand;
+        this.mStats = new IterationStats(iterations);
+    }
+
+    /**
+     * Trace every iteration to a file on device, see {@link StudioProfilerHack#setDeviceFile(String, int)}
+     */
+    public void setDeviceFile(String remoteFile, int bufferSize) {
+        this.mDeviceFile = remoteFile;
+        this.mDeviceBufferSize = bufferSize;
+    }
+
+    /**
+     * Deobfuscate every iteration before it's decoded, so the stats have the original names
+     */
+    public void setMapping(ProguardMapping mapping) {
+        this.mMapping = mapping;
+    }
+
+    /**
+     * @return the stats of the decoded iterations, which are all iterations if {@link #run()} succeeded
+     */
+    public IterationStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return false if the profiler couldn't be started or stopped, or a trace couldn't be decoded
+     */
+    public boolean run() throws InterruptedException {
+        final ExecutorService decoder = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "trace-decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Future<?> decoding = null;
+        try {
+            for (int i = 1; i <= mIterations; i++) {
+                final String iterationFile = iterationFileOf(mOutputFile, i);
+                StudioProfilerHack profiler = new StudioProfilerHack(
+                        mConnection, mPackageName, mSamplingInterval, iterationFile);
+                if (mDeviceFile != null) {
+                    profiler.setDeviceFile(mDeviceFile, mDeviceBufferSize);
+                }
+                try {
+                    if (!profiler.startProfilingApp()) {
+                        return false;
+                    }
+                    Thread.sleep(mIterationMillis);
+                    if (!profiler.stopProfilingApp()) {
+                        return false;
+                    }
+                } finally {
+                    profiler.terminate();
+                }
+                System.out.println("Iteration " + i + "/" + mIterations + " has been saved to \"" + iterationFile + "\"");
+
+                // At most one trace is being decoded, while the next one is captured
+                if (decoding != null && !awaitDecoding(decoding)) {
+                    return false;
+                }
+                decoding = decoder.submit(() -> {
+                    decode(iterationFile);
+                    return null;
+                });
+
+                if (mBetweenCommand != null && i < mIterations) {
+                    runBetweenCommand();
+                }
+            }
+
+            return decoding == null || awaitDecoding(decoding);
+
+        } finally {
+            decoder.shutdownNow();
+        }
+    }
+
+    private void decode(String iterationFile) throws IOException {
+        if (mMapping != null && !TraceExporter.deobfuscate(iterationFile, mMapping, "")) {
+            throw new IOException("Deobfuscate " + iterationFile + " failed");
+        }
+        try (TraceFile trace = TraceFile.open(new File(iterationFile))) {
+            mStats.add(trace, MethodSummary.build(trace, false).getTotal());
+        }
+    }
+
+    private static boolean awaitDecoding(Future<?> decoding) throws InterruptedException {
+        try {
+            decoding.get();
+            return true;
+        } catch (ExecutionException e) {
+            System.out.println("Decode trace file failed: " + e.getCause().getMessage());
+            return false;
+        }
+    }
+
+    private void runBetweenCommand() {
+        try {
+            mConnection.getDevice().executeShellCommand(mBetweenCommand, new NullOutputReceiver(), 0L, null);
+        } catch (Exception e) {
+            System.out.println("Run \"" + mBetweenCommand + "\" failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Insert the iteration index before the extension of output file, e.g. "out-iter001.trace"
+     */
+    static String iterationFileOf(String outputFile, int index) {
+        return MethodTracer.insertBeforeExtension(outputFile, String.format("-iter%03d", index));
+    }
+}
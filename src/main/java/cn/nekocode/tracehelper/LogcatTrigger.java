@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.IShellOutputReceiver;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Receiver of a streaming logcat which reports lines matching the start or stop pattern.
+ * Lines are decoded into one reusable buffer and matched by reused matchers,
+ * so nothing is allocated per line.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class LogcatTrigger implements IShellOutputReceiver {
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    public interface Listener {
+        void onStartMarker();
+
+        void onStopMarker();
+    }
+
+    private final Matcher mStartMatcher;
+    private final Matcher mStopMatcher;
+    private final Listener mListener;
+    private final LineBuffer mLine = new LineBuffer();
+    private int mCodePoint;
+    private int mPendingBytes;
+    private volatile boolean mIsCancelled = false;
+
+
+    /**
+     * @param stopPattern can be null
+     */
+    public LogcatTrigger(Pattern startPattern, Pattern stopPattern, Listener listener) {
+        this.mStartMatcher = startPattern.matcher(mLine);
+        this.mStopMatcher = stopPattern != null ? stopPattern.matcher(mLine) : null;
+        this.mListener = listener;
+    }
+
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            int b = data[i];
+
+            // Decode utf-8 by hand, a code point may span two outputs
+            if (mPendingBytes > 0) {
+                if ((b & 0xc0) == 0x80) {
+                    mCodePoint = (mCodePoint << 6) | (b & 0x3f);
+                    if (--mPendingBytes == 0) {
+                        mLine.appendCodePoint(mCodePoint);
+                    }
+                    continue;
+                }
+                mPendingBytes = 0;
+                mLine.append('\uFFFD');
+            }
+
+            if (b >= 0) {
+                if (b == '\n') {
+                    onLine();
+                } else if (b != '\r') {
+                    mLine.append((char) b);
+                }
+            } else if ((b & 0xe0) == 0xc0) {
+                mCodePoint = b & 0x1f;
+                mPendingBytes = 1;
+            } else if ((b & 0xf0) == 0xe0) {
+                mCodePoint = b & 0x0f;
+                mPendingBytes = 2;
+            } else if ((b & 0xf8) == 0xf0) {
+                mCodePoint = b & 0x07;
+                mPendingBytes = 3;
+            } else {
+                mLine.append('\uFFFD');
+            }
+        }
+    }
+
+    private void onLine() {
+        mStartMatcher.reset(mLine);
+        if (mStartMatcher.find()) {
+            mListener.onStartMarker();
+        }
+        if (mStopMatcher != null) {
+            mStopMatcher.reset(mLine);
+            if (mStopMatcher.find()) {
+                mListener.onStopMarker();
+            }
+        }
+        mLine.clear();
+    }
+
+    @Override
+    public void flush() {
+        if (mLine.length() > 0) {
+            onLine();
+        }
+    }
+
+    public void cancel() {
+        mIsCancelled = true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mIsCancelled;
+    }
+
+    /**
+     * Growable char buffer which is matched in place
+     */
+    private static class LineBuffer implements CharSequence {
+        private char[] mChars = new char[256];
+        private int mLength = 0;
+
+        void append(char c) {
+            if (mLength == mChars.length) {
+                if (mLength >= MAX_LINE_LENGTH) {
+                    return;
+                }
+                char[] chars = new char[mLength * 2];
+                System.arraycopy(mChars, 0, chars, 0, mLength);
+                mChars = chars;
+            }
+            mChars[mLength++] = c;
+        }
+
+        void appendCodePoint(int codePoint) {
+            if (Character.isBmpCodePoint(codePoint)) {
+                append((char) codePoint);
+            } else if (Character.isValidCodePoint(codePoint)) {
+                append(Character.highSurrogate(codePoint));
+                append(Character.lowSurrogate(codePoint));
+            } else {
+                append('\uFFFD');
+            }
+        }
+
+        void clear() {
+            mLength = 0;
+        }
+
+        @Override
+        public int length() {
+            return mLength;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return mChars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(mChars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(mChars, 0, mLength);
+        }
+    }
+}
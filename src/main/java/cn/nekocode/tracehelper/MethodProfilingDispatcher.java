@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ddmlib only holds one global method profiling handler,
+ * so it is installed once and the callbacks are routed to the handler registered for each client
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class MethodProfilingDispatcher implements ClientData.IMethodProfilingHandler {
+    private static final MethodProfilingDispatcher sInstance = new MethodProfilingDispatcher();
+    private static boolean sIsInstalled = false;
+
+    private final Map<Client, ClientData.IMethodProfilingHandler> mHandlers = new ConcurrentHashMap<>();
+
+
+    private MethodProfilingDispatcher() {
+    }
+
+    /**
+     * @return the handler installed into ddmlib
+     */
+    static ClientData.IMethodProfilingHandler getInstance() {
+        return sInstance;
+    }
+
+    static synchronized void register(Client client, ClientData.IMethodProfilingHandler handler) {
+        if (!sIsInstalled) {
+            ClientData.setMethodProfilingHandler(sInstance);
+            sIsInstalled = true;
+        }
+        sInstance.mHandlers.put(client, handler);
+    }
+
+    static void unregister(Client client, ClientData.IMethodProfilingHandler handler) {
+        sInstance.mHandlers.remove(client, handler);
+    }
+
+    @Override
+    public void onSuccess(String remoteFilePath, Client client) {
+        ClientData.IMethodProfilingHandler handler = mHandlers.get(client);
+        if (handler != null) {
+            handler.onSuccess(remoteFilePath, client);
+        }
+    }
+
+    @Override
+    public void onSuccess(byte[] data, Client client) {
+        ClientData.IMethodProfilingHandler handler = mHandlers.get(client);
+        if (handler != null) {
+            handler.onSuccess(data, client);
+        }
+    }
+
+    @Override
+    public void onStartFailure(Client client, String message) {
+        ClientData.IMethodProfilingHandler handler = mHandlers.get(client);
+        if (handler != null) {
+            handler.onStartFailure(client, message);
+        }
+    }
+
+    @Override
+    public void onEndFailure(Client client, String message) {
+        ClientData.IMethodProfilingHandler handler = mHandlers.get(client);
+        if (handler != null) {
+            handler.onEndFailure(client, message);
+        }
+    }
+}
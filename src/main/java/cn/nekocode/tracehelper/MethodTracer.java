@@ -15,18 +15,93 @@
  */
 package cn.nekocode.tracehelper;
 
+import cn.nekocode.tracehelper.report.IterationSummaryWriter;
+import cn.nekocode.tracehelper.report.MergedProfileWriter;
+import cn.nekocode.tracehelper.report.TraceDiff;
+import cn.nekocode.tracehelper.trace.BlockGzipWriter;
+import cn.nekocode.tracehelper.trace.IterationStats;
+import cn.nekocode.tracehelper.trace.MergedProfile;
+import cn.nekocode.tracehelper.trace.MethodSummary;
+import cn.nekocode.tracehelper.trace.ProguardMapping;
+import cn.nekocode.tracehelper.trace.TraceArchive;
+import cn.nekocode.tracehelper.trace.TraceArchiveWriter;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import cn.nekocode.tracehelper.trace.TraceIndex;
+import cn.nekocode.tracehelper.trace.TraceSlicer;
 import com.android.ddmlib.AndroidDebugBridge;
 import com.android.ddmlib.IDevice;
 import org.apache.commons.cli.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
  * @author nekocode (nekocode.cn@gmail.com)
  */
 public class MethodTracer {
+    private static final int MAX_PARALLEL_DEVICES = 8;
+    private static final long ADB_TIMEOUT_SECONDS = 10;
+    private static final long PROFILING_STOP_TIMEOUT_SECONDS = 600;
+    private static final int DEFAULT_SUMMARY_TOP = 20;
+    private static final int DEFAULT_BUDGET_KB = 512;
+    private static final String SAMPLING_INTERVAL_AUTO = "auto";
+    private static final String COMMAND_DIFF = "diff";
+    private static final String COMMAND_SLICE = "slice";
+    private static final String COMMAND_BATCH = "batch";
+    private static final String COMMAND_MERGE = "merge";
+    private static final String COMMAND_ARCHIVE = "archive";
+    private static final String COMMAND_UNARCHIVE = "unarchive";
+    /**
+     * The extensions of trace files, the compound ones go first
+     */
+    private static final String[] TRACE_EXTENSIONS =
+            {".trace" + BlockGzipWriter.EXTENSION, ".trace", TraceArchive.EXTENSION};
 
     public static void main(String[] args) throws InterruptedException {
+        if (args.length > 0 && COMMAND_DIFF.equals(args[0])) {
+            System.exit(diff(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        if (args.length > 0 && COMMAND_SLICE.equals(args[0])) {
+            System.exit(slice(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        if (args.length > 0 && COMMAND_MERGE.equals(args[0])) {
+            System.exit(merge(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        if (args.length > 0 && COMMAND_ARCHIVE.equals(args[0])) {
+            System.exit(archive(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        if (args.length > 0 && COMMAND_UNARCHIVE.equals(args[0])) {
+            System.exit(unarchive(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+        if (args.length > 0 && COMMAND_BATCH.equals(args[0])) {
+            System.exit(batch(Arrays.copyOfRange(args, 1, args.length)));
+            return;
+        }
+
         Option optionAdbPath = Option.builder("a")
                 .argName("adb_path")
                 .hasArg()
@@ -34,9 +109,10 @@ public class MethodTracer {
                 .build();
 
         Option optionDeviceNumber = Option.builder("e")
-                .argName("device-serial")
+                .argName("device-serials")
                 .hasArg()
-                .desc("Serial number of connected traget device")
+                .desc("Serial numbers of connected traget devices, separated by commas, " +
+                        "or \"all\" to trace all connected devices")
                 .build();
 
         Option optionPortNumber = Option.builder("p")
@@ -48,7 +124,16 @@ public class MethodTracer {
         Option optionSamplingInterval = Option.builder("i")
                 .argName("sampling-interval")
                 .hasArg()
-                .desc("The sampling interval of method tracing (can ben 0, default is 10)")
+                .desc("The sampling interval of method tracing (can ben 0, default is 10), " +
+                        "or \"auto\" to calibrate it on device against --budget")
+                .build();
+
+        Option optionBudget = Option.builder()
+                .longOpt("budget")
+                .argName("KB/s")
+                .hasArg()
+                .desc("Max trace size per second for -i auto (default is " + DEFAULT_BUDGET_KB + "). " +
+                        "With --segment the interval is re-calibrated after every segment")
                 .build();
 
         Option optionTime = Option.builder("t")
@@ -63,6 +148,170 @@ public class MethodTracer {
                 .desc("Output file name (default is \"out.trace\")")
                 .build();
 
+        Option optionDeviceBuffer = Option.builder()
+                .longOpt("device-buffer")
+                .argName("MB")
+                .hasArg()
+                .desc("Let the app write the method tracing (-i 0) to a file on device with a N MB buffer, " +
+                        "and pull it in chunks after stopping, for traces too large for the host memory")
+                .build();
+
+        Option optionDeviceFile = Option.builder()
+                .longOpt("device-file")
+                .argName("path")
+                .hasArg()
+                .desc("The trace file on device used by --device-buffer (default is \"/sdcard/<app-name>.trace\") " +
+                        "or --cold-start (default is \"/data/local/tmp/<app-name>-cold-start.trace\")")
+                .build();
+
+        Option optionColdStart = Option.builder()
+                .longOpt("cold-start")
+                .argName("activity")
+                .hasArg()
+                .desc("Force-stop the app and launch the activity (e.g. \".MainActivity\") with the profiler attached " +
+                        "from the start, then stop after the first frame is drawn (or -t seconds more)")
+                .build();
+
+        Option optionFormat = Option.builder()
+                .longOpt("format")
+                .argName("formats")
+                .hasArg()
+                .desc("Also write the trace in other formats, separated by commas: " +
+                        "folded (collapsed stacks), svg (flame graph), chrome (trace event json for " +
+                        "chrome://tracing and ui.perfetto.dev) or archive (compact archive of the trace)")
+                .build();
+
+        Option optionSummary = Option.builder()
+                .longOpt("summary")
+                .argName("N")
+                .hasArg()
+                .optionalArg(true)
+                .desc("Print the top N methods by exclusive time, globally and per thread, " +
+                        "and save them as JSON next to the output file (default N is " + DEFAULT_SUMMARY_TOP + ")")
+                .build();
+
+        Option optionMapping = Option.builder()
+                .longOpt("mapping")
+                .argName("file")
+                .hasArg()
+                .desc("Deobfuscate the output trace, and every output derived from it, " +
+                        "with the mapping.txt of ProGuard or R8")
+                .build();
+
+        Option optionMetrics = Option.builder()
+                .longOpt("metrics")
+                .argName("file")
+                .hasArg()
+                .desc("Save the time spent in each phase of tracing, the trace size and the transfer throughput " +
+                        "as JSON, or as Prometheus text if the file name ends with \".prom\"")
+                .build();
+
+        Option optionMaxTransfers = Option.builder()
+                .longOpt("max-transfers")
+                .argName("N")
+                .hasArg()
+                .desc("The max number of traces transferred from the devices at the same time, the other devices " +
+                        "wait before stopping (default is unlimited)")
+                .build();
+
+        Option optionIterations = Option.builder()
+                .longOpt("iterations")
+                .argName("N")
+                .hasArg()
+                .desc("Trace the app N times for -t seconds each, and print the median, p90, p99 and variance " +
+                        "of the method times over the iterations")
+                .build();
+
+        Option optionBetween = Option.builder()
+                .longOpt("between")
+                .argName("command")
+                .hasArg()
+                .desc("Shell command run on device between iterations, e.g. to reset the scenario")
+                .build();
+
+        Option optionTelemetry = Option.builder()
+                .longOpt("telemetry")
+                .desc("Also sample the cpu usage, running threads, memory and allocations of the app from perfd " +
+                        "while tracing, and save them to \"<out-file>.telemetry\"")
+                .build();
+
+        Option optionSegment = Option.builder()
+                .longOpt("segment")
+                .argName("seconds")
+                .hasArg()
+                .desc("Capture continuously, restarting the profiler every N seconds and keeping only " +
+                        "the latest segments. Enter to freeze the kept segments, Ctrl-C to freeze and stop")
+                .build();
+
+        Option optionRingCount = Option.builder()
+                .longOpt("ring-count")
+                .argName("N")
+                .hasArg()
+                .desc("Max number of segments to keep in rolling capture (default is 10)")
+                .build();
+
+        Option optionRingSize = Option.builder()
+                .longOpt("ring-size")
+                .argName("MB")
+                .hasArg()
+                .desc("Max total size of segments to keep in rolling capture")
+                .build();
+
+        Option optionStartOn = Option.builder()
+                .longOpt("start-on")
+                .argName("regex")
+                .hasArg()
+                .desc("Arm the tracer and start profiling when a logcat line matches the regex")
+                .build();
+
+        Option optionStopOn = Option.builder()
+                .longOpt("stop-on")
+                .argName("regex")
+                .hasArg()
+                .desc("Stop the armed profiling when a logcat line matches the regex (or after -t seconds)")
+                .build();
+
+        Option optionPreRoll = Option.builder()
+                .longOpt("pre-roll")
+                .argName("seconds")
+                .hasArg()
+                .desc("Also keep about N seconds of trace before the start marker")
+                .build();
+
+        Option optionPostRoll = Option.builder()
+                .longOpt("post-roll")
+                .argName("seconds")
+                .hasArg()
+                .desc("Keep profiling for N seconds after the stop marker")
+                .build();
+
+        Option optionDaemon = Option.builder()
+                .longOpt("daemon")
+                .desc("Run as a daemon which keeps adb and perfd warm, and accepts commands on the control port")
+                .build();
+
+        Option optionOutputDir = Option.builder()
+                .longOpt("output-dir")
+                .argName("dir")
+                .hasArg()
+                .desc("Directory which the output files started by --control are confined to " +
+                        "(default is the working directory of the daemon)")
+                .build();
+
+        Option optionControl = Option.builder()
+                .longOpt("control")
+                .argName("command")
+                .hasArg()
+                .desc("Send a command to the running daemon: start, stop, status or shutdown")
+                .build();
+
+        Option optionControlPort = Option.builder()
+                .longOpt("control-port")
+                .argName("port")
+                .hasArg()
+                .desc("Control port of the daemon (default is " + TraceDaemon.DEFAULT_CONTROL_PORT + ")")
+                .build();
+
         Option optionHelp = Option.builder("h")
                 .longOpt("help")
                 .desc("Show this help information")
@@ -73,8 +322,31 @@ public class MethodTracer {
         options.addOption(optionDeviceNumber);
         options.addOption(optionPortNumber);
         options.addOption(optionSamplingInterval);
+        options.addOption(optionBudget);
         options.addOption(optionTime);
         options.addOption(optionOut);
+        options.addOption(optionDeviceBuffer);
+        options.addOption(optionDeviceFile);
+        options.addOption(optionColdStart);
+        options.addOption(optionFormat);
+        options.addOption(optionSummary);
+        options.addOption(optionMapping);
+        options.addOption(optionMetrics);
+        options.addOption(optionMaxTransfers);
+        options.addOption(optionTelemetry);
+        options.addOption(optionIterations);
+        options.addOption(optionBetween);
+        options.addOption(optionSegment);
+        options.addOption(optionRingCount);
+        options.addOption(optionRingSize);
+        options.addOption(optionStartOn);
+        options.addOption(optionStopOn);
+        options.addOption(optionPreRoll);
+        options.addOption(optionPostRoll);
+        options.addOption(optionDaemon);
+        options.addOption(optionOutputDir);
+        options.addOption(optionControl);
+        options.addOption(optionControlPort);
         options.addOption(optionHelp);
 
         try {
@@ -85,27 +357,198 @@ public class MethodTracer {
                 return;
             }
 
-            if (commandLine.getArgs().length != 1) {
-                throw new ParseException("Missing argument: <app-name>");
-            }
-
-            String packageName = commandLine.getArgs()[0];
-            String adbPath = commandLine.getOptionValue(optionAdbPath.getOpt());
-            String deviceNumber = commandLine.getOptionValue(optionDeviceNumber.getOpt());
+            TraceOptions traceOptions = new TraceOptions();
+            traceOptions.adbPath = commandLine.getOptionValue(optionAdbPath.getOpt());
+            traceOptions.deviceSerials = commandLine.getOptionValue(optionDeviceNumber.getOpt());
 
             value = commandLine.getOptionValue(optionPortNumber.getOpt());
-            int perfdPort = value == null ? 12389 : Integer.valueOf(value);
+            if (value != null) {
+                traceOptions.perfdPort = Integer.valueOf(value);
+            }
 
             value = commandLine.getOptionValue(optionSamplingInterval.getOpt());
-            int samplingInterval = value == null ? 10 : Integer.valueOf(value);
+            if (SAMPLING_INTERVAL_AUTO.equals(value)) {
+                value = commandLine.getOptionValue(optionBudget.getLongOpt());
+                traceOptions.intervalBudget = (value != null ? Long.valueOf(value) : DEFAULT_BUDGET_KB) * 1024;
+            } else if (value != null) {
+                traceOptions.samplingInterval = Integer.valueOf(value);
+            }
 
             value = commandLine.getOptionValue(optionTime.getOpt());
-            int time = value == null ? 0 : Integer.valueOf(value);
+            if (value != null) {
+                traceOptions.time = Integer.valueOf(value);
+            }
 
             value = commandLine.getOptionValue(optionOut.getOpt());
-            String outputFile = value == null ? "out.trace" : value;
+            if (value != null) {
+                traceOptions.outputFile = value;
+            }
+
+            value = commandLine.getOptionValue(optionFormat.getLongOpt());
+            if (value != null) {
+                for (String format : value.split(",")) {
+                    format = format.trim();
+                    if (!TraceExporter.isFormat(format)) {
+                        throw new ParseException("Unknown format: " + format);
+                    }
+                    traceOptions.formats.add(format);
+                }
+            }
+
+            if (commandLine.hasOption(optionSummary.getLongOpt())) {
+                value = commandLine.getOptionValue(optionSummary.getLongOpt());
+                if (value != null && !value.matches("\\d+")) {
+                    // The argument is optional, so it may swallow the app name
+                    throw new ParseException("Invalid summary size: " + value + ", use --summary=N");
+                }
+                traceOptions.summaryTop = value != null ? Integer.valueOf(value) : DEFAULT_SUMMARY_TOP;
+            }
+
+            value = commandLine.getOptionValue(optionMapping.getLongOpt());
+            if (value != null) {
+                traceOptions.mapping = loadMapping(value);
+            }
+
+            traceOptions.metricsFile = commandLine.getOptionValue(optionMetrics.getLongOpt());
+            value = commandLine.getOptionValue(optionMaxTransfers.getLongOpt());
+            if (value != null) {
+                traceOptions.maxTransfers = Integer.valueOf(value);
+            }
+            traceOptions.telemetry = commandLine.hasOption(optionTelemetry.getLongOpt());
+
+            value = commandLine.getOptionValue(optionIterations.getLongOpt());
+            if (value != null) {
+                traceOptions.iterations = Integer.valueOf(value);
+            }
+            traceOptions.betweenCommand = commandLine.getOptionValue(optionBetween.getLongOpt());
+
+            value = commandLine.getOptionValue(optionSegment.getLongOpt());
+            if (value != null) {
+                traceOptions.segmentSeconds = Integer.valueOf(value);
+            }
+
+            value = commandLine.getOptionValue(optionRingCount.getLongOpt());
+            if (value != null) {
+                traceOptions.ringCount = Integer.valueOf(value);
+            }
+
+            value = commandLine.getOptionValue(optionRingSize.getLongOpt());
+            if (value != null) {
+                traceOptions.ringBytes = Long.valueOf(value) * 1024 * 1024;
+            }
+
+            value = commandLine.getOptionValue(optionStartOn.getLongOpt());
+            if (value != null) {
+                traceOptions.startPattern = compilePattern(value);
+            }
+
+            value = commandLine.getOptionValue(optionStopOn.getLongOpt());
+            if (value != null) {
+                traceOptions.stopPattern = compilePattern(value);
+            }
+
+            value = commandLine.getOptionValue(optionPreRoll.getLongOpt());
+            if (value != null) {
+                traceOptions.preRollSeconds = Integer.valueOf(value);
+            }
+
+            value = commandLine.getOptionValue(optionPostRoll.getLongOpt());
+            if (value != null) {
+                traceOptions.postRollSeconds = Integer.valueOf(value);
+            }
+
+            if (traceOptions.stopPattern != null && traceOptions.startPattern == null) {
+                throw new ParseException("--stop-on requires --start-on");
+            }
+            if (traceOptions.startPattern != null && traceOptions.stopPattern == null && traceOptions.time <= 0) {
+                throw new ParseException("--start-on requires --stop-on or -t");
+            }
+            traceOptions.coldStartActivity = commandLine.getOptionValue(optionColdStart.getLongOpt());
+            if (traceOptions.coldStartActivity != null && (traceOptions.segmentSeconds > 0 ||
+                    traceOptions.startPattern != null || traceOptions.iterations > 1)) {
+                throw new ParseException("--cold-start can't be used with --segment, --start-on or --iterations");
+            }
+            // The rolling segments are only deobfuscated, they aren't exported
+            if (traceOptions.segmentSeconds > 0 && (traceOptions.startPattern != null ||
+                    !traceOptions.formats.isEmpty() || traceOptions.summaryTop > 0)) {
+                throw new ParseException("--segment can't be used with --start-on, --format or --summary");
+            }
+            if (traceOptions.telemetry && (traceOptions.segmentSeconds > 0 || traceOptions.startPattern != null ||
+                    traceOptions.iterations > 1 || traceOptions.coldStartActivity != null)) {
+                throw new ParseException("--telemetry can't be used with --segment, --start-on, --iterations " +
+                        "or --cold-start");
+            }
+            if (traceOptions.intervalBudget > 0 && (traceOptions.startPattern != null ||
+                    traceOptions.iterations > 1 || traceOptions.coldStartActivity != null)) {
+                throw new ParseException("-i auto can't be used with --start-on, --iterations or --cold-start");
+            }
+            if (traceOptions.iterations > 1) {
+                if (traceOptions.time <= 0) {
+                    throw new ParseException("--iterations requires -t");
+                }
+                if (traceOptions.segmentSeconds > 0 || traceOptions.startPattern != null) {
+                    throw new ParseException("--iterations can't be used with --segment or --start-on");
+                }
+            }
+
+            value = commandLine.getOptionValue(optionControlPort.getLongOpt());
+            int controlPort = value == null ? TraceDaemon.DEFAULT_CONTROL_PORT : Integer.valueOf(value);
+            TransferLimiter.setMaxTransfers(traceOptions.maxTransfers);
+
+            if (commandLine.hasOption(optionDaemon.getLongOpt())) {
+                value = commandLine.getOptionValue(optionOutputDir.getLongOpt());
+                File outputDir = new File(value != null ? value : "").getAbsoluteFile();
+                if (!outputDir.isDirectory()) {
+                    throw new ParseException("Output directory not found: " + outputDir);
+                }
+                daemon(traceOptions.adbPath, traceOptions.perfdPort, controlPort, outputDir);
+                return;
+            }
+
+            if (commandLine.hasOption(optionControl.getLongOpt())) {
+                String command = commandLine.getOptionValue(optionControl.getLongOpt());
+                String serial = traceOptions.deviceSerials == null ? "" : traceOptions.deviceSerials;
+                String[] request;
+                if (TraceDaemon.COMMAND_START.equals(command) || TraceDaemon.COMMAND_STOP.equals(command)) {
+                    if (commandLine.getArgs().length != 1) {
+                        throw new ParseException("Missing argument: <app-name>");
+                    }
+                    String packageName = commandLine.getArgs()[0];
+                    request = TraceDaemon.COMMAND_START.equals(command) ?
+                            new String[]{command, serial, packageName, String.valueOf(traceOptions.samplingInterval),
+                                    new File(traceOptions.outputFile).getAbsolutePath()} :
+                            new String[]{command, serial, packageName};
+                } else {
+                    request = new String[]{command};
+                }
+
+                System.exit(TraceDaemon.sendCommand(controlPort, request));
+                return;
+            }
+
+            if (commandLine.getArgs().length != 1) {
+                throw new ParseException("Missing argument: <app-name>");
+            }
+
+            traceOptions.packageName = commandLine.getArgs()[0];
+
+            value = commandLine.getOptionValue(optionDeviceBuffer.getLongOpt());
+            if (value != null) {
+                if (traceOptions.samplingInterval > 0) {
+                    throw new ParseException("--device-buffer only works with method tracing (-i 0)");
+                }
+                traceOptions.deviceBufferBytes = Integer.valueOf(value) * 1024 * 1024;
+                value = commandLine.getOptionValue(optionDeviceFile.getLongOpt());
+                traceOptions.deviceFile = value != null ? value : "/sdcard/" + traceOptions.packageName + ".trace";
+            }
 
-            trace(adbPath, deviceNumber, packageName, perfdPort, samplingInterval, time, outputFile);
+            if (traceOptions.coldStartActivity != null && traceOptions.deviceFile == null) {
+                value = commandLine.getOptionValue(optionDeviceFile.getLongOpt());
+                traceOptions.deviceFile = value != null ? value :
+                        "/data/local/tmp/" + traceOptions.packageName + "-cold-start.trace";
+            }
+
+            trace(traceOptions);
 
         } catch (ParseException exception) {
             System.out.println("Syntax error: " + exception.getMessage());
@@ -118,90 +561,1309 @@ public class MethodTracer {
                 "A command-line interface of android stuido's method tracer", options, null, true);
     }
 
-    private static void trace(String adbPath, String deviceNumber, String packageName, int perfdPort,
-                              int samplingInterval, int time, String outputFile) throws InterruptedException {
-        AndroidDebugBridge.initIfNeeded(true);
-        AndroidDebugBridge adb;
-        if (adbPath != null) {
-            adb = AndroidDebugBridge.createBridge(adbPath, false);
-        } else {
-            adb = AndroidDebugBridge.createBridge();
+    private static Pattern compilePattern(String regex) throws ParseException {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            throw new ParseException("Invalid regex: " + regex);
         }
+    }
+
+    /**
+     * Compare two trace files per method
+     *
+     * @return the exit code, 1 if any threshold is exceeded
+     */
+    private static int diff(String[] args) throws InterruptedException {
+        Option optionThreshold = Option.builder()
+                .longOpt("threshold")
+                .argName("method:metric:limit")
+                .hasArg()
+                .desc("Fail if the metric (inclusive, exclusive or calls) of the method grows more than the limit, " +
+                        "e.g. \"com.foo.Feed.bind:exclusive:+15%\" or \"com.foo.*:inclusive:+5ms\". Can be repeated")
+                .build();
+
+        Option optionTop = Option.builder()
+                .longOpt("top")
+                .argName("N")
+                .hasArg()
+                .desc("Print the N methods whose exclusive time changed the most (default is " +
+                        DEFAULT_SUMMARY_TOP + ")")
+                .build();
+
+        Option optionMapping = Option.builder()
+                .longOpt("mapping")
+                .argName("file")
+                .hasArg()
+                .desc("Deobfuscate the candidate trace with the mapping.txt of ProGuard or R8, " +
+                        "and also the baseline trace if --base-mapping is not given")
+                .build();
+
+        Option optionBaseMapping = Option.builder()
+                .longOpt("base-mapping")
+                .argName("file")
+                .hasArg()
+                .desc("Deobfuscate the baseline trace with its own mapping.txt")
+                .build();
+
+        Option optionHelp = Option.builder("h")
+                .longOpt("help")
+                .desc("Show this help information")
+                .build();
+
+        Options options = new Options();
+        options.addOption(optionThreshold);
+        options.addOption(optionTop);
+        options.addOption(optionMapping);
+        options.addOption(optionBaseMapping);
+        options.addOption(optionHelp);
 
-        StudioProfilerHack profiler = null;
+        final String usage = "MethodTracer.jar diff <baseline-trace> <candidate-trace>";
+        final String description = "Compare the methods of two trace files, " +
+                "exit with 1 if any threshold is exceeded";
+        final List<TraceDiff.Threshold> thresholds = new ArrayList<>();
+        final int top;
+        final String[] files;
+        final ProguardMapping[] mappings = new ProguardMapping[2];
         try {
-            int i;
-            for (i = 0; i < 10; i++) {
-                Thread.sleep(100);
-                if (adb.isConnected()) {
-                    break;
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption(optionHelp.getOpt())) {
+                new HelpFormatter().printHelp(usage, description, options, null, true);
+                return 0;
+            }
+            if (commandLine.getArgs().length != 2) {
+                throw new ParseException("Missing argument: <baseline-trace> <candidate-trace>");
+            }
+            files = commandLine.getArgs();
+
+            String[] values = commandLine.getOptionValues(optionThreshold.getLongOpt());
+            if (values != null) {
+                for (String value : values) {
+                    thresholds.add(TraceDiff.Threshold.parse(value));
                 }
             }
 
-            if (!adb.isConnected()) {
-                System.out.println("Couldn't connect to ADB server");
-                return;
+            String value = commandLine.getOptionValue(optionTop.getLongOpt());
+            top = value != null ? Integer.valueOf(value) : DEFAULT_SUMMARY_TOP;
+
+            value = commandLine.getOptionValue(optionMapping.getLongOpt());
+            if (value != null) {
+                mappings[1] = loadMapping(value);
             }
+            value = commandLine.getOptionValue(optionBaseMapping.getLongOpt());
+            mappings[0] = value != null ? loadMapping(value) : mappings[1];
 
-            for (i = 0; i < 10; i++) {
-                Thread.sleep(100);
-                if (adb.hasInitialDeviceList()) {
-                    break;
+        } catch (ParseException | IllegalArgumentException exception) {
+            System.out.println("Syntax error: " + exception.getMessage());
+            new HelpFormatter().printHelp(usage, description, options, null, true);
+            return 2;
+        }
+
+        // Decode both traces at the same time
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<TraceFile> traces = new ArrayList<>();
+        try {
+            List<Callable<MethodSummary>> tasks = new ArrayList<>();
+            for (int i = 0; i < files.length; i++) {
+                TraceFile trace = TraceFile.open(new File(files[i]));
+                traces.add(trace);
+                if (mappings[i] != null) {
+                    // Only in memory, the trace files are not modified
+                    trace.applyMapping(mappings[i]);
                 }
+                tasks.add(() -> MethodSummary.build(trace, false));
             }
 
-            if (!adb.hasInitialDeviceList() || adb.getDevices().length == 0) {
-                System.out.println("No connected devices");
-                return;
+            List<Future<MethodSummary>> futures = executor.invokeAll(tasks);
+            TraceDiff diff = new TraceDiff(futures.get(0).get(), futures.get(1).get());
+            diff.print(System.out, top);
+            if (thresholds.isEmpty()) {
+                return 0;
             }
 
-            IDevice device = null;
-            if (deviceNumber == null) {
-                device = adb.getDevices()[0];
-            } else {
-                for (IDevice d : adb.getDevices()) {
-                    if (deviceNumber.equals(d.getSerialNumber())) {
-                        device = d;
-                        break;
-                    }
-                }
+            System.out.println();
+            return diff.check(thresholds, System.out) ? 0 : 1;
 
-                if (device == null) {
-                    System.out.println("Device:" + deviceNumber + " not found.");
-                    return;
+        } catch (IOException | ExecutionException e) {
+            System.out.println("Read trace file failed: " + (e.getCause() != null ? e.getCause() : e).getMessage());
+            return 2;
+
+        } finally {
+            executor.shutdownNow();
+            for (TraceFile trace : traces) {
+                try {
+                    trace.close();
+                } catch (IOException ignored) {
                 }
             }
+        }
+    }
 
-            profiler = new StudioProfilerHack(
-                    device, packageName, perfdPort, samplingInterval, outputFile);
+    /**
+     * Extract some threads in a time range of a trace file into a smaller trace file
+     *
+     * @return the exit code
+     */
+    private static int slice(String[] args) {
+        Option optionThreads = Option.builder()
+                .longOpt("threads")
+                .argName("threads")
+                .hasArg()
+                .desc("Names or ids of the threads to keep, separated by commas (default is all threads)")
+                .build();
+
+        Option optionFrom = Option.builder()
+                .longOpt("from")
+                .argName("time")
+                .hasArg()
+                .desc("Start of the time range since the start of tracing, e.g. \"1.5s\", \"1500ms\" or " +
+                        "\"1500\" (milliseconds)")
+                .build();
 
-            if (profiler.startProfilingApp()) {
-                System.out.println("Start profiling...");
+        Option optionTo = Option.builder()
+                .longOpt("to")
+                .argName("time")
+                .hasArg()
+                .desc("End of the time range since the start of tracing")
+                .build();
 
-                if (time <= 0) {
-                    System.out.println("Enter to stop profiling");
-                    new Scanner(System.in).nextLine();
-                } else {
-                    Thread.sleep(time * 1000);
+        Option optionOut = Option.builder("o")
+                .argName("out-file")
+                .hasArg()
+                .desc("Output file name (default is \"<trace>-slice.trace\"), compressed if it ends with \".gz\"")
+                .build();
+
+        Option optionHelp = Option.builder("h")
+                .longOpt("help")
+                .desc("Show this help information")
+                .build();
+
+        Options options = new Options();
+        options.addOption(optionThreads);
+        options.addOption(optionFrom);
+        options.addOption(optionTo);
+        options.addOption(optionOut);
+        options.addOption(optionHelp);
+
+        final String usage = "MethodTracer.jar slice <trace>";
+        final String description = "Extract some threads in a time range of a trace file. " +
+                "An index is cached next to the trace, so the following slices only read the needed parts";
+        final String traceFile;
+        final String outputFile;
+        final String[] threads;
+        final long startTime;
+        final long endTime;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption(optionHelp.getOpt())) {
+                new HelpFormatter().printHelp(usage, description, options, null, true);
+                return 0;
+            }
+            if (commandLine.getArgs().length != 1) {
+                throw new ParseException("Missing argument: <trace>");
+            }
+            traceFile = commandLine.getArgs()[0];
+
+            String value = commandLine.getOptionValue(optionOut.getOpt());
+            outputFile = value != null ? value : insertBeforeExtension(
+                    BlockGzipWriter.isCompressed(traceFile) ? stripGzipExtension(traceFile) : traceFile, "-slice");
+
+            value = commandLine.getOptionValue(optionThreads.getLongOpt());
+            threads = value != null ? value.split(",") : null;
+
+            value = commandLine.getOptionValue(optionFrom.getLongOpt());
+            startTime = value != null ? parseMicros(value) : 0;
+            value = commandLine.getOptionValue(optionTo.getLongOpt());
+            endTime = value != null ? parseMicros(value) : Long.MAX_VALUE;
+
+        } catch (ParseException exception) {
+            System.out.println("Syntax error: " + exception.getMessage());
+            new HelpFormatter().printHelp(usage, description, options, null, true);
+            return 2;
+        }
+
+        try (TraceFile trace = TraceFile.open(new File(traceFile))) {
+            Set<Integer> threadIds = null;
+            if (threads != null) {
+                threadIds = new HashSet<>();
+                for (String thread : threads) {
+                    Integer threadId = threadIdOf(trace, thread.trim());
+                    if (threadId == null) {
+                        System.out.println("Unknown thread: " + thread.trim());
+                        return 2;
+                    }
+                    threadIds.add(threadId);
                 }
+            }
 
-                if (profiler.stopProfilingApp()) {
-                    System.out.println("Stop profiling success. The trace file has been saved to \"" + outputFile + "\"");
-                } else {
-                    System.out.println("Stop profiling failed.");
+            TraceIndex index = TraceIndex.load(trace);
+            TraceSlicer slicer = new TraceSlicer(trace, index);
+            long records;
+            if (BlockGzipWriter.isCompressed(outputFile)) {
+                File tempFile = new File(outputFile + ".part.trace");
+                try {
+                    records = slicer.write(tempFile, threadIds, startTime, endTime);
+                    try (TraceFile slice = TraceFile.open(tempFile)) {
+                        BlockGzipWriter.write(slice, new File(outputFile), ForkJoinPool.commonPool());
+                    }
+                } finally {
+                    tempFile.delete();
                 }
             } else {
-                System.out.println("Start profiling failed.");
+                records = slicer.write(new File(outputFile), threadIds, startTime, endTime);
             }
+            System.out.println(records + " records have been saved to \"" + outputFile + "\"");
+            return 0;
 
-        } catch (Exception e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            System.out.println("Slice trace file failed: " + e.getMessage());
+            return 2;
+        }
+    }
 
-        } finally {
-            if (profiler != null) {
-                profiler.terminate();
+    /**
+     * @return the id of the thread by its name or id, or null if it's not in the trace
+     */
+    private static Integer threadIdOf(TraceFile trace, String thread) {
+        for (Map.Entry<Integer, String> entry : trace.getThreads().entrySet()) {
+            if (entry.getValue().equals(thread)) {
+                return entry.getKey();
             }
-            AndroidDebugBridge.terminate();
         }
+        try {
+            int threadId = Integer.parseInt(thread);
+            return trace.getThreads().containsKey(threadId) ? threadId : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parse a time such as "1.5s", "1500ms" or "1500us", it's in milliseconds without a unit
+     */
+    private static long parseMicros(String value) throws ParseException {
+        double scale = 1000;
+        String number = value.trim();
+        if (number.endsWith("us")) {
+            scale = 1;
+            number = number.substring(0, number.length() - 2);
+        } else if (number.endsWith("ms")) {
+            number = number.substring(0, number.length() - 2);
+        } else if (number.endsWith("s")) {
+            scale = 1000 * 1000;
+            number = number.substring(0, number.length() - 1);
+        }
+        try {
+            return Math.round(Double.parseDouble(number) * scale);
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid time: " + value);
+        }
+    }
+
+    /**
+     * Merge many trace files of the same app into one profile, see {@link MergedProfile}
+     *
+     * @return the exit code
+     */
+    private static int merge(String[] args) {
+        Option optionOut = Option.builder("o")
+                .argName("out-prefix")
+                .hasArg()
+                .desc("Prefix of the output files \"<out-prefix>.folded\" and \"<out-prefix>.summary.json\" " +
+                        "(default is \"merged\")")
+                .build();
+
+        Option optionTop = Option.builder()
+                .longOpt("top")
+                .argName("N")
+                .hasArg()
+                .desc("List the top N methods by exclusive time (default is " + DEFAULT_SUMMARY_TOP + ")")
+                .build();
+
+        Option optionMapping = Option.builder()
+                .longOpt("mapping")
+                .argName("file")
+                .hasArg()
+                .desc("Deobfuscate the traces with the mapping.txt of ProGuard or R8")
+                .build();
+
+        Option optionParallelism = Option.builder()
+                .longOpt("parallelism")
+                .argName("N")
+                .hasArg()
+                .desc("The number of traces decoded at the same time (default is the number of cores)")
+                .build();
+
+        Option optionHelp = Option.builder("h")
+                .longOpt("help")
+                .desc("Show this help information")
+                .build();
+
+        Options options = new Options();
+        options.addOption(optionOut);
+        options.addOption(optionTop);
+        options.addOption(optionMapping);
+        options.addOption(optionParallelism);
+        options.addOption(optionHelp);
+
+        final String usage = "MethodTracer.jar merge <trace-or-directory>...";
+        final String description = "Merge the stacks and method times of many trace files or trace archives " +
+                "of the same app. The traces in a directory are merged as well";
+        final List<File> files = new ArrayList<>();
+        final String outputPrefix;
+        final int top;
+        final int parallelism;
+        ProguardMapping mapping = null;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption(optionHelp.getOpt())) {
+                new HelpFormatter().printHelp(usage, description, options, null, true);
+                return 0;
+            }
+            if (commandLine.getArgs().length == 0) {
+                throw new ParseException("Missing argument: <trace-or-directory>");
+            }
+            for (String arg : commandLine.getArgs()) {
+                File file = new File(arg);
+                if (file.isDirectory()) {
+                    File[] children = file.listFiles((dir, name) -> name.endsWith(".trace") ||
+                            name.endsWith(".trace" + BlockGzipWriter.EXTENSION) || TraceArchive.isArchive(name));
+                    if (children != null) {
+                        Arrays.sort(children);
+                        files.addAll(Arrays.asList(children));
+                    }
+                } else if (file.isFile()) {
+                    files.add(file);
+                } else {
+                    throw new ParseException("Trace file not found: " + arg);
+                }
+            }
+            if (files.isEmpty()) {
+                throw new ParseException("No trace files found");
+            }
+
+            String value = commandLine.getOptionValue(optionOut.getOpt());
+            outputPrefix = value != null ? value : "merged";
+            value = commandLine.getOptionValue(optionTop.getLongOpt());
+            top = value != null ? Integer.valueOf(value) : DEFAULT_SUMMARY_TOP;
+            value = commandLine.getOptionValue(optionParallelism.getLongOpt());
+            parallelism = value != null ? Integer.valueOf(value) : Runtime.getRuntime().availableProcessors();
+            if (parallelism <= 0) {
+                throw new ParseException("Invalid parallelism: " + value);
+            }
+            value = commandLine.getOptionValue(optionMapping.getLongOpt());
+            if (value != null) {
+                mapping = loadMapping(value);
+            }
+
+        } catch (ParseException | IllegalArgumentException exception) {
+            System.out.println("Syntax error: " + exception.getMessage());
+            new HelpFormatter().printHelp(usage, description, options, null, true);
+            return 2;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            System.out.println("Merging " + files.size() + " trace files...");
+            MergedProfile profile = MergedProfile.merge(files, mapping, pool);
+            if (profile.getTraceCount() == 0) {
+                System.out.println("No trace files could be read.");
+                return 2;
+            }
+
+            MergedProfileWriter writer = new MergedProfileWriter(profile, top);
+            writer.print(System.out);
+            File foldedFile = new File(outputPrefix + "." + TraceExporter.FORMAT_FOLDED);
+            File summaryFile = new File(outputPrefix + ".summary.json");
+            writer.writeFolded(foldedFile);
+            writer.writeJson(summaryFile);
+            System.out.println(profile.getTraceCount() + " traces with " + profile.getRecordCount() +
+                    " records have been merged into \"" + foldedFile + "\" and \"" + summaryFile + "\"");
+            return profile.getTraceCount() == files.size() ? 0 : 1;
+
+        } catch (IOException e) {
+            System.out.println("Write merged profile failed: " + e.getMessage());
+            return 2;
+
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Convert trace files to compact archives, see {@link TraceArchive}
+     *
+     * @return the exit code, 1 if any trace couldn't be archived
+     */
+    private static int archive(String[] args) {
+        Option optionOut = Option.builder("o")
+                .argName("out-file")
+                .hasArg()
+                .desc("Output file name when archiving one trace " +
+                        "(default is \"<trace>" + TraceArchive.EXTENSION + "\")")
+                .build();
+
+        Option optionDelete = Option.builder()
+                .longOpt("delete")
+                .desc("Delete the trace files which have been archived")
+                .build();
+
+        Option optionHelp = Option.builder("h")
+                .longOpt("help")
+                .desc("Show this help information")
+                .build();
+
+        Options options = new Options();
+        options.addOption(optionOut);
+        options.addOption(optionDelete);
+        options.addOption(optionHelp);
+
+        final String usage = "MethodTracer.jar archive <trace>...";
+        final String description = "Convert trace files to compact archives of the unique stacks, which keep " +
+                "every record and can be restored by the unarchive command. The merge command reads the archives " +
+                "without decoding their records";
+        final String[] traceFiles;
+        final String outputFile;
+        final boolean delete;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption(optionHelp.getOpt())) {
+                new HelpFormatter().printHelp(usage, description, options, null, true);
+                return 0;
+            }
+            traceFiles = commandLine.getArgs();
+            if (traceFiles.length == 0) {
+                throw new ParseException("Missing argument: <trace>");
+            }
+            outputFile = commandLine.getOptionValue(optionOut.getOpt());
+            if (outputFile != null && traceFiles.length > 1) {
+                throw new ParseException("The output file can only be set for one trace");
+            }
+            delete = commandLine.hasOption(optionDelete.getLongOpt());
+
+        } catch (ParseException exception) {
+            System.out.println("Syntax error: " + exception.getMessage());
+            new HelpFormatter().printHelp(usage, description, options, null, true);
+            return 2;
+        }
+
+        int failures = 0;
+        for (String traceFile : traceFiles) {
+            File file = new File(outputFile != null ? outputFile : stripExtension(traceFile) + TraceArchive.EXTENSION);
+            long traceSize;
+            try (TraceFile trace = TraceFile.open(new File(traceFile))) {
+                traceSize = trace.getFileSize();
+                TraceArchiveWriter.write(trace, file);
+            } catch (IOException e) {
+                System.out.println("Archive trace file \"" + traceFile + "\" failed: " + e.getMessage());
+                file.delete();
+                failures++;
+                continue;
+            }
+
+            System.out.println(String.format("\"%s\" has been archived to \"%s\", %d KB -> %d KB",
+                    traceFile, file, traceSize / 1024, file.length() / 1024));
+            if (delete) {
+                new File(traceFile).delete();
+            }
+        }
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Restore a trace file from its archive, see {@link TraceArchive}
+     *
+     * @return the exit code
+     */
+    private static int unarchive(String[] args) {
+        Option optionOut = Option.builder("o")
+                .argName("out-file")
+                .hasArg()
+                .desc("Output file name (default is \"<archive>.trace\"), compressed if it ends with \".gz\"")
+                .build();
+
+        Option optionHelp = Option.builder("h")
+                .longOpt("help")
+                .desc("Show this help information")
+                .build();
+
+        Options options = new Options();
+        options.addOption(optionOut);
+        options.addOption(optionHelp);
+
+        final String usage = "MethodTracer.jar unarchive <archive>";
+        final String description = "Restore the trace file from a trace archive";
+        final String archiveFile;
+        final String outputFile;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption(optionHelp.getOpt())) {
+                new HelpFormatter().printHelp(usage, description, options, null, true);
+                return 0;
+            }
+            if (commandLine.getArgs().length != 1) {
+                throw new ParseException("Missing argument: <archive>");
+            }
+            archiveFile = commandLine.getArgs()[0];
+
+            String value = commandLine.getOptionValue(optionOut.getOpt());
+            outputFile = value != null ? value : stripExtension(archiveFile) + ".trace";
+
+        } catch (ParseException exception) {
+            System.out.println("Syntax error: " + exception.getMessage());
+            new HelpFormatter().printHelp(usage, description, options, null, true);
+            return 2;
+        }
+
+        try (TraceArchive archive = TraceArchive.open(new File(archiveFile))) {
+            if (BlockGzipWriter.isCompressed(outputFile)) {
+                File tempFile = new File(outputFile + ".part.trace");
+                try {
+                    archive.restore(tempFile);
+                    try (TraceFile trace = TraceFile.open(tempFile)) {
+                        BlockGzipWriter.write(trace, new File(outputFile), ForkJoinPool.commonPool());
+                    }
+                } finally {
+                    tempFile.delete();
+                }
+            } else {
+                archive.restore(new File(outputFile));
+            }
+            System.out.println(archive.getRecordCount() + " records have been restored to \"" + outputFile + "\"");
+            return 0;
+
+        } catch (IOException e) {
+            System.out.println("Unarchive trace file failed: " + e.getMessage());
+            return 2;
+        }
+    }
+
+    /**
+     * Trace the apps listed in a scenario file, see {@link BatchCapture}
+     *
+     * @return the exit code, 1 if any scenario failed
+     */
+    private static int batch(String[] args) throws InterruptedException {
+        Option optionAdbPath = Option.builder("a")
+                .argName("adb_path")
+                .hasArg()
+                .desc("Path of adb")
+                .build();
+
+        Option optionPortNumber = Option.builder("p")
+                .argName("port")
+                .hasArg()
+                .desc("Port number of perfd")
+                .build();
+
+        Option optionHelp = Option.builder("h")
+                .longOpt("help")
+                .desc("Show this help information")
+                .build();
+
+        Option optionMaxTransfers = Option.builder()
+                .longOpt("max-transfers")
+                .argName("N")
+                .hasArg()
+                .desc("The max number of traces transferred from the devices at the same time (default is unlimited)")
+                .build();
+
+        Options options = new Options();
+        options.addOption(optionAdbPath);
+        options.addOption(optionPortNumber);
+        options.addOption(optionMaxTransfers);
+        options.addOption(optionHelp);
+
+        final String usage = "MethodTracer.jar batch <scenario-file>";
+        final String description = "Trace the apps listed in a JSON scenario file. The next app of a device " +
+                "starts tracing while the trace of the previous one is being received and post-processed";
+        final String adbPath;
+        final int perfdPort;
+        final List<Scenario> scenarios;
+        try {
+            CommandLine commandLine = new DefaultParser().parse(options, args);
+            if (commandLine.hasOption(optionHelp.getOpt())) {
+                new HelpFormatter().printHelp(usage, description, options, null, true);
+                return 0;
+            }
+            if (commandLine.getArgs().length != 1) {
+                throw new ParseException("Missing argument: <scenario-file>");
+            }
+            adbPath = commandLine.getOptionValue(optionAdbPath.getOpt());
+            String value = commandLine.getOptionValue(optionPortNumber.getOpt());
+            perfdPort = value != null ? Integer.valueOf(value) : new TraceOptions().perfdPort;
+            value = commandLine.getOptionValue(optionMaxTransfers.getLongOpt());
+            TransferLimiter.setMaxTransfers(value != null ? Integer.valueOf(value) : 0);
+
+            try {
+                scenarios = Scenario.read(new File(commandLine.getArgs()[0]));
+            } catch (IOException e) {
+                throw new ParseException(e.getMessage());
+            }
+
+        } catch (ParseException | IllegalArgumentException exception) {
+            System.out.println("Syntax error: " + exception.getMessage());
+            new HelpFormatter().printHelp(usage, description, options, null, true);
+            return 2;
+        }
+
+        // Wait for the devices named by the scenarios, or the first device
+        final Set<String> serials = new LinkedHashSet<>();
+        for (Scenario scenario : scenarios) {
+            if (scenario.device != null) {
+                serials.add(scenario.device);
+            }
+        }
+        final String deviceSerials = serials.isEmpty() ? null : String.join(",", serials);
+
+        AndroidDebugBridge adb = createBridge(adbPath);
+        AdbDeviceTracker tracker = AdbDeviceTracker.start();
+        try {
+            final AndroidDebugBridge bridge = adb;
+            AdbEventWaiter.await(() -> isConnected(bridge, tracker), ADB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!isConnected(adb, tracker)) {
+                System.out.println("Couldn't connect to ADB server");
+                return 2;
+            }
+            AdbEventWaiter.await(() -> areDevicesReady(bridge, tracker, deviceSerials),
+                    ADB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+            List<IDevice> devices = new ArrayList<>();
+            for (IDevice device : adb.getDevices()) {
+                if (device.isOnline()) {
+                    devices.add(device);
+                }
+            }
+            if (devices.isEmpty()) {
+                System.out.println("No connected devices");
+                return 2;
+            }
+
+            int succeeded = new BatchCapture(scenarios, perfdPort).run(devices);
+            System.out.println(succeeded + " of " + scenarios.size() + " scenarios succeeded.");
+            return succeeded == scenarios.size() ? 0 : 1;
+
+        } finally {
+            tracker.close();
+            AndroidDebugBridge.terminate();
+        }
+    }
+
+    /**
+     * Load the mapping file, its parsed index is cached across runs
+     */
+    private static ProguardMapping loadMapping(String mappingFile) throws ParseException {
+        try {
+            return ProguardMapping.load(new File(mappingFile), new File(PerfdCache.getCacheDir(), "mapping"));
+        } catch (IOException e) {
+            throw new ParseException("Read mapping file " + mappingFile + " failed: " + e.getMessage());
+        }
+    }
+
+    private static String stripGzipExtension(String file) {
+        return file.substring(0, file.length() - BlockGzipWriter.EXTENSION.length());
+    }
+
+    private static AndroidDebugBridge createBridge(String adbPath) {
+        AndroidDebugBridge.initIfNeeded(true);
+        if (adbPath != null) {
+            return AndroidDebugBridge.createBridge(adbPath, false);
+        } else {
+            return AndroidDebugBridge.createBridge();
+        }
+    }
+
+    private static void daemon(String adbPath, int perfdPort, int controlPort, File outputDir)
+            throws InterruptedException {
+        AndroidDebugBridge adb = createBridge(adbPath);
+        AdbDeviceTracker tracker = AdbDeviceTracker.start();
+        try {
+            final AndroidDebugBridge bridge = adb;
+            AdbEventWaiter.await(() -> isConnected(bridge, tracker), ADB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            tracker.close();
+            if (!isConnected(adb, tracker)) {
+                System.out.println("Couldn't connect to ADB server");
+                return;
+            }
+
+            new TraceDaemon(adb, perfdPort, outputDir).run(controlPort);
+
+        } catch (IOException e) {
+            System.out.println("Couldn't listen on the control port " + controlPort);
+
+        } finally {
+            tracker.close();
+            AndroidDebugBridge.terminate();
+        }
+    }
+
+    private static void trace(TraceOptions options) throws InterruptedException {
+        final String deviceSerials = options.deviceSerials;
+        final SessionMetrics metrics = options.metricsFile != null ? new SessionMetrics() : SessionMetrics.DISABLED;
+        final long totalStart = metrics.start();
+        long start = metrics.start();
+        AndroidDebugBridge adb = createBridge(options.adbPath);
+        AdbDeviceTracker tracker = AdbDeviceTracker.start();
+
+        List<StudioProfilerHack> profilers = new ArrayList<>();
+        ExecutorService executor = null;
+        try {
+            // Wait until the bridge is connected and the target devices are online
+            final AndroidDebugBridge bridge = adb;
+            AdbEventWaiter.await(() -> isConnected(bridge, tracker), ADB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            metrics.end(SessionMetrics.PHASE_ADB_CONNECT, start);
+            if (!isConnected(adb, tracker)) {
+                System.out.println("Couldn't connect to ADB server");
+                return;
+            }
+
+            start = metrics.start();
+            AdbEventWaiter.await(() -> areDevicesReady(bridge, tracker, deviceSerials),
+                    ADB_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            metrics.end(SessionMetrics.PHASE_DEVICE_WAIT, start);
+
+            if (adb.getDevices().length == 0) {
+                System.out.println("No connected devices");
+                return;
+            }
+
+            List<IDevice> devices = selectDevices(adb.getDevices(), deviceSerials);
+            if (devices == null) {
+                return;
+            }
+
+            final boolean multiple = devices.size() > 1;
+            if (options.segmentSeconds > 0) {
+                executor = Executors.newFixedThreadPool(devices.size());
+                traceRolling(executor, devices, options, metrics);
+                return;
+            }
+            if (options.startPattern != null) {
+                executor = Executors.newFixedThreadPool(devices.size());
+                traceTriggered(executor, devices, options, metrics);
+                return;
+            }
+            if (options.coldStartActivity != null) {
+                executor = Executors.newFixedThreadPool(devices.size());
+                traceColdStart(executor, devices, options, metrics);
+                return;
+            }
+            if (options.iterations > 1) {
+                executor = Executors.newFixedThreadPool(devices.size());
+                traceIterations(executor, devices, options, metrics);
+                return;
+            }
+
+            for (IDevice device : devices) {
+                StudioProfilerHack profiler = new StudioProfilerHack(device, options.packageName, options.perfdPort,
+                        options.samplingInterval, multiple ? outputFileOf(options.outputFile, device) : options.outputFile);
+                if (options.deviceFile != null) {
+                    profiler.setDeviceFile(options.deviceFile, options.deviceBufferBytes);
+                }
+                profiler.getConnection().setMetrics(metrics.forDevice(device.getSerialNumber()));
+                profiler.setTelemetryEnabled(options.telemetry);
+                profilers.add(profiler);
+            }
+
+            // Deploying perfd is slow, so every device is prepared ahead and then all of them are started
+            // or stopped together in one phase
+            executor = Executors.newFixedThreadPool(Math.min(devices.size(), MAX_PARALLEL_DEVICES));
+            List<StudioProfilerHack> started = runOnAll(executor, profilers, StudioProfilerHack::prepareProfiling);
+            if (options.intervalBudget > 0) {
+                final IntervalCalibrator calibrator = new IntervalCalibrator(options.intervalBudget);
+                started = runOnAll(executor, started, profiler -> calibrate(profiler, calibrator, multiple));
+            }
+            started = runOnAll(executor, started, StudioProfilerHack::startProfilingApp);
+
+            for (StudioProfilerHack profiler : profilers) {
+                if (!started.contains(profiler)) {
+                    System.out.println(prefixOf(profiler, multiple) + "Start profiling failed.");
+                }
+            }
+            if (started.isEmpty()) {
+                return;
+            }
+
+            System.out.println("Start profiling...");
+
+            if (options.time <= 0) {
+                System.out.println("Enter to stop profiling");
+                new Scanner(System.in).nextLine();
+            } else {
+                Thread.sleep(options.time * 1000);
+            }
+
+            List<StudioProfilerHack> stopped = runOnAll(executor, started, StudioProfilerHack::stopProfilingApp);
+            for (StudioProfilerHack profiler : started) {
+                if (stopped.contains(profiler)) {
+                    System.out.println(prefixOf(profiler, multiple) +
+                            "Stop profiling success. The trace file has been saved to \"" + profiler.getOutputFile() + "\"");
+                    TraceExporter.export(profiler.getOutputFile(), options, prefixOf(profiler, multiple));
+                } else {
+                    System.out.println(prefixOf(profiler, multiple) + "Stop profiling failed.");
+                }
+            }
+
+        } catch (Exception e) {
+            e.printStackTrace();
+
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            for (StudioProfilerHack profiler : profilers) {
+                profiler.terminate();
+            }
+            AndroidDebugBridge.terminate();
+
+            if (options.metricsFile != null) {
+                metrics.end(SessionMetrics.PHASE_TOTAL, totalStart);
+                try {
+                    metrics.write(new File(options.metricsFile));
+                    System.out.println("The metrics have been saved to \"" + options.metricsFile + "\"");
+                } catch (IOException e) {
+                    System.out.println("Save metrics failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void traceRolling(ExecutorService executor, List<IDevice> devices, TraceOptions options,
+                                     SessionMetrics metrics) throws InterruptedException {
+        final boolean multiple = devices.size() > 1;
+        final List<PerfdConnection> connections = new ArrayList<>();
+        final List<RollingCapture> captures = new ArrayList<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        // Ctrl-C or kill freezes the ring before exiting
+        Thread shutdownHook = new Thread(() -> {
+            for (RollingCapture capture : captures) {
+                capture.requestStop(true);
+            }
+            try {
+                finished.await(PROFILING_STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException ignored) {
+            }
+        });
+
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (IDevice device : devices) {
+                PerfdConnection connection = new PerfdConnection(device, options.perfdPort);
+                connection.setMetrics(metrics.forDevice(device.getSerialNumber()));
+                connections.add(connection);
+                RollingCapture capture = new RollingCapture(connection, options.packageName, options.samplingInterval,
+                        multiple ? outputFileOf(options.outputFile, device) : options.outputFile,
+                        options.segmentSeconds, options.ringCount, options.ringBytes);
+                if (options.deviceFile != null) {
+                    capture.setDeviceFile(options.deviceFile, options.deviceBufferBytes);
+                }
+                if (options.intervalBudget > 0) {
+                    capture.setCalibrator(new IntervalCalibrator(options.intervalBudget));
+                }
+                capture.setMapping(options.mapping);
+                captures.add(capture);
+                tasks.add(connection::connect);
+            }
+            executor.invokeAll(tasks);
+
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (RollingCapture capture : captures) {
+                futures.add(executor.submit(() -> capture.run(options.time)));
+            }
+
+            System.out.println("Start rolling capture... Enter to freeze the kept segments, \"q\" to stop");
+            Thread inputThread = new Thread(() -> {
+                Scanner scanner = new Scanner(System.in);
+                while (scanner.hasNextLine()) {
+                    boolean stop = "q".equals(scanner.nextLine().trim());
+                    for (RollingCapture capture : captures) {
+                        if (stop) {
+                            capture.requestStop(false);
+                        } else {
+                            capture.requestFreeze();
+                        }
+                    }
+                }
+            });
+            inputThread.setDaemon(true);
+            inputThread.start();
+
+            for (int i = 0; i < futures.size(); i++) {
+                String prefix = multiple ? "[" + devices.get(i).getSerialNumber() + "] " : "";
+                try {
+                    if (!futures.get(i).get()) {
+                        System.out.println(prefix + "Rolling capture failed.");
+                    }
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+            System.out.println("Rolling capture finished.");
+
+        } finally {
+            for (PerfdConnection connection : connections) {
+                connection.close();
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException ignored) {
+                // Shutting down
+            }
+            finished.countDown();
+        }
+    }
+
+    private static void traceTriggered(ExecutorService executor, List<IDevice> devices, TraceOptions options,
+                                       SessionMetrics metrics) throws InterruptedException {
+        final boolean multiple = devices.size() > 1;
+        final List<PerfdConnection> connections = new ArrayList<>();
+        final List<String> outputFiles = new ArrayList<>();
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (IDevice device : devices) {
+                final PerfdConnection connection = new PerfdConnection(device, options.perfdPort);
+                connection.setMetrics(metrics.forDevice(device.getSerialNumber()));
+                connections.add(connection);
+                outputFiles.add(multiple ? outputFileOf(options.outputFile, device) : options.outputFile);
+                final TriggeredCapture capture = new TriggeredCapture(connection, options.packageName,
+                        options.samplingInterval, outputFiles.get(outputFiles.size() - 1),
+                        options.startPattern, options.stopPattern,
+                        options.preRollSeconds, options.postRollSeconds, options.time);
+                if (options.deviceFile != null) {
+                    capture.setDeviceFile(options.deviceFile, options.deviceBufferBytes);
+                }
+                tasks.add(() -> connection.connect() && capture.run());
+            }
+
+            List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                String prefix = multiple ? "[" + devices.get(i).getSerialNumber() + "] " : "";
+                try {
+                    if (futures.get(i).get()) {
+                        TraceExporter.export(outputFiles.get(i), options, prefix);
+                    } else {
+                        System.out.println(prefix + "Triggered capture failed.");
+                    }
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        } finally {
+            for (PerfdConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    private static void traceColdStart(ExecutorService executor, List<IDevice> devices, TraceOptions options,
+                                       SessionMetrics metrics) throws InterruptedException {
+        final boolean multiple = devices.size() > 1;
+        final List<StudioProfilerHack> profilers = new ArrayList<>();
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (IDevice device : devices) {
+                // perfd is not needed, the profiler of the platform is used
+                StudioProfilerHack profiler = new StudioProfilerHack(device, options.packageName, options.perfdPort,
+                        options.samplingInterval, multiple ? outputFileOf(options.outputFile, device) : options.outputFile);
+                profiler.getConnection().setMetrics(metrics.forDevice(device.getSerialNumber()));
+                profilers.add(profiler);
+                ColdStartCapture capture = new ColdStartCapture(profiler, options.samplingInterval,
+                        options.coldStartActivity, options.deviceFile, options.time);
+                tasks.add(capture::run);
+            }
+
+            System.out.println("Start profiling the cold start...");
+            List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                StudioProfilerHack profiler = profilers.get(i);
+                try {
+                    if (futures.get(i).get()) {
+                        System.out.println(prefixOf(profiler, multiple) +
+                                "Stop profiling success. The trace file has been saved to \"" + profiler.getOutputFile() + "\"");
+                        TraceExporter.export(profiler.getOutputFile(), options, prefixOf(profiler, multiple));
+                    } else {
+                        System.out.println(prefixOf(profiler, multiple) + "Cold start profiling failed.");
+                    }
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+            }
+
+        } finally {
+            for (StudioProfilerHack profiler : profilers) {
+                profiler.terminate();
+            }
+        }
+    }
+
+    private static void traceIterations(ExecutorService executor, List<IDevice> devices, TraceOptions options,
+                                        SessionMetrics metrics) throws InterruptedException {
+        final boolean multiple = devices.size() > 1;
+        final List<PerfdConnection> connections = new ArrayList<>();
+        final List<IterationCapture> captures = new ArrayList<>();
+        final List<String> outputFiles = new ArrayList<>();
+        try {
+            List<Callable<Boolean>> tasks = new ArrayList<>();
+            for (IDevice device : devices) {
+                final PerfdConnection connection = new PerfdConnection(device, options.perfdPort);
+                connection.setMetrics(metrics.forDevice(device.getSerialNumber()));
+                connections.add(connection);
+                outputFiles.add(multiple ? outputFileOf(options.outputFile, device) : options.outputFile);
+                final IterationCapture capture = new IterationCapture(connection, options.packageName,
+                        options.samplingInterval, outputFiles.get(outputFiles.size() - 1),
+                        options.iterations, options.time, options.betweenCommand);
+                if (options.deviceFile != null) {
+                    capture.setDeviceFile(options.deviceFile, options.deviceBufferBytes);
+                }
+                capture.setMapping(options.mapping);
+                captures.add(capture);
+                tasks.add(() -> connection.connect() && capture.run());
+            }
+
+            System.out.println("Start profiling " + options.iterations + " iterations...");
+            List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                String prefix = multiple ? "[" + devices.get(i).getSerialNumber() + "] " : "";
+                try {
+                    if (!futures.get(i).get()) {
+                        System.out.println(prefix + "Iterated capture failed.");
+                    }
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                }
+
+                // Report the completed iterations even if a later one failed
+                IterationStats stats = captures.get(i).getStats();
+                if (stats.getCount() == 0) {
+                    continue;
+                }
+                IterationSummaryWriter summary = new IterationSummaryWriter(stats,
+                        options.summaryTop > 0 ? options.summaryTop : DEFAULT_SUMMARY_TOP);
+                System.out.print(prefix);
+                summary.print(System.out);
+                File file = new File(stripExtension(outputFiles.get(i)) + ".iterations.json");
+                try {
+                    summary.writeJson(file);
+                    System.out.println(prefix + "The stats of iterations have been saved to \"" + file + "\"");
+                } catch (IOException e) {
+                    System.out.println(prefix + "Save the stats of iterations failed: " + e.getMessage());
+                }
+            }
+
+        } finally {
+            for (PerfdConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return whether the adb server has reported its device list, to the tracker or to the bridge
+     */
+    private static boolean isConnected(AndroidDebugBridge adb, AdbDeviceTracker tracker) {
+        return tracker.hasDeviceList() || (adb.isConnected() && adb.hasInitialDeviceList());
+    }
+
+    /**
+     * The devices reported by the adb server are only ready once the bridge has them online too,
+     * which it reports by the device events
+     */
+    private static boolean areDevicesReady(AndroidDebugBridge adb, AdbDeviceTracker tracker, String deviceSerials) {
+        IDevice[] devices = adb.getDevices();
+        Map<String, String> trackedDevices = tracker.getDevices();
+        if (deviceSerials == null) {
+            // There is no device to wait for
+            if (trackedDevices != null && !trackedDevices.containsValue(AdbDeviceTracker.STATE_ONLINE)) {
+                return true;
+            }
+            return devices.length > 0 && devices[0].isOnline();
+        }
+        if ("all".equals(deviceSerials)) {
+            if (trackedDevices == null) {
+                if (!adb.hasInitialDeviceList() || devices.length == 0) {
+                    return false;
+                }
+                for (IDevice device : devices) {
+                    if (!device.isOnline()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            for (Map.Entry<String, String> entry : trackedDevices.entrySet()) {
+                if (AdbDeviceTracker.STATE_ONLINE.equals(entry.getValue()) && !isOnline(devices, entry.getKey())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        for (String serial : deviceSerials.split(",")) {
+            serial = serial.trim();
+            if (serial.isEmpty()) {
+                continue;
+            }
+
+            if (!isOnline(devices, serial)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOnline(IDevice[] devices, String serial) {
+        for (IDevice device : devices) {
+            if (serial.equals(device.getSerialNumber())) {
+                return device.isOnline();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return null if any of the specified devices is not found
+     */
+    private static List<IDevice> selectDevices(IDevice[] connectedDevices, String deviceSerials) {
+        if (deviceSerials == null) {
+            return Arrays.asList(connectedDevices[0]);
+        }
+        if ("all".equals(deviceSerials)) {
+            List<IDevice> devices = new ArrayList<>();
+            for (IDevice device : connectedDevices) {
+                if (device.isOnline()) {
+                    devices.add(device);
+                }
+            }
+            if (devices.isEmpty()) {
+                System.out.println("No connected devices");
+                return null;
+            }
+            return devices;
+        }
+
+        List<IDevice> devices = new ArrayList<>();
+        for (String serial : deviceSerials.split(",")) {
+            serial = serial.trim();
+            if (serial.isEmpty()) {
+                continue;
+            }
+
+            IDevice device = null;
+            for (IDevice d : connectedDevices) {
+                if (serial.equals(d.getSerialNumber())) {
+                    device = d;
+                    break;
+                }
+            }
+
+            if (device == null) {
+                System.out.println("Device:" + serial + " not found.");
+                return null;
+            }
+            if (!devices.contains(device)) {
+                devices.add(device);
+            }
+        }
+
+        if (devices.isEmpty()) {
+            System.out.println("No connected devices");
+            return null;
+        }
+        return devices;
+    }
+
+    /**
+     * Calibrate the sampling interval of the profiler on its device
+     *
+     * @return false if the calibration failed
+     */
+    private static boolean calibrate(StudioProfilerHack profiler, IntervalCalibrator calibrator, boolean multiple) {
+        try {
+            int interval = calibrator.calibrate(profiler.getConnection(), profiler.getPackageName(),
+                    stripExtension(profiler.getOutputFile()) + "-calibration.trace");
+            if (interval < 0) {
+                return false;
+            }
+            System.out.println(prefixOf(profiler, multiple) + "Use the sampling interval " + interval + " us");
+            profiler.setSamplingInterval(interval);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Run the action for all profilers on the executor and wait for them
+     *
+     * @return the profilers whose action succeeded
+     */
+    private static List<StudioProfilerHack> runOnAll(ExecutorService executor, List<StudioProfilerHack> profilers,
+                                                     Predicate<StudioProfilerHack> action) throws InterruptedException {
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (StudioProfilerHack profiler : profilers) {
+            tasks.add(() -> action.test(profiler));
+        }
+
+        List<Future<Boolean>> futures = executor.invokeAll(tasks);
+        List<StudioProfilerHack> succeeded = new ArrayList<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                if (futures.get(i).get()) {
+                    succeeded.add(profilers.get(i));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Insert the serial number of device before the extension of output file, e.g. "out-emulator-5554.trace"
+     */
+    static String outputFileOf(String outputFile, IDevice device) {
+        return outputFileOf(outputFile, device.getSerialNumber());
+    }
+
+    /**
+     * Insert the serial number of the device before the extension, e.g. "out-emulator-5554.trace"
+     */
+    static String outputFileOf(String outputFile, String serial) {
+        return insertBeforeExtension(outputFile, "-" + serial.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    static String insertBeforeExtension(String file, String suffix) {
+        int dot = extensionIndexOf(file);
+        return dot < 0 ? file + suffix : file.substring(0, dot) + suffix + file.substring(dot);
+    }
+
+    static String stripExtension(String file) {
+        int dot = extensionIndexOf(file);
+        return dot < 0 ? file : file.substring(0, dot);
+    }
+
+    /**
+     * @return the index of the extension, where "out.trace.gz" has the extension ".trace.gz",
+     * and "com.example.app.trace" has ".trace". Other files have the extension after the last dot.
+     */
+    private static int extensionIndexOf(String file) {
+        int slash = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'));
+        for (String extension : TRACE_EXTENSIONS) {
+            if (file.endsWith(extension) && file.length() - extension.length() > slash + 1) {
+                return file.length() - extension.length();
+            }
+        }
+        int dot = file.lastIndexOf('.');
+        return dot <= slash + 1 ? -1 : dot;
+    }
+
+    private static String prefixOf(StudioProfilerHack profiler, boolean multiple) {
+        return multiple ? "[" + profiler.getDevice().getSerialNumber() + "] " : "";
     }
 }
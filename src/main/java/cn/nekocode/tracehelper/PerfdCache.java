@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.MultiLineReceiver;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+/**
+ * Content-hash cache of the files deployed to devices.
+ * perfd is extracted from the jar once per ABI and content, and the md5 of deployed files is compared
+ * with the one on the device before pushing, so unchanged files are never re-extracted or re-pushed.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class PerfdCache {
+    private static final Map<String, CachedFile> sPerfdFiles = new ConcurrentHashMap<>();
+
+
+    private PerfdCache() {
+    }
+
+    static final class CachedFile {
+        final File file;
+        final String md5;
+
+        CachedFile(File file, String md5) {
+            this.file = file;
+            this.md5 = md5;
+        }
+    }
+
+    /**
+     * Find the perfd for the first supported abi and extract it to the cache directory if necessary
+     *
+     * @return null if there is no perfd for the abis
+     */
+    static CachedFile getPerfd(List<String> abis) throws IOException {
+        URL url = Thread.currentThread().getContextClassLoader().getResource("perfd");
+        if (url == null) {
+            return null;
+        }
+
+        for (String abi : abis) {
+            CachedFile cached = sPerfdFiles.get(abi);
+            if (cached != null && cached.file.exists()) {
+                return cached;
+            }
+
+            if ("jar".equals(url.getProtocol())) {
+                String jarPath = url.getPath().substring(5).split("!")[0];
+                try (JarFile jarFile = new JarFile(jarPath)) {
+                    ZipEntry entry = jarFile.getEntry("perfd/" + abi + "/perfd");
+                    if (entry == null) {
+                        continue;
+                    }
+
+                    // The crc and size of the entry identify its content without reading it
+                    File dir = new File(getCacheDir(), String.format("perfd/%s-%08x-%d",
+                            abi, entry.getCrc(), entry.getSize()));
+                    File perfd = new File(dir, "perfd");
+                    File md5File = new File(dir, "perfd.md5");
+                    if (!perfd.exists() || !md5File.exists()) {
+                        dir.mkdirs();
+                        File tmp = File.createTempFile("perfd", ".tmp", dir);
+                        try (InputStream in = jarFile.getInputStream(entry)) {
+                            Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        }
+                        Files.write(md5File.toPath(), md5(tmp).getBytes(StandardCharsets.UTF_8));
+                        Files.move(tmp.toPath(), perfd.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+
+                    cached = new CachedFile(perfd,
+                            new String(Files.readAllBytes(md5File.toPath()), StandardCharsets.UTF_8).trim());
+                }
+
+            } else if ("file".equals(url.getProtocol())) {
+                File perfd = new File(url.getPath(), abi + "/perfd");
+                if (!perfd.exists()) {
+                    continue;
+                }
+                cached = new CachedFile(perfd, md5(perfd));
+
+            } else {
+                return null;
+            }
+
+            sPerfdFiles.put(abi, cached);
+            return cached;
+        }
+
+        return null;
+    }
+
+    /**
+     * Write the content to the cache directory if there isn't a file with the same content
+     */
+    static CachedFile getFile(String name, byte[] content) throws IOException {
+        String md5 = md5(content);
+        File file = new File(getCacheDir(), md5 + "-" + name);
+        if (!file.exists()) {
+            file.getParentFile().mkdirs();
+            File tmp = File.createTempFile(name, ".tmp", file.getParentFile());
+            Files.write(tmp.toPath(), content);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        return new CachedFile(file, md5);
+    }
+
+    /**
+     * Get the md5 of remote files through a single shell call
+     *
+     * @return map from remote path to md5, files which don't exist are absent
+     */
+    static Map<String, String> getRemoteMd5s(IDevice device, String... remotePaths) {
+        final Map<String, String> md5s = new HashMap<>();
+        StringBuilder command = new StringBuilder("md5sum");
+        for (String path : remotePaths) {
+            command.append(' ').append(path);
+        }
+        command.append(" 2>/dev/null");
+
+        try {
+            device.executeShellCommand(command.toString(), new MultiLineReceiver() {
+                @Override
+                public void processNewLines(String[] lines) {
+                    for (String line : lines) {
+                        String[] fields = line.trim().split("\\s+");
+                        if (fields.length == 2 && fields[0].length() == 32) {
+                            md5s.put(fields[1], fields[0].toLowerCase());
+                        }
+                    }
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+            }, 10, TimeUnit.SECONDS);
+        } catch (Exception ignored) {
+            // Devices without md5sum just get the files pushed again
+        }
+
+        return md5s;
+    }
+
+    static String md5(File file) throws IOException {
+        MessageDigest digest = newMd5();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String md5(byte[] content) {
+        return toHex(newMd5().digest(content));
+    }
+
+    private static MessageDigest newMd5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    static File getCacheDir() {
+        return new File(System.getProperty("java.io.tmpdir"), "method-tracer-cache");
+    }
+}
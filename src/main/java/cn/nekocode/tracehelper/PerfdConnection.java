@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.*;
+import com.android.tools.profiler.proto.Agent;
+import org.apache.commons.io.Charsets;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * perfd running on a device and the adb forward to its port.
+ * It can be shared by several profiling sessions on the same device, so it's only deployed once.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class PerfdConnection {
+    private static final long PERFD_START_TIMEOUT_SECONDS = 30;
+    private static final int MAX_FORWARD_ATTEMPTS = 3;
+
+    private final IDevice mDevice;
+    private final int mPerfdPort;
+    private final ForwardPortPool mPorts;
+    private int mLocalPort;
+    private RemotePerfdThread mPerfdThread;
+    private boolean mIsForwarded = false;
+    private volatile SessionMetrics mMetrics = SessionMetrics.DISABLED;
+
+
+    public PerfdConnection(IDevice device, int perfdPort) {
+        this(device, perfdPort, ForwardPortPool.getDefault());
+    }
+
+    PerfdConnection(IDevice device, int perfdPort, ForwardPortPool ports) {
+        this.mDevice = device;
+        this.mPerfdPort = perfdPort;
+        this.mPorts = ports;
+    }
+
+    public IDevice getDevice() {
+        return mDevice;
+    }
+
+    public int getPerfdPort() {
+        return mPerfdPort;
+    }
+
+    /**
+     * Record the phases of connecting and of the profiling sessions using this connection
+     */
+    public void setMetrics(SessionMetrics metrics) {
+        this.mMetrics = metrics;
+    }
+
+    public SessionMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    public synchronized int getLocalPort() {
+        return mLocalPort;
+    }
+
+    /**
+     * @return true if perfd is still running and its port is forwarded
+     */
+    public synchronized boolean isConnected() {
+        return mPerfdThread != null && mPerfdThread.isAlive() && mPerfdThread.mListening.getNow(false)
+                && mIsForwarded;
+    }
+
+    /**
+     * Copy and run perfd on the device and forward its port, unless it's already connected
+     */
+    public synchronized boolean connect() {
+        if (isConnected()) {
+            return true;
+        }
+        close();
+
+        if (!runAndWaitForRemotePerfdThreadSuccess()) {
+            if (!Thread.currentThread().isInterrupted()) {
+                // If the remote perdf process is not running
+                System.out.println("Copy and excute perdf failed.");
+            }
+            return false;
+        }
+
+        return forward();
+    }
+
+    /**
+     * Forward a port leased from the pool to the perfd port, the port is released by {@link #close()}
+     */
+    synchronized boolean forward() {
+        long forwardStart = mMetrics.start();
+        for (int attempt = 0; attempt < MAX_FORWARD_ATTEMPTS; attempt++) {
+            int port;
+            try {
+                port = mPorts.acquire();
+            } catch (IOException e) {
+                System.out.println("Create adb forward failed. " + e.getMessage());
+                return false;
+            }
+
+            try {
+                mDevice.createForward(port, mPerfdPort);
+            } catch (Exception e) {
+                // Another process may have bound the port since it was probed, try the next one
+                mPorts.release(port);
+                continue;
+            }
+            mLocalPort = port;
+            mIsForwarded = true;
+            mMetrics.end(SessionMetrics.PHASE_ADB_FORWARD, forwardStart);
+            return true;
+        }
+
+        System.out.println("Create adb forward failed.");
+        return false;
+    }
+
+    public synchronized void close() {
+        if (mPerfdThread != null) {
+            mPerfdThread.interrupt();
+            mPerfdThread = null;
+        }
+
+        if (mIsForwarded) {
+            mIsForwarded = false;
+            try {
+                mDevice.removeForward(mLocalPort, mPerfdPort);
+            } catch (Exception ignored) {
+            }
+            mPorts.release(mLocalPort);
+        }
+    }
+
+    private boolean runAndWaitForRemotePerfdThreadSuccess() {
+        RemotePerfdThread perfdThread = new RemotePerfdThread();
+        mPerfdThread = perfdThread;
+        perfdThread.start();
+
+        try {
+            return perfdThread.mListening.get(PERFD_START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            perfdThread.interrupt();
+            return false;
+
+        } catch (ExecutionException | java.util.concurrent.TimeoutException e) {
+            perfdThread.interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Copy perfd to device and excute it
+     */
+    private class RemotePerfdThread extends Thread {
+        private final CompletableFuture<Boolean> mListening = new CompletableFuture<>();
+
+
+        @Override
+        public void run() {
+            try {
+                String deviceDir = "/data/local/tmp/perfd/";
+                deployToDevice(deviceDir);
+
+                // Measured until perfd reports it's listening
+                final long perfdStart = mMetrics.start();
+                mDevice.executeShellCommand(deviceDir + "perfd -config_file=" + deviceDir + "agent.config",
+                        new IShellOutputReceiver() {
+                            @Override
+                            public void addOutput(byte[] data, int offset, int length) {
+                                String s = new String(data, offset, length, Charsets.UTF_8);
+                                if (s.startsWith("Server listening on")) {
+                                    mMetrics.end(SessionMetrics.PHASE_PERFD_START, perfdStart);
+                                    mListening.complete(true);
+                                } else if (!mListening.isDone()) {
+                                    mListening.complete(false);
+                                    Thread.currentThread().interrupt();
+                                }
+                            }
+
+                            @Override
+                            public void flush() {
+                            }
+
+                            @Override
+                            public boolean isCancelled() {
+                                return false;
+                            }
+                        }, 0L, null);
+
+            } catch (Exception ingred) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // perfd has exited
+                mListening.complete(false);
+            }
+        }
+
+        /**
+         * Push perfd and agent.config to device unless the same files are already there
+         */
+        private void deployToDevice(String deviceDir) throws Exception {
+            final String perfdFileName = "perfd";
+            final String agentFileName = "agent.config";
+
+            final SessionMetrics metrics = mMetrics;
+            long start = metrics.start();
+            PerfdCache.CachedFile perfd = PerfdCache.getPerfd(mDevice.getAbis());
+            if (perfd == null) {
+                throw new Exception("Cannot find perfd.");
+            }
+            PerfdCache.CachedFile agentConfig = PerfdCache.getFile(agentFileName, createAgentConfig());
+            metrics.end(SessionMetrics.PHASE_PERFD_EXTRACT, start);
+
+            start = metrics.start();
+            Map<String, String> remoteMd5s = PerfdCache.getRemoteMd5s(mDevice,
+                    deviceDir + perfdFileName, deviceDir + agentFileName);
+            metrics.end(SessionMetrics.PHASE_PERFD_CHECK, start);
+
+            start = metrics.start();
+            if (!perfd.md5.equals(remoteMd5s.get(deviceDir + perfdFileName))) {
+                pushPerfdToDevice(perfd.file, deviceDir);
+            }
+            if (!agentConfig.md5.equals(remoteMd5s.get(deviceDir + agentFileName))) {
+                mDevice.executeShellCommand("rm -f " + deviceDir + agentFileName, new NullOutputReceiver());
+                mDevice.pushFile(agentConfig.file.getAbsolutePath(), deviceDir + agentFileName);
+            }
+            metrics.end(SessionMetrics.PHASE_PERFD_PUSH, start);
+        }
+
+        private void pushPerfdToDevice(File file, String deviceDir)
+                throws AdbCommandRejectedException, IOException {
+
+            final String perfdFileName = "perfd";
+            try {
+                mDevice.executeShellCommand("mkdir -p " + deviceDir + "; rm -f " + deviceDir + perfdFileName,
+                        new NullOutputReceiver());
+                mDevice.pushFile(file.getAbsolutePath(), deviceDir + perfdFileName);
+
+                ChmodOutputListener chmodListener = new ChmodOutputListener();
+                mDevice.executeShellCommand("chmod +x " + deviceDir + perfdFileName, chmodListener);
+                if (chmodListener.hasErrors()) {
+                    mDevice.executeShellCommand("chmod 777 " + deviceDir + perfdFileName, new NullOutputReceiver());
+                }
+            } catch (SyncException | ShellCommandUnresponsiveException | TimeoutException var6) {
+                throw new RuntimeException(var6);
+            }
+        }
+
+        private byte[] createAgentConfig() {
+            Agent.SocketType socketType = Agent.SocketType.UNSPECIFIED_SOCKET;
+            Agent.AgentConfig agentConfig = Agent.AgentConfig.newBuilder()
+                    .setUseJvmti(true)
+                    .setMemConfig(Agent.AgentConfig.MemoryConfig.newBuilder()
+                            .setUseLiveAlloc(true)
+                            .setMaxStackDepth(50).build())
+                    .setSocketType(socketType)
+                    .setServiceAddress("127.0.0.1:" + String.valueOf(mPerfdPort))
+                    .setServiceSocketName("@AndroidStudioProfiler").build();
+            return agentConfig.toByteArray();
+        }
+
+        private class ChmodOutputListener implements IShellOutputReceiver {
+            private static final String BAD_MODE = "Bad mode";
+            private boolean myHasErrors;
+
+            private ChmodOutputListener() {
+            }
+
+            public void addOutput(byte[] data, int offset, int length) {
+                String s = new String(data, Charsets.UTF_8);
+                this.myHasErrors = s.contains(BAD_MODE);
+            }
+
+            public void flush() {
+            }
+
+            public boolean isCancelled() {
+                return false;
+            }
+
+            private boolean hasErrors() {
+                return this.myHasErrors;
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.tools.profiler.proto.CpuProfiler;
+import com.android.tools.profiler.proto.CpuServiceGrpc;
+import com.android.tools.profiler.proto.MemoryProfiler;
+import com.android.tools.profiler.proto.MemoryServiceGrpc;
+import com.android.tools.profiler.proto.Profiler;
+import com.android.tools.profiler.proto.ProfilerServiceGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the cpu usage, thread states, memory and allocation counts of the app from perfd
+ * through the forwarded port, while the method tracing runs. Every poll adds a row of the latest values
+ * to a {@link TelemetryFile}, and its time is in microseconds since the perfd time taken by {@link #start()}.
+ * It's started right before the profiler, and the perfd time is kept in the file as its
+ * {@link TelemetryFile#getPerfdStartTime() perfd start time}, so the rows can be placed on the trace timeline
+ * once the start time of the trace is known.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class PerfdTelemetry {
+    private static final long POLL_INTERVAL_MILLIS = 200;
+    static final String[] COLUMNS = {"time_us", "app_cpu_ms", "system_cpu_ms", "elapsed_ms", "running_threads",
+            "java_mem_kb", "native_mem_kb", "total_mem_kb", "alloc_count", "free_count", "gc_count"};
+
+    private final PerfdConnection mConnection;
+    private final int mPid;
+    private final TelemetryFile mTelemetry = new TelemetryFile(COLUMNS);
+    // Whether each thread is running, by thread id
+    private final Map<Integer, Boolean> mThreadStates = new HashMap<>();
+    private final long[] mRow = new long[COLUMNS.length];
+    private ManagedChannel mChannel;
+    private ProfilerServiceGrpc.ProfilerServiceBlockingStub mProfilerService;
+    private CpuServiceGrpc.CpuServiceBlockingStub mCpuService;
+    private MemoryServiceGrpc.MemoryServiceBlockingStub mMemoryService;
+    private ScheduledExecutorService mScheduler;
+    private long mStartTime;
+    private long mLastTime;
+    private boolean mIsFailed = false;
+
+
+    public PerfdTelemetry(PerfdConnection connection, int pid) {
+        this.mConnection = connection;
+        this.mPid = pid;
+    }
+
+    /**
+     * @return false if perfd couldn't be reached
+     */
+    public boolean start() {
+        return start(ManagedChannelBuilder.forAddress("localhost", mConnection.getLocalPort())
+                .usePlaintext(true)
+                .build());
+    }
+
+    /**
+     * Sample from perfd through the channel, which is shut down by {@link #stop()}
+     */
+    synchronized boolean start(ManagedChannel channel) {
+        mChannel = channel;
+        mProfilerService = ProfilerServiceGrpc.newBlockingStub(mChannel);
+        mCpuService = CpuServiceGrpc.newBlockingStub(mChannel);
+        mMemoryService = MemoryServiceGrpc.newBlockingStub(mChannel);
+
+        try {
+            mStartTime = mLastTime = currentTime();
+            mTelemetry.setPerfdStartTime(mStartTime);
+            mCpuService.startMonitoringApp(CpuProfiler.CpuStartRequest.newBuilder().setProcessId(mPid).build());
+            mMemoryService.startMonitoringApp(MemoryProfiler.MemoryStartRequest.newBuilder().setProcessId(mPid).build());
+        } catch (RuntimeException e) {
+            System.out.println("Start telemetry failed: " + e.getMessage());
+            mChannel.shutdownNow();
+            return false;
+        }
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "perfd-telemetry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mScheduler.scheduleAtFixedRate(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Stop sampling
+     *
+     * @return the samples, or null if it isn't started
+     */
+    public TelemetryFile stop() {
+        synchronized (this) {
+            if (mScheduler == null) {
+                return null;
+            }
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+        poll();
+
+        synchronized (this) {
+            try {
+                mCpuService.stopMonitoringApp(CpuProfiler.CpuStopRequest.newBuilder().setProcessId(mPid).build());
+                mMemoryService.stopMonitoringApp(MemoryProfiler.MemoryStopRequest.newBuilder().setProcessId(mPid).build());
+            } catch (RuntimeException ignored) {
+            }
+            mChannel.shutdownNow();
+            return mTelemetry;
+        }
+    }
+
+    private long currentTime() {
+        return mProfilerService.getCurrentTime(Profiler.TimeRequest.getDefaultInstance()).getTimestampNs();
+    }
+
+    private synchronized void poll() {
+        if (mIsFailed) {
+            return;
+        }
+
+        try {
+            final long now = currentTime();
+            final long start = mLastTime;
+
+            CpuProfiler.CpuDataResponse cpu = mCpuService.getData(CpuProfiler.CpuDataRequest.newBuilder()
+                    .setProcessId(mPid).setStartTimestamp(start).setEndTimestamp(now).build());
+            for (CpuProfiler.CpuProfilerData data : cpu.getDataList()) {
+                if (data.getDataCase() == CpuProfiler.CpuProfilerData.DataCase.CPU_USAGE) {
+                    CpuProfiler.CpuUsageData usage = data.getCpuUsage();
+                    mRow[1] = usage.getAppCpuTimeInMillisec();
+                    mRow[2] = usage.getSystemCpuTimeInMillisec();
+                    mRow[3] = usage.getElapsedTimeInMillisec();
+                }
+            }
+
+            // Only the threads whose state changed are reported, the others keep their state
+            CpuProfiler.GetThreadsResponse threads = mCpuService.getThreads(CpuProfiler.GetThreadsRequest.newBuilder()
+                    .setProcessId(mPid).setStartTimestamp(start).setEndTimestamp(now).build());
+            for (CpuProfiler.GetThreadsResponse.Thread thread : threads.getThreadsList()) {
+                long lastTime = Long.MIN_VALUE;
+                for (CpuProfiler.GetThreadsResponse.ThreadActivity activity : thread.getActivitiesList()) {
+                    if (activity.getTimestamp() >= lastTime) {
+                        lastTime = activity.getTimestamp();
+                        mThreadStates.put(thread.getTid(),
+                                activity.getNewState() == CpuProfiler.GetThreadsResponse.State.RUNNING);
+                    }
+                }
+            }
+            int running = 0;
+            for (boolean isRunning : mThreadStates.values()) {
+                running += isRunning ? 1 : 0;
+            }
+            mRow[4] = running;
+
+            MemoryProfiler.MemoryData memory = mMemoryService.getData(MemoryProfiler.MemoryRequest.newBuilder()
+                    .setProcessId(mPid).setStartTime(start).setEndTime(now).build());
+            for (MemoryProfiler.MemoryData.MemorySample sample : memory.getMemSamplesList()) {
+                mRow[5] = sample.getJavaMem();
+                mRow[6] = sample.getNativeMem();
+                mRow[7] = sample.getTotalMem();
+            }
+            // The counts are of the poll interval
+            mRow[8] = mRow[9] = mRow[10] = 0;
+            for (MemoryProfiler.MemoryData.VmStatsSample sample : memory.getVmStatsSamplesList()) {
+                mRow[8] += sample.getJavaAllocationCount();
+                mRow[9] += sample.getJavaFreeCount();
+                mRow[10] += sample.getGcCount();
+            }
+
+            mRow[0] = TimeUnit.NANOSECONDS.toMicros(now - mStartTime);
+            mTelemetry.addRow(mRow);
+            mLastTime = now;
+
+        } catch (RuntimeException e) {
+            // perfd is gone, the tracing itself goes on
+            mIsFailed = true;
+            System.out.println("Telemetry stopped: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.trace.ProguardMapping;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Continuous capture which restarts the profiler every segment and keeps only the latest segments
+ * in a ring bounded by count and total size. The ring can be frozen into a snapshot directory on demand.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class RollingCapture {
+    private final PerfdConnection mConnection;
+    private final String mPackageName;
+    private int mSamplingInterval;
+    private final String mOutputFile;
+    private final long mSegmentMillis;
+    private final int mRingCount;
+    private final long mRingBytes;
+    private String mDeviceFile;
+    private int mDeviceBufferSize = 0;
+    private IntervalCalibrator mCalibrator;
+    private ProguardMapping mMapping;
+
+    private final Deque<File> mRing = new ArrayDeque<>();
+    private long mRingSize = 0;
+    private int mSegmentIndex = 0;
+    private int mFreezeIndex = 0;
+
+    private final Object mLock = new Object();
+    private boolean mIsFreezeRequested = false;
+    private boolean mIsStopRequested = false;
+
+
+    /**
+     * @param ringCount the max number of segments to keep
+     * @param ringBytes the max total size of segments to keep, or 0 for unlimited
+     */
+    public RollingCapture(PerfdConnection connection, String packageName, int samplingInterval, String outputFile,
+                          int segmentSeconds, int ringCount, long ringBytes) {
+        this.mConnection = connection;
+        this.mPackageName = packageName;
+        this.mSamplingInterval = samplingInterval;
+        this.mOutputFile = outputFile;
+        this.mSegmentMillis = TimeUnit.SECONDS.toMillis(segmentSeconds);
+        this.mRingCount = Math.max(1, ringCount);
+        this.mRingBytes = ringBytes;
+    }
+
+    /**
+     * Trace every segment to a file on device, see {@link StudioProfilerHack#setDeviceFile(String, int)}
+     */
+    public void setDeviceFile(String remoteFile, int bufferSize) {
+        this.mDeviceFile = remoteFile;
+        this.mDeviceBufferSize = bufferSize;
+    }
+
+    /**
+     * Calibrate the sampling interval before the capture, and re-calibrate it by every segment
+     */
+    public void setCalibrator(IntervalCalibrator calibrator) {
+        this.mCalibrator = calibrator;
+    }
+
+    /**
+     * Deobfuscate every segment before it's added to the ring
+     */
+    public void setMapping(ProguardMapping mapping) {
+        this.mMapping = mapping;
+    }
+
+    /**
+     * Capture segments until {@link #requestStop(boolean)} is called or the duration is elapsed
+     *
+     * @param durationSeconds the total duration, or 0 to capture until stopped
+     * @return false if the profiler couldn't be started or stopped
+     */
+    public boolean run(long durationSeconds) throws InterruptedException {
+        final long deadline = durationSeconds > 0 ?
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+
+        if (mCalibrator != null) {
+            mSamplingInterval = mCalibrator.calibrate(mConnection, mPackageName,
+                    MethodTracer.stripExtension(mOutputFile) + "-calibration.trace");
+            if (mSamplingInterval < 0) {
+                return false;
+            }
+            System.out.println("Use the sampling interval " + mSamplingInterval + " us");
+        }
+
+        while (true) {
+            File segment = new File(segmentFileOf(mOutputFile, ++mSegmentIndex));
+            StudioProfilerHack profiler = new StudioProfilerHack(
+                    mConnection, mPackageName, mSamplingInterval, segment.getPath());
+            if (mDeviceFile != null) {
+                profiler.setDeviceFile(mDeviceFile, mDeviceBufferSize);
+            }
+            try {
+                if (!profiler.startProfilingApp()) {
+                    return false;
+                }
+
+                long segmentStart = System.nanoTime();
+                boolean isLast = awaitSegmentEnd(deadline);
+                long segmentNanos = System.nanoTime() - segmentStart;
+                if (!profiler.stopProfilingApp()) {
+                    return false;
+                }
+                if (mCalibrator != null) {
+                    mSamplingInterval = mCalibrator.adjust(mSamplingInterval, segment, segmentNanos);
+                }
+                if (mMapping != null) {
+                    TraceExporter.deobfuscate(segment.getPath(), mMapping, "");
+                }
+                addToRing(segment);
+
+                boolean freeze;
+                synchronized (mLock) {
+                    freeze = mIsFreezeRequested;
+                    mIsFreezeRequested = false;
+                }
+                if (freeze) {
+                    freeze();
+                }
+                if (isLast) {
+                    return true;
+                }
+
+            } finally {
+                profiler.terminate();
+            }
+        }
+    }
+
+    /**
+     * Cut the current segment and copy the ring to a snapshot directory, the capture goes on
+     */
+    public void requestFreeze() {
+        synchronized (mLock) {
+            mIsFreezeRequested = true;
+            mLock.notifyAll();
+        }
+    }
+
+    public void requestStop(boolean freeze) {
+        synchronized (mLock) {
+            mIsStopRequested = true;
+            mIsFreezeRequested |= freeze;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if the capture should stop after this segment
+     */
+    private boolean awaitSegmentEnd(long deadline) throws InterruptedException {
+        final long segmentEnd = Math.min(deadline, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mSegmentMillis));
+        synchronized (mLock) {
+            while (!mIsStopRequested && !mIsFreezeRequested) {
+                long remaining = segmentEnd - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mLock, remaining);
+            }
+            return mIsStopRequested || System.nanoTime() >= deadline;
+        }
+    }
+
+    private void addToRing(File segment) {
+        mRing.addLast(segment);
+        mRingSize += segment.length();
+
+        // Evict the oldest segments, but always keep the latest one
+        while (mRing.size() > 1 &&
+                (mRing.size() > mRingCount || (mRingBytes > 0 && mRingSize > mRingBytes))) {
+            File oldest = mRing.removeFirst();
+            mRingSize -= oldest.length();
+            oldest.delete();
+        }
+    }
+
+    private void freeze() {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File dir = new File(MethodTracer.stripExtension(mOutputFile) + "-frozen-" + timestamp + "-" + (++mFreezeIndex));
+        dir.mkdirs();
+
+        for (File segment : mRing) {
+            File target = new File(dir, segment.getName());
+            try {
+                // Segments are never modified, so a hard link is enough
+                Files.createLink(target.toPath(), segment.toPath());
+            } catch (IOException | UnsupportedOperationException e) {
+                try {
+                    Files.copy(segment.toPath(), target.toPath());
+                } catch (IOException e1) {
+                    System.out.println("Freeze segment " + segment + " failed.");
+                }
+            }
+        }
+
+        System.out.println("The last " + mRing.size() + " segments have been frozen to \"" + dir + "\"");
+    }
+
+    /**
+     * Insert the segment index before the extension of output file, e.g. "out-seg00001.trace"
+     */
+    static String segmentFileOf(String outputFile, int index) {
+        return MethodTracer.insertBeforeExtension(outputFile, String.format("-seg%05d", index));
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An app traced by {@link BatchCapture}. A scenario file is a JSON object like:
+ * <pre>
+ * {
+ *   "defaults": {"device": "emulator-5554", "interval": 100, "duration": 10},
+ *   "scenarios": [
+ *     {"app": "com.example.feed", "launch": "am start -W -n com.example.feed/.MainActivity"},
+ *     {"app": "com.example.mail", "duration": 5, "output": "traces/mail.trace", "formats": ["svg"]}
+ *   ]
+ * }
+ * </pre>
+ * The fields missing in a scenario are taken from the defaults. When the scenarios run on more than one device,
+ * an output which isn't set by the scenario itself gets the device serial, e.g. "com.example.feed-emulator-5554.trace".
+ * The scenarios must not share an output file.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class Scenario {
+    private static final int DEFAULT_INTERVAL = 10;
+
+    String app;
+
+    /**
+     * The serial number of the device, or null for the first connected device
+     */
+    String device;
+
+    /**
+     * The sampling interval in microseconds, or 0 for method tracing
+     */
+    Integer interval;
+
+    /**
+     * The duration of tracing in seconds
+     */
+    Integer duration;
+
+    /**
+     * The output file, "&lt;app&gt;.trace" unless it's set in the defaults
+     */
+    String output;
+
+    /**
+     * A shell command run on device before tracing, e.g. to launch the app
+     */
+    String launch;
+
+    /**
+     * Extra output formats and the summary size, see {@link TraceExporter}
+     */
+    List<String> formats;
+    Integer summary;
+
+
+    private static class ScenarioFile {
+        Scenario defaults;
+        List<Scenario> scenarios;
+    }
+
+    /**
+     * Read the scenarios with the defaults applied
+     */
+    static List<Scenario> read(File file) throws IOException {
+        ScenarioFile scenarioFile;
+        try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            scenarioFile = new Gson().fromJson(reader, ScenarioFile.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Invalid scenario file: " + e.getMessage());
+        }
+        if (scenarioFile == null || scenarioFile.scenarios == null || scenarioFile.scenarios.isEmpty()) {
+            throw new IOException("No scenarios in " + file);
+        }
+
+        Scenario defaults = scenarioFile.defaults != null ? scenarioFile.defaults : new Scenario();
+        // The scenarios without a device run on the first device, which is counted as a device of its own
+        Set<String> devices = new HashSet<>();
+        for (Scenario scenario : scenarioFile.scenarios) {
+            devices.add(scenario.device != null ? scenario.device : defaults.device);
+        }
+        final boolean multipleDevices = devices.size() > 1;
+
+        List<Scenario> scenarios = new ArrayList<>();
+        Set<String> outputs = new HashSet<>();
+        for (Scenario scenario : scenarioFile.scenarios) {
+            if (scenario.app == null || scenario.app.isEmpty()) {
+                throw new IOException("Missing the app of a scenario");
+            }
+            Scenario resolved = new Scenario();
+            resolved.app = scenario.app;
+            resolved.device = scenario.device != null ? scenario.device : defaults.device;
+            resolved.interval = scenario.interval != null ? scenario.interval :
+                    defaults.interval != null ? defaults.interval : DEFAULT_INTERVAL;
+            resolved.duration = scenario.duration != null ? scenario.duration : defaults.duration;
+            if (scenario.output != null) {
+                resolved.output = scenario.output;
+            } else {
+                resolved.output = defaults.output != null ? defaults.output : scenario.app + ".trace";
+                if (multipleDevices && resolved.device != null) {
+                    resolved.output = MethodTracer.outputFileOf(resolved.output, resolved.device);
+                }
+            }
+            resolved.launch = scenario.launch != null ? scenario.launch : defaults.launch;
+            resolved.formats = scenario.formats != null ? scenario.formats : defaults.formats;
+            resolved.summary = scenario.summary != null ? scenario.summary : defaults.summary;
+
+            if (resolved.duration == null || resolved.duration <= 0) {
+                throw new IOException("Missing the duration of scenario " + scenario.app);
+            }
+            if (resolved.formats != null) {
+                for (String format : resolved.formats) {
+                    if (!TraceExporter.isFormat(format)) {
+                        throw new IOException("Unknown format of scenario " + scenario.app + ": " + format);
+                    }
+                }
+            }
+            if (!outputs.add(new File(resolved.output).getAbsolutePath())) {
+                throw new IOException("The output of scenario " + scenario.app + " is used by another scenario: " +
+                        resolved.output);
+            }
+            scenarios.add(resolved);
+        }
+        return scenarios;
+    }
+
+    /**
+     * @return the options of post-processing the trace
+     */
+    TraceOptions toTraceOptions() {
+        TraceOptions options = new TraceOptions();
+        options.packageName = app;
+        options.samplingInterval = interval;
+        options.time = duration;
+        options.outputFile = output;
+        if (formats != null) {
+            options.formats.addAll(formats);
+        }
+        options.summaryTop = summary != null ? summary : 0;
+        return options;
+    }
+}
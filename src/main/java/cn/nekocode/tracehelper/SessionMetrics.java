@@ -0,0 +1,207 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Durations of the phases of tracing sessions, measured with the monotonic clock,
+ * and values such as the trace size. The phases of each device are kept in a child metrics.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class SessionMetrics {
+    public static final String PHASE_ADB_CONNECT = "adb_connect";
+    public static final String PHASE_DEVICE_WAIT = "device_wait";
+    public static final String PHASE_PERFD_EXTRACT = "perfd_extract";
+    public static final String PHASE_PERFD_CHECK = "perfd_check";
+    public static final String PHASE_PERFD_PUSH = "perfd_push";
+    public static final String PHASE_PERFD_START = "perfd_start";
+    public static final String PHASE_ADB_FORWARD = "adb_forward";
+    public static final String PHASE_CLIENT_WAIT = "client_wait";
+    public static final String PHASE_LAUNCH = "launch";
+    public static final String PHASE_PROFILER_START = "profiler_start";
+    public static final String PHASE_PROFILING = "profiling";
+    public static final String PHASE_STOP_TO_DATA = "stop_to_data";
+    public static final String PHASE_TRACE_SAVE = "trace_save";
+    public static final String PHASE_TOTAL = "total";
+
+    public static final String VALUE_TRACE_BYTES = "trace_bytes";
+    public static final String VALUE_TRANSFER_BYTES_PER_SECOND = "transfer_bytes_per_second";
+
+    /**
+     * Metrics which record nothing, used when metrics are not requested
+     */
+    public static final SessionMetrics DISABLED = new SessionMetrics(null, false);
+
+    private final String mDevice;
+    private final boolean mIsEnabled;
+    // Total nanoseconds and count of every phase
+    private final Map<String, long[]> mPhases = new LinkedHashMap<>();
+    private final Map<String, Double> mValues = new LinkedHashMap<>();
+    private final Map<String, SessionMetrics> mDevices = new LinkedHashMap<>();
+
+
+    public SessionMetrics() {
+        this(null, true);
+    }
+
+    private SessionMetrics(String device, boolean enabled) {
+        this.mDevice = device;
+        this.mIsEnabled = enabled;
+    }
+
+    /**
+     * @return the metrics of the device, which are written with the metrics of this session
+     */
+    public synchronized SessionMetrics forDevice(String serialNumber) {
+        if (!mIsEnabled) {
+            return this;
+        }
+        return mDevices.computeIfAbsent(serialNumber, s -> new SessionMetrics(s, true));
+    }
+
+    /**
+     * @return the start time of a phase, to be passed to {@link #end(String, long)}
+     */
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Add the time elapsed since start to the phase, a phase may be run several times
+     */
+    public void end(String phase, long start) {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        synchronized (this) {
+            long[] phaseTimes = mPhases.computeIfAbsent(phase, p -> new long[2]);
+            phaseTimes[0] += elapsed;
+            phaseTimes[1]++;
+        }
+    }
+
+    public synchronized void set(String name, double value) {
+        if (mIsEnabled) {
+            mValues.put(name, value);
+        }
+    }
+
+    public void write(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            if (file.getName().endsWith(".prom")) {
+                writePrometheus(writer);
+            } else {
+                writeJson(writer);
+            }
+        }
+    }
+
+    public synchronized void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+        writeJson(json);
+        json.flush();
+    }
+
+    private synchronized void writeJson(JsonWriter json) throws IOException {
+        json.beginObject();
+        json.name("phases").beginObject();
+        for (Map.Entry<String, long[]> entry : mPhases.entrySet()) {
+            json.name(entry.getKey()).beginObject();
+            json.name("seconds").value(entry.getValue()[0] / 1e9);
+            json.name("count").value(entry.getValue()[1]);
+            json.endObject();
+        }
+        json.endObject();
+
+        json.name("values").beginObject();
+        for (Map.Entry<String, Double> entry : mValues.entrySet()) {
+            json.name(entry.getKey()).value(entry.getValue());
+        }
+        json.endObject();
+
+        if (!mDevices.isEmpty()) {
+            json.name("devices").beginObject();
+            for (Map.Entry<String, SessionMetrics> entry : mDevices.entrySet()) {
+                json.name(entry.getKey());
+                entry.getValue().writeJson(json);
+            }
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    /**
+     * Write in the Prometheus text exposition format, e.g. for the textfile collector of node exporter
+     */
+    public void writePrometheus(Writer writer) throws IOException {
+        List<String> phaseSeconds = new ArrayList<>();
+        List<String> phaseCounts = new ArrayList<>();
+        Map<String, List<String>> values = new LinkedHashMap<>();
+        collectPrometheus(phaseSeconds, phaseCounts, values);
+
+        writer.write("# HELP method_tracer_phase_seconds Total time spent in a phase of tracing\n");
+        writer.write("# TYPE method_tracer_phase_seconds gauge\n");
+        for (String line : phaseSeconds) {
+            writer.write(line);
+        }
+        writer.write("# HELP method_tracer_phase_count Number of times a phase of tracing was run\n");
+        writer.write("# TYPE method_tracer_phase_count gauge\n");
+        for (String line : phaseCounts) {
+            writer.write(line);
+        }
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            writer.write("# TYPE method_tracer_" + entry.getKey() + " gauge\n");
+            for (String line : entry.getValue()) {
+                writer.write(line);
+            }
+        }
+        writer.flush();
+    }
+
+    private synchronized void collectPrometheus(List<String> phaseSeconds, List<String> phaseCounts,
+                                                Map<String, List<String>> values) {
+        String device = mDevice == null ? "" :
+                ",device=\"" + mDevice.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+        for (Map.Entry<String, long[]> entry : mPhases.entrySet()) {
+            String labels = "{phase=\"" + entry.getKey() + "\"" + device + "}";
+            phaseSeconds.add(String.format(Locale.ROOT, "method_tracer_phase_seconds%s %.6f\n",
+                    labels, entry.getValue()[0] / 1e9));
+            phaseCounts.add("method_tracer_phase_count" + labels + " " + entry.getValue()[1] + "\n");
+        }
+        for (Map.Entry<String, Double> entry : mValues.entrySet()) {
+            String line = "method_tracer_" + entry.getKey() +
+                    (device.isEmpty() ? "" : "{" + device.substring(1) + "}") + " " + entry.getValue() + "\n";
+            values.computeIfAbsent(entry.getKey(), k -> new ArrayList<>()).add(line);
+        }
+        for (SessionMetrics metrics : mDevices.values()) {
+            metrics.collectPrometheus(phaseSeconds, phaseCounts, values);
+        }
+    }
+}
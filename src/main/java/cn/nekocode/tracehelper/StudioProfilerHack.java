@@ -15,20 +15,29 @@
  */
 package cn.nekocode.tracehelper;
 
-import com.android.ddmlib.*;
-import com.android.tools.profiler.proto.Agent;
-import org.apache.commons.io.Charsets;
-
-import java.io.*;
-import java.net.ServerSocket;
-import java.net.URL;
+import cn.nekocode.tracehelper.trace.BlockGzipWriter;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.NullOutputReceiver;
+import com.android.ddmlib.SyncService;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 /**
  * Part of the code was copied from the android-plugin in Android Studio
@@ -36,60 +45,153 @@ import java.util.zip.ZipInputStream;
  * @author nekocode (nekocode.cn@gmail.com)
  */
 public class StudioProfilerHack implements ClientData.IMethodProfilingHandler {
+    private static final long CLIENT_TIMEOUT_SECONDS = 3;
+    private static final long PROFILING_START_TIMEOUT_SECONDS = 10;
+    private static final long PROFILING_DATA_TIMEOUT_SECONDS = 600;
+
+    /**
+     * Saves the received traces, so the ddmlib thread is never blocked by the disk or compression
+     */
+    private static final ExecutorService sWriterExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "trace-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final IDevice mDevice;
     private final String mPackageName;
-    private final int mPerfdPort;
-    private final int mSamplingInterval;
+    private int mSamplingInterval;
     private final String mOutputFile;
-    private int mLocalPort;
-    private Thread mPerfdThread;
-    private boolean mIsProfilingFinished = false;
+    private final PerfdConnection mConnection;
+    private final boolean mOwnsConnection;
+    private Client mClient;
+    private boolean mIsPrepared = false;
+    private String mDeviceFile;
+    private int mDeviceBufferSize = 0;
+    private boolean mIsTelemetryEnabled = false;
+    private PerfdTelemetry mTelemetry;
+    private volatile CompletableFuture<Boolean> mStartResult = new CompletableFuture<>();
+    private volatile CompletableFuture<Boolean> mStopResult = new CompletableFuture<>();
+    private long mProfilingStart;
+    private volatile long mStopStart;
+    private volatile TransferLimiter.Permit mTransferPermit;
 
 
     public StudioProfilerHack(IDevice device, String packageName, int perfdPort,
                               int samplingInterval, String outputFile) {
-        this.mDevice = device;
+        this(new PerfdConnection(device, perfdPort), true, packageName, samplingInterval, outputFile);
+    }
+
+    /**
+     * Profile with a perfd connection shared with other sessions, it's kept open by {@link #terminate()}
+     */
+    public StudioProfilerHack(PerfdConnection connection, String packageName,
+                              int samplingInterval, String outputFile) {
+        this(connection, false, packageName, samplingInterval, outputFile);
+    }
+
+    private StudioProfilerHack(PerfdConnection connection, boolean ownsConnection, String packageName,
+                               int samplingInterval, String outputFile) {
+        this.mDevice = connection.getDevice();
         this.mPackageName = packageName;
-        this.mPerfdPort = perfdPort;
         this.mSamplingInterval = samplingInterval;
         this.mOutputFile = outputFile;
+        this.mConnection = connection;
+        this.mOwnsConnection = ownsConnection;
     }
 
-    public boolean startProfilingApp() {
-        mPerfdThread = runAndWaitForRemotePerfdThreadSuccess();
-        if (Thread.currentThread().isInterrupted()) {
-            return false;
-        }
-        if (!mPerfdThread.isAlive()) {
-            // If the remote perdf process is not running
-            System.out.println("Copy and excute perdf failed.");
-            return false;
-        }
+    public IDevice getDevice() {
+        return mDevice;
+    }
 
-        try {
-            mLocalPort = findAvailableSocketPort();
-            mDevice.createForward(mLocalPort, mPerfdPort);
-        } catch (Exception e) {
-            System.out.println("Create adb forward failed.");
+    public String getPackageName() {
+        return mPackageName;
+    }
+
+    public String getOutputFile() {
+        return mOutputFile;
+    }
+
+    public PerfdConnection getConnection() {
+        return mConnection;
+    }
+
+    /**
+     * Change the sampling interval in microseconds, it must be called before {@link #startProfilingApp()}
+     */
+    public void setSamplingInterval(int samplingInterval) {
+        this.mSamplingInterval = samplingInterval;
+    }
+
+    /**
+     * Let the app write the method tracing to a file on device, which is pulled to the output file in chunks
+     * after stopping, so the host memory doesn't grow with the trace size. It only works for method tracing
+     * (the sampling interval is 0) and must be called before {@link #startProfilingApp()}.
+     *
+     * @param remoteFile the file on device, which must be writable by the app
+     * @param bufferSize the size of the trace buffer of the app, the tracing stops when it is full
+     */
+    public void setDeviceFile(String remoteFile, int bufferSize) {
+        this.mDeviceFile = remoteFile;
+        this.mDeviceBufferSize = bufferSize;
+    }
+
+    /**
+     * Also sample the cpu and memory of the app from perfd while profiling, see {@link PerfdTelemetry}.
+     * The samples are saved next to the output file, e.g. "out.telemetry".
+     */
+    public void setTelemetryEnabled(boolean enabled) {
+        this.mIsTelemetryEnabled = enabled;
+    }
+
+    private boolean isDeviceFileMode() {
+        return mDeviceFile != null && mSamplingInterval <= 0;
+    }
+
+    /**
+     * Copy and run perfd on the device and forward its port. It's called by {@link #startProfilingApp()}
+     * if it hasn't been called, so that multiple devices can be prepared ahead and started together.
+     */
+    public boolean prepareProfiling() {
+        mIsPrepared = mConnection.connect();
+        return mIsPrepared;
+    }
+
+    public boolean startProfilingApp() {
+        if (!mIsPrepared && !prepareProfiling()) {
             return false;
         }
 
-        Client client = mDevice.getClient(mPackageName);
+        final SessionMetrics metrics = mConnection.getMetrics();
+        long start = metrics.start();
+        Client client = waitForClient();
         if (client == null) {
             System.out.println("Target app:" + mPackageName + " is not running.");
             return false;
         }
-
+        metrics.end(SessionMetrics.PHASE_CLIENT_WAIT, start);
 
         if (client.getClientData().getMethodProfilingStatus() != ClientData.MethodProfilingStatus.OFF) {
             System.out.println("Start profiling failed. The app has an on-going profiling session.");
             return false;
         }
 
+        // The telemetry takes its perfd start time right before the profiler starts, to be aligned with the trace
+        if (mIsTelemetryEnabled) {
+            PerfdTelemetry telemetry = new PerfdTelemetry(mConnection, client.getClientData().getPid());
+            mTelemetry = telemetry.start() ? telemetry : null;
+        }
+
         // Start profiling
-        ClientData.setMethodProfilingHandler(this);
+        start = metrics.start();
+        CompletableFuture<Boolean> startResult = new CompletableFuture<>();
+        mStartResult = startResult;
+        mClient = client;
+        MethodProfilingDispatcher.register(client, this);
         try {
-            if(mSamplingInterval > 0) {
+            if (isDeviceFileMode()) {
+                DeviceFileTracing.start(client, mDeviceFile, mDeviceBufferSize);
+            } else if(mSamplingInterval > 0) {
                 client.startSamplingProfiler(mSamplingInterval, TimeUnit.MICROSECONDS);
             } else {
                 client.startMethodTracer();
@@ -99,333 +201,343 @@ public class StudioProfilerHack implements ClientData.IMethodProfilingHandler {
             return false;
         }
 
+        // Starting a profiler sends a status query, wait for the status change or the failure callback.
+        // ddmlib reports no event for the failure, so the completion of the result wakes up the wait.
+        startResult.whenComplete((started, throwable) -> AdbEventWaiter.wakeUp());
+        try {
+            AdbEventWaiter.await(() -> startResult.isDone() ||
+                            client.getClientData().getMethodProfilingStatus() != ClientData.MethodProfilingStatus.OFF,
+                    PROFILING_START_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (startResult.isDone()) {
+            return false;
+        }
+        if (client.getClientData().getMethodProfilingStatus() == ClientData.MethodProfilingStatus.OFF) {
+            System.out.println("Start profiling timed out.");
+            return false;
+        }
+        metrics.end(SessionMetrics.PHASE_PROFILER_START, start);
+        mProfilingStart = metrics.start();
         return true;
     }
 
     public boolean stopProfilingApp() {
+        return awaitTraceSaved(stopProfilingAppAsync());
+    }
+
+    /**
+     * Request the app to stop profiling without waiting for the trace data, so the next session can be
+     * started while the trace is being received and saved. {@link #terminate()} must not be called
+     * before the result is completed.
+     *
+     * @return the result which is completed once the trace is saved, see {@link #awaitTraceSaved(Future)}
+     */
+    public CompletableFuture<Boolean> stopProfilingAppAsync() {
         Client client = mDevice.getClient(mPackageName);
         if (client == null) {
             System.out.println("Target app:" + mPackageName + " is not running.");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
         if (client.getClientData().getMethodProfilingStatus() == ClientData.MethodProfilingStatus.OFF) {
             System.out.println("Stop profiling failed. The app is not being profiled.");
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        // Stop profiling
+        // Stopping starts the transfer of the trace data, so it waits for a permit first
+        final TransferLimiter.Permit permit;
         try {
-            mIsProfilingFinished = false;
+            permit = TransferLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.completedFuture(false);
+        }
+        mTransferPermit = permit;
 
-            if(mSamplingInterval > 0) {
+        // Stop profiling
+        final SessionMetrics metrics = mConnection.getMetrics();
+        metrics.end(SessionMetrics.PHASE_PROFILING, mProfilingStart);
+        mStopStart = metrics.start();
+        CompletableFuture<Boolean> stopResult = new CompletableFuture<>();
+        mStopResult = stopResult;
+        // The permit is released once the data is received, or at the latest when the result is completed
+        stopResult.whenComplete((saved, throwable) -> permit.release());
+        try {
+            if (isDeviceFileMode()) {
+                DeviceFileTracing.stop(client);
+            } else if(mSamplingInterval > 0) {
                 client.stopSamplingProfiler();
             } else {
                 client.stopMethodTracer();
             }
         } catch (IOException e) {
             System.out.println("Stop profiling failed.");
-            return false;
+            stopResult.complete(false);
+            return stopResult;
         }
 
-        // Wait for finishing saving
-        while (!Thread.currentThread().isInterrupted()) {
-            try {
-                Thread.sleep(100);
-                if (mIsProfilingFinished) {
-                    break;
-                }
-
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            }
+        if (mTelemetry != null) {
+            final TelemetryFile telemetry = mTelemetry.stop();
+            mTelemetry = null;
+            stopResult.whenComplete((saved, throwable) -> saveTelemetry(telemetry, Boolean.TRUE.equals(saved)));
         }
+        return stopResult;
+    }
 
-        return true;
+    /**
+     * Wait for the trace requested by {@link #stopProfilingAppAsync()} to be received and saved
+     */
+    public static boolean awaitTraceSaved(Future<Boolean> stopResult) {
+        try {
+            return stopResult.get(PROFILING_DATA_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+
+        } catch (ExecutionException | java.util.concurrent.TimeoutException e) {
+            System.out.println("Receive trace data timed out.");
+            // Give up the transfer, so its permit is released
+            stopResult.cancel(false);
+            return false;
+        }
     }
 
     public void terminate() {
-        if (mPerfdThread != null) {
-            mPerfdThread.interrupt();
+        if (mTelemetry != null) {
+            mTelemetry.stop();
+            mTelemetry = null;
         }
 
-        try {
-            mDevice.removeForward(mLocalPort, mPerfdPort);
-        } catch (Exception ignored) {
+        if (mClient != null) {
+            MethodProfilingDispatcher.unregister(mClient, this);
         }
-    }
 
-    @Override
-    public void onSuccess(String remoteFilePath, Client client) {
-        System.out.println("Method profiling: Older devices (API level < 10) are not supported. Please use DDMS.");
-        mIsProfilingFinished = true;
+        if (mOwnsConnection) {
+            mConnection.close();
+        }
     }
 
-    @Override
-    public void onSuccess(byte[] data, Client client) {
-        File traceFile = new File(mOutputFile);
-        if (traceFile.exists()) {
-            traceFile.delete();
+    /**
+     * Collect a trace written to a file on device by other means, e.g. the profiler started by "am start",
+     * the same way as the file reported by {@link #onSuccess(String, Client)}
+     *
+     * @param stopStart the time the profiling was requested to stop, from {@link SessionMetrics#start()}
+     */
+    boolean collectDeviceFile(String remoteFilePath, long stopStart) {
+        mStopStart = stopStart;
+        try {
+            mTransferPermit = TransferLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
-
-        OutputStream outputStream = null;
         try {
-            outputStream = new FileOutputStream(traceFile);
-            outputStream.write(data);
-
-        } catch (Exception e) {
-            System.out.println("Save trace data failed.");
-
+            return pullTraceFile(remoteFilePath);
         } finally {
-            if (outputStream != null) {
-                try {
-                    outputStream.close();
-                } catch (IOException ignored) {
-                }
-            }
+            releaseTransferPermit();
         }
+    }
+
+    @Override
+    public void onSuccess(final String remoteFilePath, Client client) {
+        // Pulling a large file takes a while, so it's done off the ddmlib thread
+        mConnection.getMetrics().end(SessionMetrics.PHASE_STOP_TO_DATA, mStopStart);
+        final CompletableFuture<Boolean> stopResult = mStopResult;
+        sWriterExecutor.execute(() -> stopResult.complete(pullTraceFile(remoteFilePath)));
+    }
 
-        mIsProfilingFinished = true;
+    @Override
+    public void onSuccess(final byte[] data, Client client) {
+        final SessionMetrics metrics = mConnection.getMetrics();
+        metrics.end(SessionMetrics.PHASE_STOP_TO_DATA, mStopStart);
+        recordTransfer(metrics, data.length);
+        releaseTransferPermit();
+        final CompletableFuture<Boolean> stopResult = mStopResult;
+        sWriterExecutor.execute(() -> stopResult.complete(saveTraceData(data)));
     }
 
     @Override
     public void onStartFailure(Client client, String message) {
         System.out.println("Failed to start profiling: " + message);
-        mIsProfilingFinished = true;
+        mStartResult.complete(false);
+        mStopResult.complete(false);
     }
 
     @Override
     public void onEndFailure(Client client, String message) {
         System.out.println("Failed to stop profiling: " + message);
-        mIsProfilingFinished = true;
-    }
-
-    private Thread runAndWaitForRemotePerfdThreadSuccess() {
-        RemotePerfdThread perfdThread = new RemotePerfdThread();
-        perfdThread.start();
-
-        while (!Thread.currentThread().isInterrupted() && perfdThread.isAlive()) {
-            try {
-                Thread.sleep(100);
-                if (perfdThread.mIsSuccessed) {
-                    break;
-                }
-
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                perfdThread.interrupt();
-            }
-        }
-
-        return perfdThread;
+        mStopResult.complete(false);
     }
 
-    private static int findAvailableSocketPort() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(0);
-
-        int var2;
+    private boolean saveTraceData(byte[] data) {
+        final SessionMetrics metrics = mConnection.getMetrics();
+        final long start = metrics.start();
+        File tempFile = tempFileOf(mOutputFile);
         try {
-            int port = serverSocket.getLocalPort();
-            synchronized (serverSocket) {
-                try {
-                    serverSocket.wait(1L);
-                } catch (InterruptedException var9) {
-                }
-            }
+            writeTraceData(data, tempFile, BlockGzipWriter.isCompressed(mOutputFile));
 
-            var2 = port;
-        } finally {
-            serverSocket.close();
+        } catch (IOException e) {
+            System.out.println("Save trace data failed: " + e.getMessage());
+            tempFile.delete();
+            return false;
         }
 
-        return var2;
+        boolean moved = moveToOutputFile(tempFile);
+        metrics.end(SessionMetrics.PHASE_TRACE_SAVE, start);
+        return moved;
     }
 
-
     /**
-     * Copy perfd to device and excute it
+     * Write the trace data received by {@link #onSuccess(byte[], Client)} to the file, compressed or as is
      */
-    private class RemotePerfdThread extends Thread {
-        private boolean mIsSuccessed = false;
-
-
-        @Override
-        public void run() {
-            try {
-                String deviceDir = "/data/local/tmp/perfd/";
-                copyPerfdToDevice(deviceDir);
-                pushAgentConfig(deviceDir);
-
-                mDevice.executeShellCommand(deviceDir + "perfd -config_file=" + deviceDir + "agent.config",
-                        new IShellOutputReceiver() {
-                            @Override
-                            public void addOutput(byte[] data, int offset, int length) {
-                                String s = new String(data, offset, length, Charsets.UTF_8);
-                                if (s.startsWith("Server listening on")) {
-                                    mIsSuccessed = true;
-                                } else {
-                                    Thread.currentThread().interrupt();
-                                }
-                            }
-
-                            @Override
-                            public void flush() {
-                            }
-
-                            @Override
-                            public boolean isCancelled() {
-                                return false;
-                            }
-                        }, 0L, null);
-
-            } catch (Exception ingred) {
-                Thread.currentThread().interrupt();
+    static void writeTraceData(byte[] data, File file, boolean compressed) throws IOException {
+        if (compressed) {
+            try (TraceFile trace = TraceFile.open(ByteBuffer.wrap(data))) {
+                BlockGzipWriter.write(trace, file, ForkJoinPool.commonPool());
             }
-        }
-
-        private void copyPerfdToDevice(String deviceDir) throws Exception {
-            URL url = Thread.currentThread().getContextClassLoader().getResource("perfd");
-            if (url == null) {
-                return;
+        } else {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
             }
+        }
+    }
 
-            Iterator abisIterator = mDevice.getAbis().iterator();
-            ArrayList<String> supportedPaths = new ArrayList<>();
-            while (abisIterator.hasNext()) {
-                supportedPaths.add(abisIterator.next() + "/perfd");
+    private boolean pullTraceFile(String remoteFilePath) {
+        // A compressed output is compressed from the pulled file
+        final boolean compressed = BlockGzipWriter.isCompressed(mOutputFile);
+        File tempFile = compressed ? new File(mOutputFile + ".pull") : tempFileOf(mOutputFile);
+        final SessionMetrics metrics = mConnection.getMetrics();
+        final long start = metrics.start();
+        SyncService sync = null;
+        try {
+            // The sync service streams the file to disk chunk by chunk
+            sync = mDevice.getSyncService();
+            if (sync == null) {
+                System.out.println("Pull trace file failed. Couldn't open the sync service.");
+                return false;
             }
+            sync.pullFile(remoteFilePath, tempFile.getPath(), SyncService.getNullProgressMonitor());
+            // The trace data has only arrived once it's pulled
+            recordTransfer(metrics, tempFile.length());
 
-            File perfd = null;
-
-            if ("jar".equals(url.getProtocol())) {
-                ZipInputStream jarInputStream = null;
-
-                try {
-                    String jarPath = url.getPath().substring(5);
-                    String[] paths = jarPath.split("!");
-                    FileInputStream jarFileInputStream = new FileInputStream(paths[0]);
-                    jarInputStream = new ZipInputStream(jarFileInputStream);
-
-                    ZipEntry zipEntry;
-                    String entryName;
-                    final InputStream in = new BufferedInputStream(jarInputStream);
-                    boolean finded = false;
-                    while ((zipEntry = jarInputStream.getNextEntry()) != null) {
-                        entryName = zipEntry.getName();
-                        if (entryName.startsWith("perfd/")) {
-                            final String p = entryName.substring(6);
-                            for (String path : supportedPaths) {
-                                if (path.equals(p)) {
-                                    finded = true;
-                                    break;
-                                }
-                            }
-                        }
-
-                        if (finded) {
-                            // Copy perd to tmp directory
-                            File tmpDir = new File(System.getProperty("java.io.tmpdir"));
-                            if (!tmpDir.exists()) {
-                                tmpDir.mkdirs();
-                            }
-                            perfd = new File(tmpDir, "perfd");
-                            Files.copy(in, perfd.toPath(), StandardCopyOption.REPLACE_EXISTING);
-                            break;
-                        }
-                    }
-
-                } catch (Exception ignored) {
-                } finally {
-                    if (jarInputStream != null) {
-                        try {
-                            jarInputStream.close();
-                        } catch (Exception ignored) {
-                        }
-                    }
-                }
+        } catch (Exception e) {
+            System.out.println("Pull trace file " + remoteFilePath + " failed: " + e.getMessage());
+            tempFile.delete();
+            return false;
 
-            } else if ("file".equals(url.getProtocol())) {
-                for (String path : supportedPaths) {
-                    perfd = new File(url.getPath(), path);
-                    if (perfd.exists()) {
-                        break;
-                    }
-                    perfd = null;
-                }
+        } finally {
+            if (sync != null) {
+                sync.close();
             }
+            releaseTransferPermit();
+        }
 
-            if (perfd != null) {
-                this.pushPerfdToDevice(perfd, deviceDir);
-            } else {
-                throw new Exception("Cannot find perfd.");
-            }
+        try {
+            mDevice.executeShellCommand("rm -f " + remoteFilePath, new NullOutputReceiver());
+        } catch (Exception ignored) {
         }
 
-        private void pushPerfdToDevice(File file, String deviceDir)
-                throws AdbCommandRejectedException, IOException {
+        if (compressed) {
+            File pulledFile = tempFile;
+            tempFile = tempFileOf(mOutputFile);
+            try (TraceFile trace = TraceFile.open(pulledFile)) {
+                BlockGzipWriter.write(trace, tempFile, ForkJoinPool.commonPool());
+            } catch (IOException e) {
+                System.out.println("Compress trace file failed: " + e.getMessage());
+                tempFile.delete();
+                return false;
+            } finally {
+                pulledFile.delete();
+            }
+        }
+        boolean moved = moveToOutputFile(tempFile);
+        metrics.end(SessionMetrics.PHASE_TRACE_SAVE, start);
+        return moved;
+    }
 
-            final String perfdFileName = "perfd";
-            try {
-                if (file == null) {
-                    throw new RuntimeException(String.format("File %s could not be found for device: %s",
-                            new Object[]{perfdFileName, mDevice}));
-                } else {
-                    mDevice.executeShellCommand("rm -f " + deviceDir + perfdFileName, new NullOutputReceiver());
-                    mDevice.executeShellCommand("mkdir -p " + deviceDir, new NullOutputReceiver());
-                    mDevice.pushFile(file.getAbsolutePath(), deviceDir + perfdFileName);
-
-                    ChmodOutputListener chmodListener = new ChmodOutputListener();
-                    mDevice.executeShellCommand("chmod +x " + deviceDir + perfdFileName, chmodListener);
-                    if (chmodListener.hasErrors()) {
-                        mDevice.executeShellCommand("chmod 777 " + deviceDir + perfdFileName, new NullOutputReceiver());
-                    }
-                }
-            } catch (SyncException | ShellCommandUnresponsiveException | TimeoutException var6) {
-                throw new RuntimeException(var6);
+    /**
+     * Save the telemetry next to the output file, with the start time of the saved trace to align its rows
+     */
+    private void saveTelemetry(TelemetryFile telemetry, boolean isTraceSaved) {
+        if (isTraceSaved) {
+            try (TraceFile trace = TraceFile.open(new File(mOutputFile))) {
+                telemetry.setTraceStartTime(trace.getStartTime());
+            } catch (IOException e) {
+                System.out.println("Read the start time of the trace failed: " + e.getMessage());
             }
         }
 
-        private void pushAgentConfig(String devicePath) throws Exception {
-            Agent.SocketType socketType = Agent.SocketType.UNSPECIFIED_SOCKET;
-            Agent.AgentConfig agentConfig = Agent.AgentConfig.newBuilder()
-                    .setUseJvmti(true)
-                    .setMemConfig(Agent.AgentConfig.MemoryConfig.newBuilder()
-                            .setUseLiveAlloc(true)
-                            .setMaxStackDepth(50).build())
-                    .setSocketType(socketType)
-                    .setServiceAddress("127.0.0.1:" + String.valueOf(mPerfdPort))
-                    .setServiceSocketName("@AndroidStudioProfiler").build();
-
-            final String agentFileName = "agent.config";
-            File configFile = new File(System.getProperty("java.io.tmpdir"), agentFileName);
-            OutputStream oStream = new FileOutputStream(configFile);
-            agentConfig.writeTo(oStream);
-            mDevice.executeShellCommand("rm -f " + devicePath + agentFileName, new NullOutputReceiver());
-            mDevice.pushFile(configFile.getAbsolutePath(), devicePath + agentFileName);
+        File file = new File(MethodTracer.stripExtension(mOutputFile) + TelemetryFile.EXTENSION);
+        try {
+            telemetry.write(file);
+            System.out.println("The telemetry has been saved to \"" + file + "\"");
+        } catch (IOException e) {
+            System.out.println("Save telemetry failed: " + e.getMessage());
         }
+    }
 
-        private class ChmodOutputListener implements IShellOutputReceiver {
-            private static final String BAD_MODE = "Bad mode";
-            private boolean myHasErrors;
+    private void releaseTransferPermit() {
+        TransferLimiter.Permit permit = mTransferPermit;
+        if (permit != null) {
+            permit.release();
+        }
+    }
 
-            private ChmodOutputListener() {
-            }
+    /**
+     * Record the trace size and the throughput from the stop request until the data is received
+     */
+    private void recordTransfer(SessionMetrics metrics, long bytes) {
+        long elapsed = System.nanoTime() - mStopStart;
+        metrics.set(SessionMetrics.VALUE_TRACE_BYTES, bytes);
+        if (elapsed > 0) {
+            metrics.set(SessionMetrics.VALUE_TRANSFER_BYTES_PER_SECOND, bytes * 1e9 / elapsed);
+        }
+    }
 
-            public void addOutput(byte[] data, int offset, int length) {
-                String s = new String(data, Charsets.UTF_8);
-                this.myHasErrors = s.contains(BAD_MODE);
+    /**
+     * Replace the output file with the fully written temp file, so a reader never sees a partial trace
+     */
+    private boolean moveToOutputFile(File tempFile) {
+        File outputFile = new File(mOutputFile);
+        try {
+            try {
+                Files.move(tempFile.toPath(), outputFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
             }
+            return true;
 
-            public void flush() {
-            }
+        } catch (IOException e) {
+            System.out.println("Save trace data failed.");
+            tempFile.delete();
+            return false;
+        }
+    }
 
-            public boolean isCancelled() {
-                return false;
-            }
+    private static File tempFileOf(String outputFile) {
+        return new File(outputFile + ".part");
+    }
 
-            private boolean hasErrors() {
-                return this.myHasErrors;
-            }
+    /**
+     * The app may have been started just now, so give ddmlib a moment to report it
+     */
+    private Client waitForClient() {
+        try {
+            AdbEventWaiter.await(() -> mDevice.getClient(mPackageName) != null,
+                    CLIENT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return mDevice.getClient(mPackageName);
     }
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.trace.TraceFile;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Columnar time series of integer samples. In the file every column is stored after the other,
+ * as the zigzag varints of the differences between neighbouring values, so slowly changing
+ * counters take about one byte per sample.
+ * <p>
+ * The header keeps two times of the same moment for aligning the rows to a trace. The perfd start time is the
+ * perfd clock in nanoseconds, which the time column counts from, and the trace start time is the start time
+ * of the trace in microseconds since the epoch, see {@link #toTraceTime(long)}.
+ * <pre>
+ * u4 magic "MTTS", u4 version, u8 perfd start time, u8 trace start time, u4 column count, u4 row count,
+ * then for every column: utf name, varint deltas of all rows
+ * </pre>
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TelemetryFile {
+    public static final String EXTENSION = ".telemetry";
+    private static final int MAGIC = 0x4d545453;    // "MTTS"
+    private static final int VERSION = 2;
+
+    private final String[] mColumns;
+    private long[][] mValues;
+    private int mRowCount = 0;
+    private long mPerfdStartTime = 0;
+    private long mTraceStartTime = 0;
+
+
+    public TelemetryFile(String... columns) {
+        this.mColumns = columns;
+        this.mValues = new long[columns.length][64];
+    }
+
+    public void addRow(long... values) {
+        if (values.length != mColumns.length) {
+            throw new IllegalArgumentException("Expected " + mColumns.length + " values");
+        }
+        if (mRowCount == mValues[0].length) {
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = Arrays.copyOf(mValues[i], mRowCount * 2);
+            }
+        }
+        for (int i = 0; i < values.length; i++) {
+            mValues[i][mRowCount] = values[i];
+        }
+        mRowCount++;
+    }
+
+    public String[] getColumns() {
+        return mColumns.clone();
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    public long getValue(int row, int column) {
+        return mValues[column][row];
+    }
+
+    /**
+     * @return the perfd time in nanoseconds which the time column counts from
+     */
+    public long getPerfdStartTime() {
+        return mPerfdStartTime;
+    }
+
+    public void setPerfdStartTime(long perfdStartTime) {
+        this.mPerfdStartTime = perfdStartTime;
+    }
+
+    /**
+     * @return the start time of the trace in microseconds since the epoch, or 0 if the trace isn't saved
+     */
+    public long getTraceStartTime() {
+        return mTraceStartTime;
+    }
+
+    public void setTraceStartTime(long traceStartTime) {
+        this.mTraceStartTime = traceStartTime;
+    }
+
+    /**
+     * Place a time of the time column on the trace timeline
+     *
+     * @param time the time in microseconds since the perfd start time
+     * @return the time in microseconds since the epoch, on the clock of {@link TraceFile#getStartTime()}
+     */
+    public long toTraceTime(long time) {
+        return mTraceStartTime + time;
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mPerfdStartTime);
+            out.writeLong(mTraceStartTime);
+            out.writeInt(mColumns.length);
+            out.writeInt(mRowCount);
+            for (int i = 0; i < mColumns.length; i++) {
+                out.writeUTF(mColumns[i]);
+                long previous = 0;
+                for (int row = 0; row < mRowCount; row++) {
+                    long delta = mValues[i][row] - previous;
+                    writeVarint(out, (delta << 1) ^ (delta >> 63));
+                    previous = mValues[i][row];
+                }
+            }
+        }
+    }
+
+    public static TelemetryFile read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a telemetry file: " + file);
+            }
+            long perfdStartTime = in.readLong();
+            long traceStartTime = in.readLong();
+            String[] columns = new String[in.readInt()];
+            int rowCount = in.readInt();
+            long[][] values = new long[columns.length][Math.max(1, rowCount)];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = in.readUTF();
+                long value = 0;
+                for (int row = 0; row < rowCount; row++) {
+                    long zigzag = readVarint(in);
+                    value += (zigzag >>> 1) ^ -(zigzag & 1);
+                    values[i][row] = value;
+                }
+            }
+
+            TelemetryFile telemetry = new TelemetryFile(columns);
+            telemetry.mValues = values;
+            telemetry.mRowCount = rowCount;
+            telemetry.mPerfdStartTime = perfdStartTime;
+            telemetry.mTraceStartTime = traceStartTime;
+            return telemetry;
+        }
+    }
+
+    private static void writeVarint(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarint(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.AndroidDebugBridge;
+import com.android.ddmlib.IDevice;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running tracer which keeps the bridge, perfd and the port forwards warm for every device,
+ * and accepts commands from {@link #sendCommand(int, String...)} on a local control port.
+ * <p>
+ * A request is one line of tab-separated fields. The response is zero or more message lines
+ * followed by a final "OK" or "ERROR" line. Any local process can connect to the control port,
+ * so the output files of the traces are confined to the output directory of the daemon.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceDaemon {
+    public static final int DEFAULT_CONTROL_PORT = 12390;
+
+    public static final String COMMAND_START = "start";
+    public static final String COMMAND_STOP = "stop";
+    public static final String COMMAND_STATUS = "status";
+    public static final String COMMAND_SHUTDOWN = "shutdown";
+
+    private static final String RESPONSE_OK = "OK";
+    private static final String RESPONSE_ERROR = "ERROR";
+
+    private final AndroidDebugBridge mAdb;
+    private final int mPerfdPort;
+    private final File mOutputDir;
+    private final Map<String, PerfdConnection> mConnections = new ConcurrentHashMap<>();
+    private final Map<String, StudioProfilerHack> mSessions = new ConcurrentHashMap<>();
+    private final Map<String, Object> mDeviceLocks = new ConcurrentHashMap<>();
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private volatile ServerSocket mServerSocket;
+    private volatile boolean mIsShuttingDown = false;
+
+    private final AndroidDebugBridge.IDeviceChangeListener mDeviceListener =
+            new AndroidDebugBridge.IDeviceChangeListener() {
+                @Override
+                public void deviceConnected(IDevice device) {
+                    warmUp(device);
+                }
+
+                @Override
+                public void deviceDisconnected(IDevice device) {
+                    dropSessions(device.getSerialNumber());
+                    PerfdConnection connection = mConnections.remove(device.getSerialNumber());
+                    if (connection != null) {
+                        connection.close();
+                    }
+                }
+
+                @Override
+                public void deviceChanged(IDevice device, int changeMask) {
+                    if ((changeMask & IDevice.CHANGE_STATE) != 0) {
+                        warmUp(device);
+                    }
+                }
+            };
+
+
+    /**
+     * @param outputDir the directory which the output files of the traces must be in
+     */
+    public TraceDaemon(AndroidDebugBridge adb, int perfdPort, File outputDir) {
+        this.mAdb = adb;
+        this.mPerfdPort = perfdPort;
+        this.mOutputDir = outputDir;
+    }
+
+    /**
+     * Serve commands until a shutdown command is received
+     */
+    public void run(int controlPort) throws IOException {
+        AndroidDebugBridge.addDeviceChangeListener(mDeviceListener);
+        for (IDevice device : mAdb.getDevices()) {
+            warmUp(device);
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(controlPort, 50, InetAddress.getLoopbackAddress())) {
+            mServerSocket = serverSocket;
+            System.out.println("Daemon is listening on port " + serverSocket.getLocalPort());
+
+            while (!serverSocket.isClosed()) {
+                final Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    // Closed by the shutdown command
+                    break;
+                }
+                mExecutor.execute(() -> handle(socket));
+            }
+
+        } finally {
+            AndroidDebugBridge.removeDeviceChangeListener(mDeviceListener);
+            mExecutor.shutdownNow();
+            for (StudioProfilerHack profiler : mSessions.values()) {
+                profiler.terminate();
+            }
+            for (PerfdConnection connection : mConnections.values()) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Send a command to the daemon and print its response
+     *
+     * @return the exit code, 0 if the command succeeded
+     */
+    public static int sendCommand(int controlPort, String... fields) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), controlPort)) {
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(String.join("\t", fields) + "\n");
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals(RESPONSE_OK)) {
+                    return 0;
+                } else if (line.startsWith(RESPONSE_ERROR)) {
+                    return 1;
+                }
+                System.out.println(line);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Couldn't connect to the daemon on port " + controlPort);
+        }
+        return 1;
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+
+            String line = reader.readLine();
+            List<String> messages = new ArrayList<>();
+            boolean success = line != null && execute(line.split("\t", -1), messages);
+            for (String message : messages) {
+                writer.println(message);
+            }
+            writer.println(success ? RESPONSE_OK : RESPONSE_ERROR);
+            writer.flush();
+
+            if (mIsShuttingDown) {
+                mServerSocket.close();
+            }
+
+        } catch (IOException ignored) {
+        }
+    }
+
+    private boolean execute(String[] request, List<String> messages) {
+        try {
+            switch (request[0]) {
+                case COMMAND_START:
+                    return start(request[1], request[2], Integer.valueOf(request[3]), request[4], messages);
+
+                case COMMAND_STOP:
+                    return stop(request[1], request[2], messages);
+
+                case COMMAND_STATUS:
+                    status(messages);
+                    return true;
+
+                case COMMAND_SHUTDOWN:
+                    mIsShuttingDown = true;
+                    messages.add("Daemon is shutting down");
+                    return true;
+
+                default:
+                    messages.add("Unknown command: " + request[0]);
+                    return false;
+            }
+
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            messages.add("Invalid request");
+            return false;
+        }
+    }
+
+    private boolean start(String serial, String packageName, int samplingInterval, String outputFile,
+                          List<String> messages) {
+        if (!isInOutputDir(outputFile)) {
+            messages.add("Output file:" + outputFile + " is not in the output directory " + mOutputDir + ".");
+            return false;
+        }
+
+        PerfdConnection connection = getConnection(serial, messages);
+        if (connection == null) {
+            return false;
+        }
+
+        String key = connection.getDevice().getSerialNumber() + "/" + packageName;
+        // Sessions of the same device are started and stopped one by one
+        synchronized (getDeviceLock(connection)) {
+            if (mSessions.containsKey(key)) {
+                messages.add("Target app:" + packageName + " is being profiled.");
+                return false;
+            }
+
+            StudioProfilerHack profiler = new StudioProfilerHack(connection, packageName, samplingInterval, outputFile);
+            if (!profiler.startProfilingApp()) {
+                profiler.terminate();
+                messages.add("Start profiling failed.");
+                return false;
+            }
+
+            mSessions.put(key, profiler);
+        }
+
+        messages.add("Start profiling...");
+        return true;
+    }
+
+    private boolean stop(String serial, String packageName, List<String> messages) {
+        PerfdConnection connection = getConnection(serial, messages);
+        if (connection == null) {
+            return false;
+        }
+
+        String key = connection.getDevice().getSerialNumber() + "/" + packageName;
+        synchronized (getDeviceLock(connection)) {
+            StudioProfilerHack profiler = mSessions.remove(key);
+            if (profiler == null) {
+                messages.add("Target app:" + packageName + " is not being profiled.");
+                return false;
+            }
+
+            try {
+                if (profiler.stopProfilingApp()) {
+                    messages.add("Stop profiling success. The trace file has been saved to \"" +
+                            profiler.getOutputFile() + "\"");
+                    return true;
+                } else {
+                    messages.add("Stop profiling failed.");
+                    return false;
+                }
+            } finally {
+                profiler.terminate();
+            }
+        }
+    }
+
+    /**
+     * The symbolic links and ".." are resolved, so the file can't escape the directory by its path
+     */
+    boolean isInOutputDir(String outputFile) {
+        try {
+            return new File(outputFile).getCanonicalFile().toPath().startsWith(mOutputDir.getCanonicalFile().toPath());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Terminate the sessions of a disconnected device, the apps can be profiled again when it reconnects
+     */
+    private void dropSessions(String serial) {
+        final String prefix = serial + "/";
+        for (String key : mSessions.keySet()) {
+            if (!key.startsWith(prefix)) {
+                continue;
+            }
+            StudioProfilerHack profiler = mSessions.remove(key);
+            if (profiler != null) {
+                profiler.terminate();
+                System.out.println("Device:" + serial + " is disconnected, drop the session of " + key);
+            }
+        }
+    }
+
+    private void status(List<String> messages) {
+        for (IDevice device : mAdb.getDevices()) {
+            PerfdConnection connection = mConnections.get(device.getSerialNumber());
+            messages.add(device.getSerialNumber() + "\t" + device.getState() + "\tperfd " +
+                    (connection != null && connection.isConnected() ? "ready" : "not ready"));
+        }
+        for (String key : mSessions.keySet()) {
+            messages.add(key + "\tprofiling");
+        }
+    }
+
+    /**
+     * @param serial the serial number of device, or empty for the first online device
+     */
+    private PerfdConnection getConnection(String serial, List<String> messages) {
+        IDevice device = null;
+        for (IDevice d : mAdb.getDevices()) {
+            if (serial.isEmpty() ? d.isOnline() : serial.equals(d.getSerialNumber())) {
+                device = d;
+                break;
+            }
+        }
+
+        if (device == null) {
+            messages.add(serial.isEmpty() ? "No connected devices" : "Device:" + serial + " not found.");
+            return null;
+        }
+
+        final IDevice target = device;
+        PerfdConnection connection = mConnections.compute(device.getSerialNumber(), (s, old) -> {
+            // The device object changes when it reconnects
+            if (old != null && old.getDevice() == target) {
+                return old;
+            }
+            if (old != null) {
+                old.close();
+            }
+            return new PerfdConnection(target, mPerfdPort);
+        });
+
+        if (!connection.connect()) {
+            messages.add("Copy and excute perdf failed.");
+            return null;
+        }
+        return connection;
+    }
+
+    private Object getDeviceLock(PerfdConnection connection) {
+        return mDeviceLocks.computeIfAbsent(connection.getDevice().getSerialNumber(), s -> new Object());
+    }
+
+    /**
+     * Deploy perfd ahead, so that starting a trace on this device doesn't wait for it
+     */
+    private void warmUp(final IDevice device) {
+        if (!device.isOnline() || mExecutor.isShutdown()) {
+            return;
+        }
+        mExecutor.execute(() -> getConnection(device.getSerialNumber(), new ArrayList<>()));
+    }
+}
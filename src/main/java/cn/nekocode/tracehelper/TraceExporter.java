@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.report.ChromeTraceWriter;
+import cn.nekocode.tracehelper.report.FlameGraphWriter;
+import cn.nekocode.tracehelper.report.SummaryWriter;
+import cn.nekocode.tracehelper.trace.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts a saved trace file into the extra output formats and the summary requested on the command line
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class TraceExporter {
+    static final String FORMAT_FOLDED = "folded";
+    static final String FORMAT_SVG = "svg";
+    static final String FORMAT_CHROME = "chrome";
+    static final String FORMAT_ARCHIVE = "archive";
+
+    static boolean isFormat(String format) {
+        return FORMAT_FOLDED.equals(format) || FORMAT_SVG.equals(format) || FORMAT_CHROME.equals(format) ||
+                FORMAT_ARCHIVE.equals(format);
+    }
+
+    /**
+     * Write "out.folded", "out.svg", "out.json", "out.mta", "out.summary.json" etc. next to the trace file "out.trace"
+     *
+     * @param prefix the prefix of printed messages
+     */
+    static void export(String traceFile, TraceOptions options, String prefix) {
+        // The trace is deobfuscated first, so every derived output has the original names
+        if (options.mapping != null && deobfuscate(traceFile, options.mapping, prefix)) {
+            System.out.println(prefix + "The trace file has been deobfuscated");
+        }
+
+        final List<String> formats = options.formats;
+        if (formats.isEmpty() && options.summaryTop <= 0) {
+            return;
+        }
+
+        try (TraceFile trace = TraceFile.open(new File(traceFile))) {
+            if (options.summaryTop > 0) {
+                SummaryWriter summary = new SummaryWriter(MethodSummary.build(trace, false), options.summaryTop);
+                System.out.println(prefix + "Summary of \"" + traceFile + "\":");
+                summary.print(System.out);
+
+                File file = new File(MethodTracer.stripExtension(traceFile) + ".summary.json");
+                summary.writeJson(file);
+                System.out.println(prefix + "The summary has been saved to \"" + file + "\"");
+            }
+            if (formats.isEmpty()) {
+                return;
+            }
+
+            FlameGraphWriter flameGraph = null;
+            for (String format : formats) {
+                File file;
+                if (FORMAT_CHROME.equals(format)) {
+                    file = new File(MethodTracer.stripExtension(traceFile) + ".json");
+                    new ChromeTraceWriter(trace).write(file);
+                } else if (FORMAT_ARCHIVE.equals(format)) {
+                    file = new File(MethodTracer.stripExtension(traceFile) + TraceArchive.EXTENSION);
+                    TraceArchiveWriter.write(trace, file);
+                } else {
+                    file = new File(MethodTracer.stripExtension(traceFile) + "." + format);
+                    if (flameGraph == null) {
+                        CallTree tree = CallTree.build(trace, false, ForkJoinPool.commonPool());
+                        flameGraph = new FlameGraphWriter(trace, tree);
+                    }
+                    if (FORMAT_FOLDED.equals(format)) {
+                        flameGraph.writeFolded(file);
+                    } else {
+                        flameGraph.writeSvg(file);
+                    }
+                }
+                System.out.println(prefix + "The " + format + " output has been saved to \"" + file + "\"");
+            }
+
+        } catch (IOException e) {
+            System.out.println(prefix + "Export trace file \"" + traceFile + "\" failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Rewrite the method table of the trace file to the original names of the mapping
+     *
+     * @return false if the trace file couldn't be rewritten, it is kept as is then
+     */
+    static boolean deobfuscate(String traceFile, ProguardMapping mapping, String prefix) {
+        // A compressed trace is rewritten to a plain file first, then compressed from it
+        final boolean compressed = BlockGzipWriter.isCompressed(traceFile);
+        final File plainFile = new File(traceFile + ".mapped.trace");
+        final File tempFile = new File(traceFile + ".mapped");
+        try {
+            try (TraceFile trace = TraceFile.open(new File(traceFile))) {
+                trace.applyMapping(mapping);
+                TraceWriter.write(trace, compressed ? plainFile : tempFile);
+            }
+            if (compressed) {
+                try (TraceFile trace = TraceFile.open(plainFile)) {
+                    BlockGzipWriter.write(trace, tempFile, ForkJoinPool.commonPool());
+                }
+            }
+            Files.move(tempFile.toPath(), new File(traceFile).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+
+        } catch (IOException e) {
+            System.out.println(prefix + "Deobfuscate trace file \"" + traceFile + "\" failed: " + e.getMessage());
+            return false;
+
+        } finally {
+            plainFile.delete();
+            tempFile.delete();
+        }
+    }
+}
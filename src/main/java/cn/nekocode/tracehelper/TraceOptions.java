@@ -0,0 +1,104 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import cn.nekocode.tracehelper.trace.ProguardMapping;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Options of a tracing run parsed from the command line
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class TraceOptions {
+    String adbPath;
+    String deviceSerials;
+    String packageName;
+    int perfdPort = 12389;
+    int samplingInterval = 10;
+
+    /**
+     * The max trace bytes per second to calibrate the sampling interval against, or 0 to use the fixed interval
+     */
+    long intervalBudget = 0;
+    int time = 0;
+    String outputFile = "out.trace";
+
+    /**
+     * Extra output formats written after the trace is saved, see {@link TraceExporter}
+     */
+    List<String> formats = new ArrayList<>();
+
+    /**
+     * The mapping to deobfuscate the output trace, or null if the app isn't obfuscated
+     */
+    ProguardMapping mapping;
+
+    /**
+     * The number of methods listed in the summary, or 0 for no summary
+     */
+    int summaryTop = 0;
+
+    /**
+     * Sample the cpu and memory from perfd, see {@link PerfdTelemetry}
+     */
+    boolean telemetry = false;
+
+    /**
+     * The file of session metrics, see {@link SessionMetrics}
+     */
+    String metricsFile;
+
+    /**
+     * The max number of traces transferred at the same time, or 0 for unlimited, see {@link TransferLimiter}
+     */
+    int maxTransfers = 0;
+
+    /**
+     * Trace to a file on device, see {@link StudioProfilerHack#setDeviceFile(String, int)}
+     */
+    String deviceFile;
+    int deviceBufferBytes = 0;
+
+    /**
+     * The activity launched by cold start capture, see {@link ColdStartCapture}
+     */
+    String coldStartActivity;
+
+    /**
+     * Repeated capture, see {@link IterationCapture}
+     */
+    int iterations = 1;
+    String betweenCommand;
+
+    /**
+     * Rolling capture, see {@link RollingCapture}
+     */
+    int segmentSeconds = 0;
+    int ringCount = 10;
+    long ringBytes = 0;
+
+    /**
+     * Trigger-armed capture, see {@link TriggeredCapture}
+     */
+    Pattern startPattern;
+    Pattern stopPattern;
+    int preRollSeconds = 0;
+    int postRollSeconds = 0;
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the trace transfers running at the same time on this host, so the devices sharing the USB bandwidth
+ * don't slow each other down. A session waits for a permit before it requests the trace data,
+ * and holds it until the data has been received or pulled.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+final class TransferLimiter {
+    /**
+     * Unlimited until {@link #setMaxTransfers(int)} is called
+     */
+    private static volatile Semaphore sPermits = null;
+
+
+    private TransferLimiter() {
+    }
+
+    /**
+     * Set the max number of transfers, or 0 for unlimited. It must be called before any session is started.
+     */
+    static void setMaxTransfers(int maxTransfers) {
+        sPermits = maxTransfers > 0 ? new Semaphore(maxTransfers, true) : null;
+    }
+
+    /**
+     * Wait for a permit, the waiting sessions get the permits in order
+     */
+    static Permit acquire() throws InterruptedException {
+        final Semaphore permits = sPermits;
+        if (permits != null && !permits.tryAcquire()) {
+            System.out.println("Waiting for other trace transfers to finish...");
+            permits.acquire();
+        }
+        return new Permit(permits);
+    }
+
+    static final class Permit {
+        private final Semaphore mPermits;
+        private final AtomicBoolean mIsReleased = new AtomicBoolean(false);
+
+        private Permit(Semaphore permits) {
+            this.mPermits = permits;
+        }
+
+        /**
+         * Release the permit, it can be called more than once
+         */
+        void release() {
+            if (mPermits != null && mIsReleased.compareAndSet(false, true)) {
+                mPermits.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Capture which is armed by watching the logcat of device,
+ * and started or stopped when a line matches the start or stop pattern.
+ * <p>
+ * With pre-roll, the profiler already runs while armed and is restarted every pre-roll period,
+ * so the trace also covers the time before the start marker. If the marker comes less than
+ * a pre-roll period after a restart, the previous period is kept in a "-preroll" file.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TriggeredCapture implements LogcatTrigger.Listener {
+    private static final String LOGCAT_COMMAND = "logcat -v brief -T 1";
+    private static final Integer EVENT_START = 1;
+    private static final Integer EVENT_STOP = 2;
+
+    private final PerfdConnection mConnection;
+    private final String mPackageName;
+    private final int mSamplingInterval;
+    private final String mOutputFile;
+    private final Pattern mStartPattern;
+    private final Pattern mStopPattern;
+    private final long mPreRollMillis;
+    private final long mPostRollMillis;
+    private final long mMaxMillis;
+    private final BlockingQueue<Integer> mEvents = new LinkedBlockingQueue<>();
+    private String mDeviceFile;
+    private int mDeviceBufferSize = 0;
+
+
+    /**
+     * @param stopPattern the pattern of stop marker, or null to stop after maxSeconds
+     * @param maxSeconds  the max duration after the start marker, or 0 for unlimited
+     */
+    public TriggeredCapture(PerfdConnection connection, String packageName, int samplingInterval, String outputFile,
+                            Pattern startPattern, Pattern stopPattern,
+                            int preRollSeconds, int postRollSeconds, int maxSeconds) {
+        this(connection, packageName, samplingInterval, outputFile, startPattern, stopPattern,
+                TimeUnit.SECONDS.toMillis(preRollSeconds), TimeUnit.SECONDS.toMillis(postRollSeconds),
+                TimeUnit.SECONDS.toMillis(maxSeconds));
+    }
+
+    TriggeredCapture(PerfdConnection connection, String packageName, int samplingInterval, String outputFile,
+                     Pattern startPattern, Pattern stopPattern,
+                     long preRollMillis, long postRollMillis, long maxMillis) {
+        this.mConnection = connection;
+        this.mPackageName = packageName;
+        this.mSamplingInterval = samplingInterval;
+        this.mOutputFile = outputFile;
+        this.mStartPattern = startPattern;
+        this.mStopPattern = stopPattern;
+        this.mPreRollMillis = preRollMillis;
+        this.mPostRollMillis = postRollMillis;
+        this.mMaxMillis = maxMillis;
+    }
+
+    /**
+     * Trace to a file on device, see {@link StudioProfilerHack#setDeviceFile(String, int)}
+     */
+    public void setDeviceFile(String remoteFile, int bufferSize) {
+        this.mDeviceFile = remoteFile;
+        this.mDeviceBufferSize = bufferSize;
+    }
+
+    @Override
+    public void onStartMarker() {
+        mEvents.offer(EVENT_START);
+    }
+
+    @Override
+    public void onStopMarker() {
+        mEvents.offer(EVENT_STOP);
+    }
+
+    /**
+     * Arm and capture once
+     *
+     * @return false if the profiler couldn't be started or stopped
+     */
+    public boolean run() throws InterruptedException {
+        final LogcatTrigger trigger = new LogcatTrigger(mStartPattern, mStopPattern, this);
+        Thread logcatThread = new Thread(() -> {
+            try {
+                mConnection.getDevice().executeShellCommand(LOGCAT_COMMAND, trigger, 0L, null);
+            } catch (Exception e) {
+                if (!trigger.isCancelled()) {
+                    System.out.println("Read logcat failed.");
+                }
+            }
+        });
+        logcatThread.setDaemon(true);
+        logcatThread.start();
+
+        StudioProfilerHack profiler = null;
+        File preRollFile = new File(MethodTracer.insertBeforeExtension(mOutputFile, "-preroll"));
+        try {
+            long segmentStart = 0;
+            if (mPreRollMillis > 0) {
+                profiler = startProfiling();
+                if (profiler == null) {
+                    return false;
+                }
+                segmentStart = System.nanoTime();
+            }
+
+            // Wait for the start marker
+            System.out.println("Armed, waiting for the start marker...");
+            while (true) {
+                Integer event;
+                if (profiler == null) {
+                    event = mEvents.take();
+                } else {
+                    long remaining = mPreRollMillis - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - segmentStart);
+                    event = mEvents.poll(Math.max(0, remaining), TimeUnit.MILLISECONDS);
+                }
+
+                if (event == null) {
+                    // Restart the pre-roll period and keep the previous one
+                    boolean stopped = profiler.stopProfilingApp();
+                    profiler.terminate();
+                    profiler = null;
+                    if (!stopped) {
+                        return false;
+                    }
+                    moveQuietly(new File(mOutputFile), preRollFile);
+
+                    profiler = startProfiling();
+                    if (profiler == null) {
+                        return false;
+                    }
+                    segmentStart = System.nanoTime();
+
+                } else if (EVENT_START.equals(event)) {
+                    break;
+                }
+            }
+
+            if (profiler == null) {
+                profiler = startProfiling();
+                if (profiler == null) {
+                    return false;
+                }
+            } else if (System.nanoTime() - segmentStart >= TimeUnit.MILLISECONDS.toNanos(mPreRollMillis)) {
+                // The current trace already covers the whole pre-roll
+                preRollFile.delete();
+            }
+            System.out.println("Start marker matched, start profiling...");
+
+            // Wait for the stop marker
+            long deadline = mMaxMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mMaxMillis) : 0;
+            while (true) {
+                Integer event;
+                if (deadline == 0) {
+                    event = mEvents.take();
+                } else {
+                    event = mEvents.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                }
+                if (event == null || EVENT_STOP.equals(event)) {
+                    break;
+                }
+            }
+
+            if (mPostRollMillis > 0) {
+                Thread.sleep(mPostRollMillis);
+            }
+
+            boolean stopped = profiler.stopProfilingApp();
+            if (stopped) {
+                System.out.println("Stop profiling success. The trace file has been saved to \"" + mOutputFile + "\"");
+                if (preRollFile.exists()) {
+                    System.out.println("The pre-roll before it has been saved to \"" + preRollFile + "\"");
+                }
+            }
+            return stopped;
+
+        } finally {
+            trigger.cancel();
+            logcatThread.interrupt();
+            if (profiler != null) {
+                profiler.terminate();
+            }
+        }
+    }
+
+    /**
+     * @return the started profiler, or null if it couldn't be started
+     */
+    StudioProfilerHack startProfiling() {
+        StudioProfilerHack profiler = new StudioProfilerHack(mConnection, mPackageName, mSamplingInterval, mOutputFile);
+        if (mDeviceFile != null) {
+            profiler.setDeviceFile(mDeviceFile, mDeviceBufferSize);
+        }
+        if (!profiler.startProfilingApp()) {
+            profiler.terminate();
+            return null;
+        }
+        return profiler;
+    }
+
+    private static void moveQuietly(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ignored) {
+        }
+    }
+}
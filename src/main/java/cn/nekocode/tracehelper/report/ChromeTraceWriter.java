@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.report;
+
+import cn.nekocode.tracehelper.trace.CallStackWalker;
+import cn.nekocode.tracehelper.trace.TraceFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Writes a trace as Chrome trace event JSON, which can be opened by chrome://tracing and ui.perfetto.dev.
+ * <p>
+ * Begin and end events are streamed to the file as the records are decoded, so the memory used
+ * doesn't grow with the trace size.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class ChromeTraceWriter implements CallStackWalker.Visitor {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // Enough for the longest event except its name
+    private static final int MAX_EVENT_OVERHEAD = 128;
+
+    private final TraceFile mTrace;
+    private final byte[] mPid;
+    private final byte[][] mNames;
+    private int[] mThreadIds = new int[64];
+    private FileChannel mChannel;
+    private ByteBuffer mBuffer;
+    private boolean mIsFirstEvent;
+
+
+    public ChromeTraceWriter(TraceFile trace) {
+        this.mTrace = trace;
+        String pid = trace.getKeys().get("pid");
+        this.mPid = (pid != null && pid.matches("\\d+") ? pid : "0").getBytes(StandardCharsets.US_ASCII);
+        this.mNames = new byte[trace.getMethods().size()][];
+    }
+
+    public void write(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            mChannel = channel;
+            mBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            mIsFirstEvent = true;
+
+            put("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            try {
+                new CallStackWalker(mTrace, false).walk(this);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            flush();
+            put("\n]}\n");
+            flush();
+        } finally {
+            mChannel = null;
+            mBuffer = null;
+        }
+    }
+
+    @Override
+    public void onThread(int thread, int threadId) {
+        if (thread == mThreadIds.length) {
+            mThreadIds = Arrays.copyOf(mThreadIds, thread * 2);
+        }
+        mThreadIds[thread] = threadId;
+
+        byte[] name = jsonString(mTrace.getThreadName(threadId));
+        beginEvent('M', thread, name.length);
+        put(",\"name\":\"thread_name\",\"args\":{\"name\":");
+        mBuffer.put(name);
+        put("}}");
+    }
+
+    @Override
+    public void onEnter(int thread, int depth, int methodIndex, long time) {
+        byte[] name = mNames[methodIndex];
+        if (name == null) {
+            name = mNames[methodIndex] = jsonString(mTrace.getMethods().get(methodIndex).getName());
+        }
+
+        beginEvent('B', thread, name.length);
+        put(",\"ts\":");
+        putLong(time);
+        put(",\"name\":");
+        mBuffer.put(name);
+        mBuffer.put((byte) '}');
+    }
+
+    @Override
+    public void onExit(int thread, int depth, int methodIndex, long time, long inclusiveTime, long exclusiveTime) {
+        beginEvent('E', thread, 0);
+        put(",\"ts\":");
+        putLong(time);
+        mBuffer.put((byte) '}');
+    }
+
+    /**
+     * Make room for the event and write its common fields
+     */
+    private void beginEvent(char phase, int thread, int extraLength) {
+        if (mBuffer.remaining() < MAX_EVENT_OVERHEAD + extraLength) {
+            flushUnchecked();
+            if (mBuffer.capacity() < MAX_EVENT_OVERHEAD + extraLength) {
+                mBuffer = ByteBuffer.allocate(MAX_EVENT_OVERHEAD + extraLength);
+            }
+        }
+
+        put(mIsFirstEvent ? "\n{\"ph\":\"" : ",\n{\"ph\":\"");
+        mIsFirstEvent = false;
+        mBuffer.put((byte) phase);
+        put("\",\"pid\":");
+        mBuffer.put(mPid);
+        put(",\"tid\":");
+        putLong(mThreadIds[thread]);
+    }
+
+    private void put(String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            mBuffer.put((byte) ascii.charAt(i));
+        }
+    }
+
+    private void putLong(long value) {
+        if (value < 0) {
+            mBuffer.put((byte) '-');
+            value = -value;
+        }
+        if (value < 10) {
+            mBuffer.put((byte) ('0' + value));
+            return;
+        }
+
+        int start = mBuffer.position();
+        while (value > 0) {
+            mBuffer.put((byte) ('0' + value % 10));
+            value /= 10;
+        }
+        // Reverse the digits
+        for (int i = start, j = mBuffer.position() - 1; i < j; i++, j--) {
+            byte b = mBuffer.get(i);
+            mBuffer.put(i, mBuffer.get(j));
+            mBuffer.put(j, b);
+        }
+    }
+
+    private void flush() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+
+    /**
+     * The visitor can't throw checked exceptions, so the failure is rethrown by {@link #write(File)}
+     */
+    private void flushUnchecked() {
+        try {
+            flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the quoted and escaped json string in utf-8
+     */
+    private static byte[] jsonString(String s) {
+        StringBuilder builder = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
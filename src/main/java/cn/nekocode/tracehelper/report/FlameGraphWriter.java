@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.report;
+
+import cn.nekocode.tracehelper.trace.CallTree;
+import cn.nekocode.tracehelper.trace.TraceFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.function.IntFunction;
+
+/**
+ * Writes a {@link CallTree} as collapsed stacks ("thread;a;b;c weight" per line),
+ * or as a self-contained flame graph SVG
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class FlameGraphWriter {
+    private static final int IMAGE_WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 16;
+    private static final int PADDING = 10;
+    private static final int TITLE_HEIGHT = 30;
+    private static final double MIN_FRAME_WIDTH = 0.1;
+    private static final double FONT_WIDTH = 0.59 * 12;
+
+    private final String mTitle;
+    private final CallTree mTree;
+    private final String[] mNames;
+
+
+    public FlameGraphWriter(TraceFile trace, CallTree tree) {
+        this(trace.getFile().getName(), tree, frame -> CallTree.frameName(trace, frame));
+    }
+
+    /**
+     * @param title      the title of the svg
+     * @param frameNames the name of a frame of the tree
+     */
+    public FlameGraphWriter(String title, CallTree tree, IntFunction<String> frameNames) {
+        this.mTitle = title;
+        this.mTree = tree;
+
+        // Resolve the name of every node once
+        this.mNames = new String[tree.size()];
+        int maxFrame = -1;
+        for (int i = 1; i < tree.size(); i++) {
+            maxFrame = Math.max(maxFrame, tree.getFrame(i));
+        }
+        final String[] methodNames = new String[maxFrame + 1];
+        mNames[CallTree.ROOT] = "all";
+        for (int i = 1; i < tree.size(); i++) {
+            int frame = tree.getFrame(i);
+            if (CallTree.isThreadFrame(frame)) {
+                mNames[i] = frameNames.apply(frame);
+            } else {
+                if (methodNames[frame] == null) {
+                    methodNames[frame] = frameNames.apply(frame);
+                }
+                mNames[i] = methodNames[frame];
+            }
+        }
+    }
+
+    public void writeFolded(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeFolded(writer);
+        }
+    }
+
+    public void writeFolded(Writer writer) throws IOException {
+        int[] ancestors = new int[256];
+        for (int node = 1; node < mTree.size(); node++) {
+            long weight = mTree.getWeight(node);
+            if (weight <= 0) {
+                continue;
+            }
+
+            int depth = 0;
+            for (int n = node; n != CallTree.ROOT; n = mTree.getParent(n)) {
+                if (depth == ancestors.length) {
+                    ancestors = Arrays.copyOf(ancestors, depth * 2);
+                }
+                ancestors[depth++] = n;
+            }
+            for (int i = depth - 1; i >= 0; i--) {
+                writer.write(mNames[ancestors[i]]);
+                writer.write(i > 0 ? ';' : ' ');
+            }
+            writer.write(Long.toString(weight));
+            writer.write('\n');
+        }
+    }
+
+    public void writeSvg(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeSvg(writer);
+        }
+    }
+
+    public void writeSvg(Writer writer) throws IOException {
+        final int size = mTree.size();
+        final long[] totals = mTree.getTotalWeights();
+        final int[] depths = mTree.getDepths();
+        final long total = Math.max(1, totals[CallTree.ROOT]);
+        final double scale = (double) (IMAGE_WIDTH - PADDING * 2) / total;
+
+        // Children sorted by name, like the original flamegraph.pl
+        final int[][] children = childrenOf(size);
+        final Comparator<Integer> byName = Comparator.comparing(n -> mNames[n]);
+        for (int i = 0; i < size; i++) {
+            if (children[i].length > 1) {
+                Integer[] sorted = new Integer[children[i].length];
+                for (int j = 0; j < sorted.length; j++) {
+                    sorted[j] = children[i][j];
+                }
+                Arrays.sort(sorted, byName);
+                for (int j = 0; j < sorted.length; j++) {
+                    children[i][j] = sorted[j];
+                }
+            }
+        }
+
+        // Lay out the frames, a child starts where its previous sibling ends
+        final long[] offsets = new long[size];
+        int maxDepth = 0;
+        for (int i = 0; i < size; i++) {
+            long offset = offsets[i];
+            for (int child : children[i]) {
+                offsets[child] = offset;
+                offset += totals[child];
+            }
+            if (totals[i] * scale >= MIN_FRAME_WIDTH) {
+                maxDepth = Math.max(maxDepth, depths[i]);
+            }
+        }
+
+        final int height = (maxDepth + 1) * FRAME_HEIGHT + TITLE_HEIGHT + PADDING * 2;
+        writer.write("<?xml version=\"1.0\" standalone=\"no\"?>\n");
+        writer.write("<svg version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" width=\"" + IMAGE_WIDTH +
+                "\" height=\"" + height + "\" viewBox=\"0 0 " + IMAGE_WIDTH + " " + height + "\">\n");
+        writer.write("<rect x=\"0\" y=\"0\" width=\"100%\" height=\"100%\" fill=\"#f8f8f8\"/>\n");
+        writer.write("<text x=\"" + IMAGE_WIDTH / 2 + "\" y=\"24\" text-anchor=\"middle\" " +
+                "font-family=\"Verdana\" font-size=\"17\">" + escape(mTitle) + "</text>\n");
+        writer.write("<g font-family=\"Verdana\" font-size=\"12\">\n");
+
+        for (int i = 0; i < size; i++) {
+            double width = totals[i] * scale;
+            if (width < MIN_FRAME_WIDTH) {
+                continue;
+            }
+            double x = PADDING + offsets[i] * scale;
+            int y = height - PADDING - (depths[i] + 1) * FRAME_HEIGHT;
+            String name = escape(mNames[i]);
+            String title = name + " (" + totals[i] + " us, " +
+                    String.format(Locale.ROOT, "%.2f", totals[i] * 100.0 / total) + "%)";
+
+            writer.write("<g><title>" + title + "</title>");
+            writer.write(String.format(Locale.ROOT,
+                    "<rect x=\"%.1f\" y=\"%d\" width=\"%.1f\" height=\"%d\" fill=\"%s\" rx=\"2\"/>",
+                    x, y, width, FRAME_HEIGHT - 1, colorOf(i)));
+            int chars = (int) ((width - 6) / FONT_WIDTH);
+            if (chars >= 3) {
+                String label = mNames[i].length() <= chars ?
+                        mNames[i] : mNames[i].substring(0, chars - 2) + "..";
+                writer.write(String.format(Locale.ROOT, "<text x=\"%.1f\" y=\"%d\">%s</text>",
+                        x + 3, y + FRAME_HEIGHT - 4, escape(label)));
+            }
+            writer.write("</g>\n");
+        }
+
+        writer.write("</g>\n</svg>\n");
+    }
+
+    private int[][] childrenOf(int size) {
+        final int[] counts = new int[size];
+        for (int i = 1; i < size; i++) {
+            counts[mTree.getParent(i)]++;
+        }
+        final int[][] children = new int[size][];
+        for (int i = 0; i < size; i++) {
+            children[i] = new int[counts[i]];
+            counts[i] = 0;
+        }
+        for (int i = 1; i < size; i++) {
+            int parent = mTree.getParent(i);
+            children[parent][counts[parent]++] = i;
+        }
+        return children;
+    }
+
+    /**
+     * A warm color which is stable for the same name
+     */
+    private String colorOf(int node) {
+        if (node == CallTree.ROOT || CallTree.isThreadFrame(mTree.getFrame(node))) {
+            return "rgb(180,190,210)";
+        }
+        int hash = mNames[node].hashCode() * 0x9E3779B9;
+        int r = 205 + ((hash >>> 8) & 0xff) % 50;
+        int g = (hash >>> 16 & 0xff) % 230;
+        int b = (hash >>> 24) % 55;
+        return "rgb(" + r + "," + g + "," + b + ")";
+    }
+
+    private static String escape(String s) {
+        StringBuilder builder = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String replacement;
+            switch (c) {
+                case '<':
+                    replacement = "&lt;";
+                    break;
+                case '>':
+                    replacement = "&gt;";
+                    break;
+                case '&':
+                    replacement = "&amp;";
+                    break;
+                case '"':
+                    replacement = "&quot;";
+                    break;
+                default:
+                    replacement = null;
+            }
+
+            if (replacement != null && builder == null) {
+                builder = new StringBuilder(s.length() + 16).append(s, 0, i);
+            }
+            if (builder != null) {
+                if (replacement != null) {
+                    builder.append(replacement);
+                } else {
+                    builder.append(c);
+                }
+            }
+        }
+        return builder != null ? builder.toString() : s;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.report;
+
+import cn.nekocode.tracehelper.trace.IterationStats;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Prints the hot methods of repeated traces with the distribution of their times, and writes them as JSON
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class IterationSummaryWriter {
+    private final IterationStats mStats;
+    private final int mTop;
+
+
+    /**
+     * @param top the number of methods listed
+     */
+    public IterationSummaryWriter(IterationStats stats, int top) {
+        this.mStats = stats;
+        this.mTop = top;
+    }
+
+    public void print(PrintStream out) {
+        out.println("Top " + mTop + " methods by median exclusive time of " + mStats.getCount() + " iterations:");
+        out.println(String.format(Locale.ROOT, "%12s %12s %12s %12s %12s  %s",
+                "Median(ms)", "P90(ms)", "P99(ms)", "Stddev(ms)", "Incl(ms)", "Method"));
+        for (int slot : mStats.topByMedianExclusiveTime(mTop)) {
+            IterationStats.Distribution exclusive = mStats.getExclusiveTimes(slot);
+            out.println(String.format(Locale.ROOT, "%12.3f %12.3f %12.3f %12.3f %12.3f  %s",
+                    exclusive.getMedian() / 1000, exclusive.getPercentile(90) / 1000,
+                    exclusive.getPercentile(99) / 1000, exclusive.getStandardDeviation() / 1000,
+                    mStats.getInclusiveTimes(slot).getMedian() / 1000, mStats.getName(slot)));
+        }
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeJson(writer);
+        }
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+
+        json.beginObject();
+        json.name("iterations").value(mStats.getCount());
+        json.name("clock").value("wall");
+        json.name("unit").value("us");
+        json.name("methods").beginArray();
+        for (int slot : mStats.topByMedianExclusiveTime(mTop)) {
+            json.beginObject();
+            json.name("name").value(mStats.getFullName(slot));
+            json.name("exclusive");
+            writeDistribution(json, mStats.getExclusiveTimes(slot));
+            json.name("inclusive");
+            writeDistribution(json, mStats.getInclusiveTimes(slot));
+            json.name("calls");
+            writeDistribution(json, mStats.getCalls(slot));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    private static void writeDistribution(JsonWriter json, IterationStats.Distribution distribution)
+            throws IOException {
+        json.beginObject();
+        json.name("median").value(distribution.getMedian());
+        json.name("p90").value(distribution.getPercentile(90));
+        json.name("p99").value(distribution.getPercentile(99));
+        json.name("mean").value(distribution.getMean());
+        json.name("variance").value(distribution.getVariance());
+        json.name("min").value(distribution.getMin());
+        json.name("max").value(distribution.getMax());
+        json.endObject();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.report;
+
+import cn.nekocode.tracehelper.trace.MergedProfile;
+import cn.nekocode.tracehelper.trace.MethodStats;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Writes a {@link MergedProfile} as collapsed stacks, and its hot methods as a table or JSON
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class MergedProfileWriter {
+    private final MergedProfile mProfile;
+    private final int mTop;
+
+
+    /**
+     * @param top the number of methods listed
+     */
+    public MergedProfileWriter(MergedProfile profile, int top) {
+        this.mProfile = profile;
+        this.mTop = top;
+    }
+
+    public void print(PrintStream out) {
+        final MethodStats stats = mProfile.getStats();
+        out.println("Top " + mTop + " methods by exclusive time over " + mProfile.getTraceCount() + " traces:");
+        out.println(String.format(Locale.ROOT, "%12s %12s %10s  %s", "Excl(ms)", "Incl(ms)", "Calls", "Method"));
+        for (int slot : stats.topByExclusiveTime(mTop)) {
+            out.println(String.format(Locale.ROOT, "%12.3f %12.3f %10d  %s",
+                    stats.getExclusiveTime(slot) / 1000.0, stats.getInclusiveTime(slot) / 1000.0,
+                    stats.getCalls(slot), mProfile.getMethodName(stats.getMethodIndex(slot))));
+        }
+    }
+
+    public void writeFolded(File file) throws IOException {
+        new FlameGraphWriter(file.getName(), mProfile.getTree(), mProfile::frameName).writeFolded(file);
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeJson(writer);
+        }
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        final MethodStats stats = mProfile.getStats();
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+
+        json.beginObject();
+        json.name("traces").value(mProfile.getTraceCount());
+        json.name("clock").value("wall");
+        json.name("unit").value("us");
+        json.name("records").value(mProfile.getRecordCount());
+        json.name("stacks").value(mProfile.getTree().size() - 1);
+        json.name("methods").beginArray();
+        for (int slot : stats.topByExclusiveTime(mTop)) {
+            int methodId = stats.getMethodIndex(slot);
+            json.beginObject();
+            json.name("name").value(mProfile.getMethodName(methodId));
+            json.name("signature").value(mProfile.getMethodSignature(methodId));
+            json.name("exclusive").value(stats.getExclusiveTime(slot));
+            json.name("inclusive").value(stats.getInclusiveTime(slot));
+            json.name("calls").value(stats.getCalls(slot));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.report;
+
+import cn.nekocode.tracehelper.trace.MethodInfo;
+import cn.nekocode.tracehelper.trace.MethodStats;
+import cn.nekocode.tracehelper.trace.MethodSummary;
+import cn.nekocode.tracehelper.trace.TraceFile;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prints the hot methods of a {@link MethodSummary} as tables, and writes them as JSON
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class SummaryWriter {
+    private final MethodSummary mSummary;
+    private final int mTop;
+
+
+    /**
+     * @param top the number of methods listed globally and for each thread
+     */
+    public SummaryWriter(MethodSummary summary, int top) {
+        this.mSummary = summary;
+        this.mTop = top;
+    }
+
+    public void print(PrintStream out) {
+        out.println("Top " + mTop + " methods by exclusive time:");
+        printTable(out, mSummary.getTotal());
+
+        for (Map.Entry<Integer, MethodStats> entry : mSummary.getThreads().entrySet()) {
+            out.println();
+            out.println("Thread " + mSummary.getTrace().getThreadName(entry.getKey()) + ":");
+            printTable(out, entry.getValue());
+        }
+    }
+
+    private void printTable(PrintStream out, MethodStats stats) {
+        final TraceFile trace = mSummary.getTrace();
+        out.println(String.format(Locale.ROOT, "%12s %12s %10s  %s", "Excl(ms)", "Incl(ms)", "Calls", "Method"));
+        for (int slot : stats.topByExclusiveTime(mTop)) {
+            MethodInfo method = trace.getMethods().get(stats.getMethodIndex(slot));
+            out.println(String.format(Locale.ROOT, "%12.3f %12.3f %10d  %s",
+                    stats.getExclusiveTime(slot) / 1000.0, stats.getInclusiveTime(slot) / 1000.0,
+                    stats.getCalls(slot), method.getName()));
+        }
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeJson(writer);
+        }
+    }
+
+    public void writeJson(Writer writer) throws IOException {
+        final TraceFile trace = mSummary.getTrace();
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+
+        json.beginObject();
+        json.name("trace").value(trace.getFile().getName());
+        json.name("clock").value("wall");
+        json.name("unit").value("us");
+        json.name("records").value(trace.getRecordCount());
+        json.name("methods");
+        writeMethods(json, mSummary.getTotal());
+
+        json.name("threads").beginArray();
+        for (Map.Entry<Integer, MethodStats> entry : mSummary.getThreads().entrySet()) {
+            json.beginObject();
+            json.name("id").value(entry.getKey());
+            json.name("name").value(trace.getThreadName(entry.getKey()));
+            json.name("methods");
+            writeMethods(json, entry.getValue());
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+
+    private void writeMethods(JsonWriter json, MethodStats stats) throws IOException {
+        final TraceFile trace = mSummary.getTrace();
+        json.beginArray();
+        for (int slot : stats.topByExclusiveTime(mTop)) {
+            MethodInfo method = trace.getMethods().get(stats.getMethodIndex(slot));
+            json.beginObject();
+            json.name("name").value(method.getName());
+            json.name("signature").value(method.getSignature());
+            json.name("exclusive").value(stats.getExclusiveTime(slot));
+            json.name("inclusive").value(stats.getInclusiveTime(slot));
+            json.name("calls").value(stats.getCalls(slot));
+            json.endObject();
+        }
+        json.endArray();
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.report;
+
+import cn.nekocode.tracehelper.trace.MethodInfo;
+import cn.nekocode.tracehelper.trace.MethodStats;
+import cn.nekocode.tracehelper.trace.MethodSummary;
+
+import java.io.PrintStream;
+import java.util.*;
+
+/**
+ * Per-method comparison of a baseline trace and a candidate trace.
+ * Methods are matched by "class.method signature", since the method ids differ between traces.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceDiff {
+    public static final int METRIC_INCLUSIVE = 0;
+    public static final int METRIC_EXCLUSIVE = 1;
+    public static final int METRIC_CALLS = 2;
+    private static final String[] METRIC_NAMES = {"inclusive", "exclusive", "calls"};
+
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+
+    public TraceDiff(MethodSummary baseline, MethodSummary candidate) {
+        collect(baseline, 0);
+        collect(candidate, 1);
+    }
+
+    private void collect(MethodSummary summary, int side) {
+        final List<MethodInfo> methods = summary.getTrace().getMethods();
+        final MethodStats stats = summary.getTotal();
+        for (int slot = 0; slot < stats.size(); slot++) {
+            MethodInfo method = methods.get(stats.getMethodIndex(slot));
+            Entry entry = mEntries.get(method.getFullName());
+            if (entry == null) {
+                entry = new Entry(method.getName(), method.getFullName());
+                mEntries.put(method.getFullName(), entry);
+            }
+            entry.mValues[side][METRIC_INCLUSIVE] += stats.getInclusiveTime(slot);
+            entry.mValues[side][METRIC_EXCLUSIVE] += stats.getExclusiveTime(slot);
+            entry.mValues[side][METRIC_CALLS] += stats.getCalls(slot);
+        }
+    }
+
+    /**
+     * Print the top n methods whose exclusive time changed the most
+     */
+    public void print(PrintStream out, int n) {
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        entries.sort((a, b) -> Long.compare(
+                Math.abs(b.delta(METRIC_EXCLUSIVE)), Math.abs(a.delta(METRIC_EXCLUSIVE))));
+
+        out.println(String.format(Locale.ROOT, "%12s %12s %9s %12s %12s  %s",
+                "Base(ms)", "New(ms)", "Excl", "Base calls", "New calls", "Method"));
+        for (Entry entry : entries.subList(0, Math.min(n, entries.size()))) {
+            out.println(String.format(Locale.ROOT, "%12.3f %12.3f %9s %12d %12d  %s",
+                    entry.mValues[0][METRIC_EXCLUSIVE] / 1000.0, entry.mValues[1][METRIC_EXCLUSIVE] / 1000.0,
+                    formatChange(entry.mValues[0][METRIC_EXCLUSIVE], entry.mValues[1][METRIC_EXCLUSIVE]),
+                    entry.mValues[0][METRIC_CALLS], entry.mValues[1][METRIC_CALLS], entry.mFullName));
+        }
+    }
+
+    /**
+     * Check the thresholds and print the ones which are exceeded
+     *
+     * @return false if any threshold is exceeded
+     */
+    public boolean check(List<Threshold> thresholds, PrintStream out) {
+        boolean passed = true;
+        for (Threshold threshold : thresholds) {
+            long baseline = 0, candidate = 0;
+            boolean matched = false;
+            for (Entry entry : mEntries.values()) {
+                if (threshold.matches(entry)) {
+                    matched = true;
+                    baseline += entry.mValues[0][threshold.mMetric];
+                    candidate += entry.mValues[1][threshold.mMetric];
+                }
+            }
+
+            if (!matched) {
+                out.println("SKIP " + threshold + ": no matched methods");
+                continue;
+            }
+
+            String change = formatChange(baseline, candidate) + " (" + baseline + " -> " + candidate + ")";
+            if (threshold.isExceeded(baseline, candidate)) {
+                passed = false;
+                out.println("FAIL " + threshold + ": " + change);
+            } else {
+                out.println("PASS " + threshold + ": " + change);
+            }
+        }
+        return passed;
+    }
+
+    private static String formatChange(long baseline, long candidate) {
+        if (baseline == 0) {
+            return candidate == 0 ? "0%" : "new";
+        }
+        return String.format(Locale.ROOT, "%+.1f%%", (candidate - baseline) * 100.0 / baseline);
+    }
+
+    private static class Entry {
+        private final String mName;
+        private final String mFullName;
+        // Values of the baseline and the candidate, indexed by metric
+        private final long[][] mValues = new long[2][3];
+
+        Entry(String name, String fullName) {
+            this.mName = name;
+            this.mFullName = fullName;
+        }
+
+        long delta(int metric) {
+            return mValues[1][metric] - mValues[0][metric];
+        }
+    }
+
+    /**
+     * A limit of how much a metric of some methods may grow, in the form of "method:metric:limit", e.g.
+     * "com.foo.Feed.bind:exclusive:+15%", "com.foo.*:inclusive:+5ms" or "*:calls:+1000".
+     * <p>
+     * The method is "class.method" which matches all overloads, "class.method signature",
+     * or a prefix ending with "*", and the metric is summed over all the matched methods.
+     * Times are in microseconds unless the limit ends with "ms".
+     */
+    public static class Threshold {
+        private final String mSpec;
+        private final String mMethod;
+        private final int mMetric;
+        private final boolean mIsRelative;
+        private final double mLimit;
+
+        private Threshold(String spec, String method, int metric, boolean isRelative, double limit) {
+            this.mSpec = spec;
+            this.mMethod = method;
+            this.mMetric = metric;
+            this.mIsRelative = isRelative;
+            this.mLimit = limit;
+        }
+
+        public static Threshold parse(String spec) {
+            // The signature of method may contain ":", so split from the end
+            int second = spec.lastIndexOf(':');
+            int first = second > 0 ? spec.lastIndexOf(':', second - 1) : -1;
+            if (first <= 0) {
+                throw new IllegalArgumentException("Invalid threshold: " + spec);
+            }
+
+            String method = spec.substring(0, first);
+            int metric = Arrays.asList(METRIC_NAMES).indexOf(spec.substring(first + 1, second));
+            if (metric < 0) {
+                throw new IllegalArgumentException("Unknown metric in threshold: " + spec);
+            }
+
+            String limit = spec.substring(second + 1).trim();
+            if (limit.startsWith("+")) {
+                limit = limit.substring(1);
+            }
+            try {
+                if (limit.endsWith("%")) {
+                    return new Threshold(spec, method, metric, true,
+                            Double.parseDouble(limit.substring(0, limit.length() - 1)));
+                } else if (limit.endsWith("ms")) {
+                    return new Threshold(spec, method, metric, false,
+                            Double.parseDouble(limit.substring(0, limit.length() - 2)) * 1000);
+                } else if (limit.endsWith("us")) {
+                    return new Threshold(spec, method, metric, false,
+                            Double.parseDouble(limit.substring(0, limit.length() - 2)));
+                } else {
+                    return new Threshold(spec, method, metric, false, Double.parseDouble(limit));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit in threshold: " + spec);
+            }
+        }
+
+        private boolean matches(Entry entry) {
+            if (mMethod.equals("*")) {
+                return true;
+            } else if (mMethod.endsWith("*")) {
+                return entry.mFullName.startsWith(mMethod.substring(0, mMethod.length() - 1));
+            } else {
+                return mMethod.equals(entry.mName) || mMethod.equals(entry.mFullName);
+            }
+        }
+
+        private boolean isExceeded(long baseline, long candidate) {
+            if (mIsRelative) {
+                // A method which is new in the candidate exceeds any relative limit
+                return baseline == 0 ?
+                        candidate > 0 : (candidate - baseline) * 100.0 / baseline > mLimit;
+            }
+            return candidate - baseline > mLimit;
+        }
+
+        @Override
+        public String toString() {
+            return mSpec;
+        }
+    }
+}
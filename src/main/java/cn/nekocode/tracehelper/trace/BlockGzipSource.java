@@ -0,0 +1,187 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import static cn.nekocode.tracehelper.trace.BlockGzipWriter.*;
+
+/**
+ * Reads a trace written by {@link BlockGzipWriter}, only the blocks of the requested range are decompressed
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class BlockGzipSource implements TraceSource {
+    private final FileChannel mChannel;
+    // The block index, rebuilt from the member headers
+    private long[] mCompressedOffsets = new long[64];
+    private long[] mOffsets = new long[64];
+    private long[] mFirstTimes = new long[64];
+    private int mBlockCount = 0;
+    private long mSize = 0;
+
+
+    BlockGzipSource(FileChannel channel) throws IOException {
+        this.mChannel = channel;
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        final long fileSize = channel.size();
+        long position = 0;
+        while (position < fileSize) {
+            header.clear();
+            readFully(position, header);
+            if ((header.get(0) & 0xff) != 0x1f || (header.get(1) & 0xff) != 0x8b ||
+                    (header.get(3) & 4) == 0 || header.getShort(10) != EXTRA_SIZE ||
+                    header.get(12) != SUBFIELD_ID1 || header.get(13) != SUBFIELD_ID2) {
+                throw new IOException("Not a block compressed trace file");
+            }
+
+            if (mBlockCount == mOffsets.length) {
+                int capacity = mBlockCount * 2;
+                mCompressedOffsets = Arrays.copyOf(mCompressedOffsets, capacity);
+                mOffsets = Arrays.copyOf(mOffsets, capacity);
+                mFirstTimes = Arrays.copyOf(mFirstTimes, capacity);
+            }
+            mCompressedOffsets[mBlockCount] = position;
+            mOffsets[mBlockCount] = mSize;
+            mFirstTimes[mBlockCount] = header.getInt(24) & 0xffffffffL;
+            mBlockCount++;
+
+            position += header.getInt(16) & 0xffffffffL;
+            mSize += header.getInt(20) & 0xffffffffL;
+        }
+    }
+
+    @Override
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public ByteBuffer read(long position, int length) throws IOException {
+        final byte[] output = new byte[length];
+        int block = blockOf(position);
+        int written = 0;
+        byte[] compressed = null;
+
+        while (written < length && block < mBlockCount) {
+            long memberStart = mCompressedOffsets[block];
+            long memberEnd = block + 1 < mBlockCount ? mCompressedOffsets[block + 1] : mChannel.size();
+            int dataLength = (int) (memberEnd - memberStart - HEADER_SIZE - TRAILER_SIZE);
+            if (compressed == null || compressed.length < dataLength) {
+                compressed = new byte[dataLength];
+            }
+            readFully(memberStart + HEADER_SIZE, ByteBuffer.wrap(compressed, 0, dataLength));
+
+            // Skip the part of the first block before the position
+            long blockOffset = mOffsets[block];
+            int skip = (int) Math.max(0, position + written - blockOffset);
+            int blockLength = (int) blockSizeOf(block);
+            byte[] plain = new byte[blockLength];
+            inflate(compressed, dataLength, plain);
+
+            int count = Math.min(blockLength - skip, length - written);
+            System.arraycopy(plain, skip, output, written, count);
+            written += count;
+            block++;
+        }
+
+        if (written < length) {
+            throw new IOException("Truncated block compressed trace file");
+        }
+        return ByteBuffer.wrap(output);
+    }
+
+    @Override
+    public void read(long position, ByteBuffer target) throws IOException {
+        target.put(read(position, target.remaining()));
+    }
+
+    @Override
+    public long windowSize() {
+        return 4L * BLOCK_SIZE;
+    }
+
+    /**
+     * @return the index of the first record of the last block which starts before the time,
+     * or -1 if the blocks have no time
+     */
+    long findRecord(long wallTime, long dataOffset, int recordSize) {
+        int found = -1;
+        for (int i = 0; i < mBlockCount; i++) {
+            if (mFirstTimes[i] == NO_TIME) {
+                continue;
+            }
+            if (mFirstTimes[i] > wallTime && found >= 0) {
+                break;
+            }
+            found = i;
+        }
+        return found < 0 ? -1 : (mOffsets[found] - dataOffset) / recordSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    private long blockSizeOf(int block) {
+        return (block + 1 < mBlockCount ? mOffsets[block + 1] : mSize) - mOffsets[block];
+    }
+
+    private int blockOf(long position) {
+        int index = Arrays.binarySearch(mOffsets, 0, mBlockCount, position);
+        return index >= 0 ? index : Math.max(0, -index - 2);
+    }
+
+    private static void inflate(byte[] input, int inputLength, byte[] output) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(input, 0, inputLength);
+            int count = 0;
+            while (count < output.length && !inflater.finished()) {
+                int n = inflater.inflate(output, count, output.length - count);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                count += n;
+            }
+            if (count != output.length) {
+                throw new IOException("Corrupted block compressed trace file");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block compressed trace file", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void readFully(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = mChannel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Truncated block compressed trace file");
+            }
+            position += count;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a trace as a series of gzip members, each compressing about 1 MB of the trace on its own,
+ * so the blocks are compressed in parallel and can be read back at random.
+ * The result is still a valid gzip file for other tools.
+ * <p>
+ * Like BGZF, the extra field of every member header records the member size, so the block index
+ * can be rebuilt by reading the member headers only. It also records the wall time of the first record
+ * in the block, to seek to a time range without decompressing the blocks before it.
+ * Blocks of the data section always start at a record boundary.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class BlockGzipWriter {
+    public static final String EXTENSION = ".gz";
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+    static final int HEADER_SIZE = 28;
+    static final int TRAILER_SIZE = 8;
+    static final int EXTRA_SIZE = 16;
+    static final byte SUBFIELD_ID1 = 'M';
+    static final byte SUBFIELD_ID2 = 'T';
+    /**
+     * The first time of the blocks which have no records
+     */
+    static final long NO_TIME = 0xffffffffL;
+
+    private BlockGzipWriter() {
+    }
+
+    public static boolean isCompressed(String file) {
+        return file.endsWith(EXTENSION);
+    }
+
+    /**
+     * Compress the trace to the file
+     *
+     * @param executor the executor on which the blocks are compressed
+     */
+    public static void write(TraceFile trace, File file, ExecutorService executor) throws IOException {
+        final int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+        // Bound the blocks in flight, so the memory used doesn't grow with the trace size
+        final Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final long dataOffset = trace.getDataOffset();
+            final int recordSize = trace.getRecordSize();
+            final int recordsPerBlock = Math.max(1, BLOCK_SIZE / recordSize);
+            final long size = trace.getFileSize();
+            final RecordCursor cursor = trace.records();
+
+            long position = 0;
+            while (position < size) {
+                final long start = position;
+                final int length;
+                final long firstTime;
+                if (position < dataOffset) {
+                    length = (int) Math.min(BLOCK_SIZE, dataOffset - position);
+                    firstTime = NO_TIME;
+                } else {
+                    long firstRecord = (position - dataOffset) / recordSize;
+                    length = (int) Math.min((long) recordsPerBlock * recordSize, size - position);
+                    cursor.seek(firstRecord);
+                    firstTime = cursor.next() ? cursor.wallTime() : NO_TIME;
+                }
+                position += length;
+
+                pending.addLast(executor.submit(() -> compress(trace.read(start, length), firstTime)));
+                if (pending.size() >= parallelism * 2) {
+                    writeFully(channel, take(pending));
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                writeFully(channel, take(pending));
+            }
+
+        } finally {
+            for (Future<ByteBuffer> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * @return one gzip member of the block
+     */
+    private static ByteBuffer compress(ByteBuffer block, long firstTime) {
+        final int length = block.remaining();
+        final byte[] input = new byte[length];
+        block.get(input);
+
+        final CRC32 crc = new CRC32();
+        crc.update(input, 0, length);
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] output = new byte[HEADER_SIZE + length + length / 8 + 64 + TRAILER_SIZE];
+        int outputLength = HEADER_SIZE;
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (outputLength == output.length - TRAILER_SIZE) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                outputLength += deflater.deflate(output, outputLength, output.length - TRAILER_SIZE - outputLength);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        final int memberSize = outputLength + TRAILER_SIZE;
+        ByteBuffer member = ByteBuffer.wrap(output, 0, memberSize).order(ByteOrder.LITTLE_ENDIAN);
+        member.put((byte) 0x1f).put((byte) 0x8b).put((byte) 8).put((byte) 4);   // FEXTRA
+        member.putInt(0).put((byte) 0).put((byte) 0xff);
+        member.putShort((short) EXTRA_SIZE);
+        member.put(SUBFIELD_ID1).put(SUBFIELD_ID2).putShort((short) (EXTRA_SIZE - 4));
+        member.putInt(memberSize).putInt(length).putInt((int) firstTime);
+        member.position(outputLength);
+        member.putInt((int) crc.getValue()).putInt(length);
+        member.flip();
+        return member;
+    }
+
+    private static ByteBuffer take(Deque<Future<ByteBuffer>> pending) throws IOException {
+        try {
+            return pending.removeFirst().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Compress trace failed", e.getCause());
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Rebuilds the call stacks of every thread from the enter and exit records of a {@link TraceFile}.
+ * <p>
+ * Exits without a matching enter (the method was entered before tracing started) are ignored,
+ * an exit of a method deeper in the stack also exits the frames above it, and the frames still open
+ * at the end of the trace are exited at the last time seen on their thread.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class CallStackWalker {
+    public interface Visitor {
+        /**
+         * Called once before any frame of a thread
+         *
+         * @param thread the dense index of the thread in this walk
+         */
+        void onThread(int thread, int threadId);
+
+        /**
+         * @param time the time of entering in microseconds since the start of tracing
+         */
+        void onEnter(int thread, int depth, int methodIndex, long time);
+
+        /**
+         * @param time          the time of exiting in microseconds since the start of tracing
+         * @param inclusiveTime the time spent in the frame in microseconds
+         * @param exclusiveTime the time spent in the frame but not in its callees
+         */
+        void onExit(int thread, int depth, int methodIndex, long time, long inclusiveTime, long exclusiveTime);
+    }
+
+    /**
+     * Records are handed to the groups of a parallel walk in batches of this size
+     */
+    private static final int BATCH_RECORDS = 4096;
+    /**
+     * The decoding waits when a group has this many batches not walked yet
+     */
+    private static final int MAX_PENDING_BATCHES = 4;
+
+    private final TraceFile mTrace;
+    private final boolean mThreadClock;
+
+
+    /**
+     * @param threadClock measure by the thread cpu time instead of the wall time
+     */
+    public CallStackWalker(TraceFile trace, boolean threadClock) {
+        this.mTrace = trace;
+        this.mThreadClock = threadClock;
+    }
+
+    public void walk(Visitor visitor) throws IOException {
+        final Walk walk = new Walk(visitor);
+        final RecordCursor cursor = mTrace.records();
+        while (cursor.next()) {
+            final int methodIndex = mTrace.getMethodIndex(cursor.methodId());
+            if (methodIndex >= 0) {
+                walk.onRecord(cursor.threadId(), methodIndex, cursor.action(),
+                        mThreadClock ? cursor.threadTime() : cursor.wallTime());
+            }
+        }
+        walk.finish();
+    }
+
+    /**
+     * Walk disjoint groups of threads in parallel, each group by its own visitor. The records are decoded
+     * only once on the calling thread and handed to the groups in batches, which are walked on the executor
+     * one after another per group. A thread joins the group with the fewest records so far when it's first
+     * seen, so the groups stay about even.
+     */
+    public void walk(Visitor[] visitors, Executor executor) throws IOException {
+        final Group[] groups = new Group[visitors.length];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new Group(new Walk(visitors[i]), executor);
+        }
+
+        final IntIntMap threadGroups = new IntIntMap(64, -1);
+        final RecordCursor cursor = mTrace.records();
+        while (cursor.next()) {
+            final int methodIndex = mTrace.getMethodIndex(cursor.methodId());
+            if (methodIndex < 0) {
+                continue;
+            }
+
+            final int threadId = cursor.threadId();
+            int group = threadGroups.get(threadId);
+            if (group < 0) {
+                group = 0;
+                for (int i = 1; i < groups.length; i++) {
+                    if (groups[i].mRecordCount < groups[group].mRecordCount) {
+                        group = i;
+                    }
+                }
+                threadGroups.put(threadId, group);
+            }
+            groups[group].add(threadId, methodIndex, cursor.action(),
+                    mThreadClock ? cursor.threadTime() : cursor.wallTime());
+        }
+
+        for (Group group : groups) {
+            group.finish();
+        }
+        for (Group group : groups) {
+            try {
+                group.mTail.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * The call stacks of the threads walked by one visitor
+     */
+    private static class Walk {
+        private final Visitor mVisitor;
+        private final IntIntMap mThreadIndexes = new IntIntMap(64, -1);
+        private final List<ThreadStack> mThreads = new ArrayList<>();
+
+        Walk(Visitor visitor) {
+            this.mVisitor = visitor;
+        }
+
+        void onRecord(int threadId, int methodIndex, int action, long time) {
+            int index = mThreadIndexes.get(threadId);
+            if (index < 0) {
+                index = mThreads.size();
+                mThreadIndexes.put(threadId, index);
+                mThreads.add(new ThreadStack(index));
+                mVisitor.onThread(index, threadId);
+            }
+
+            final ThreadStack stack = mThreads.get(index);
+            stack.mLastTime = time;
+
+            if (action == TraceFile.ACTION_ENTER) {
+                stack.push(methodIndex, time);
+                mVisitor.onEnter(index, stack.mDepth - 1, methodIndex, time);
+                return;
+            }
+
+            // Exit or unroll
+            int depth = stack.mDepth - 1;
+            while (depth >= 0 && stack.mMethods[depth] != methodIndex) {
+                depth--;
+            }
+            while (depth >= 0 && stack.mDepth > depth) {
+                stack.pop(time, mVisitor);
+            }
+        }
+
+        void finish() {
+            for (ThreadStack stack : mThreads) {
+                while (stack.mDepth > 0) {
+                    stack.pop(stack.mLastTime, mVisitor);
+                }
+            }
+        }
+    }
+
+    /**
+     * A group of a parallel walk, its batches are chained so they are walked in order and never at the same time
+     */
+    private static class Group {
+        private final Walk mWalk;
+        private final Executor mExecutor;
+        private final Semaphore mPendingBatches = new Semaphore(MAX_PENDING_BATCHES);
+        private CompletableFuture<Void> mTail = CompletableFuture.completedFuture(null);
+        private Batch mBatch = new Batch();
+        private long mRecordCount = 0;
+
+        Group(Walk walk, Executor executor) {
+            this.mWalk = walk;
+            this.mExecutor = executor;
+        }
+
+        void add(int threadId, int methodIndex, int action, long time) throws IOException {
+            final Batch batch = mBatch;
+            final int i = batch.mSize++;
+            batch.mThreadIds[i] = threadId;
+            batch.mMethodIndexes[i] = methodIndex;
+            batch.mActions[i] = (byte) action;
+            batch.mTimes[i] = time;
+            mRecordCount++;
+            if (batch.mSize == BATCH_RECORDS) {
+                submit();
+            }
+        }
+
+        private void submit() throws IOException {
+            final Batch batch = mBatch;
+            mBatch = new Batch();
+            try {
+                mPendingBatches.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            mTail = mTail.thenRunAsync(() -> batch.walk(mWalk), mExecutor);
+            // A failed batch fails the later ones at once, their permits are still returned
+            mTail.whenComplete((result, throwable) -> mPendingBatches.release());
+        }
+
+        void finish() throws IOException {
+            if (mBatch.mSize > 0) {
+                submit();
+            }
+            mTail = mTail.thenRunAsync(mWalk::finish, mExecutor);
+        }
+    }
+
+    private static class Batch {
+        private final int[] mThreadIds = new int[BATCH_RECORDS];
+        private final int[] mMethodIndexes = new int[BATCH_RECORDS];
+        private final byte[] mActions = new byte[BATCH_RECORDS];
+        private final long[] mTimes = new long[BATCH_RECORDS];
+        private int mSize = 0;
+
+        void walk(Walk walk) {
+            for (int i = 0; i < mSize; i++) {
+                walk.onRecord(mThreadIds[i], mMethodIndexes[i], mActions[i], mTimes[i]);
+            }
+        }
+    }
+
+    private static class ThreadStack {
+        private final int mIndex;
+        private int[] mMethods = new int[64];
+        private long[] mEnterTimes = new long[64];
+        private long[] mChildTimes = new long[64];
+        private int mDepth = 0;
+        private long mLastTime = 0;
+
+        ThreadStack(int index) {
+            this.mIndex = index;
+        }
+
+        void push(int methodIndex, long time) {
+            if (mDepth == mMethods.length) {
+                int capacity = mDepth * 2;
+                int[] methods = new int[capacity];
+                long[] enterTimes = new long[capacity];
+                long[] childTimes = new long[capacity];
+                System.arraycopy(mMethods, 0, methods, 0, mDepth);
+                System.arraycopy(mEnterTimes, 0, enterTimes, 0, mDepth);
+                System.arraycopy(mChildTimes, 0, childTimes, 0, mDepth);
+                mMethods = methods;
+                mEnterTimes = enterTimes;
+                mChildTimes = childTimes;
+            }
+            mMethods[mDepth] = methodIndex;
+            mEnterTimes[mDepth] = time;
+            mChildTimes[mDepth] = 0;
+            mDepth++;
+        }
+
+        void pop(long time, Visitor visitor) {
+            final int depth = --mDepth;
+            final long inclusive = Math.max(0, time - mEnterTimes[depth]);
+            final long exclusive = Math.max(0, inclusive - mChildTimes[depth]);
+            if (depth > 0) {
+                mChildTimes[depth - 1] += inclusive;
+            }
+            visitor.onExit(mIndex, depth, mMethods[depth], time, inclusive, exclusive);
+        }
+    }
+}
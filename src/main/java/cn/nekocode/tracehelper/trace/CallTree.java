@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Trie of the call stacks of a trace, each node is weighted by the exclusive time spent in it.
+ * Identical stacks are interned into one node, so nothing is allocated per record.
+ * <p>
+ * Node 0 is the root, its children are the threads and their descendants are the methods.
+ * A child is always added after its parent, so the parent index of a node is less than its own.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class CallTree {
+    public static final int ROOT = 0;
+
+    /**
+     * Merging the trees of thread groups costs more than it saves when there are only a few threads
+     */
+    private static final int MIN_THREADS_TO_PARALLEL = 16;
+
+    private int[] mParents = new int[1024];
+    private int[] mFrames = new int[1024];
+    private long[] mWeights = new long[1024];
+    private int mSize = 1;
+    private final LongIntMap mChildren = new LongIntMap(1024, -1);
+
+
+    /**
+     * Build the tree of a trace, the records are decoded once and groups of threads are walked in parallel
+     * on the pool, then the trees of the groups are merged
+     *
+     * @param threadClock weight by the thread cpu time instead of the wall time
+     */
+    public static CallTree build(TraceFile trace, boolean threadClock, ForkJoinPool pool) throws IOException {
+        if (trace.getThreads().size() < MIN_THREADS_TO_PARALLEL || pool.getParallelism() < 2) {
+            return build(trace, threadClock);
+        }
+
+        final CallTree[] trees = new CallTree[Math.min(pool.getParallelism(), trace.getThreads().size())];
+        final CallStackWalker.Visitor[] builders = new CallStackWalker.Visitor[trees.length];
+        for (int i = 0; i < trees.length; i++) {
+            trees[i] = new CallTree();
+            builders[i] = new ProfileBuilder(trees[i], null);
+        }
+        new CallStackWalker(trace, threadClock).walk(builders, pool);
+
+        // Merge the smaller trees into the largest one
+        CallTree tree = trees[0];
+        for (CallTree other : trees) {
+            if (other.size() > tree.size()) {
+                tree = other;
+            }
+        }
+        for (CallTree other : trees) {
+            if (other != tree) {
+                tree.merge(other);
+            }
+        }
+        return tree;
+    }
+
+    public static CallTree build(TraceFile trace, boolean threadClock) throws IOException {
+        CallTree tree = new CallTree();
+        new CallStackWalker(trace, threadClock).walk(new ProfileBuilder(tree, null));
+        return tree;
+    }
+
+    /**
+     * @param frame the method index, or a thread frame from {@link #threadFrameOf(int)}
+     * @return the child node of parent with the frame, which is added if absent
+     */
+    public int child(int parent, int frame) {
+        final long key = ((long) parent << 32) | (frame & 0xffffffffL);
+        int node = mChildren.get(key);
+        if (node >= 0) {
+            return node;
+        }
+        return append(parent, frame);
+    }
+
+    private int append(int parent, int frame) {
+        if (mSize == mParents.length) {
+            int capacity = mSize * 2;
+            mParents = Arrays.copyOf(mParents, capacity);
+            mFrames = Arrays.copyOf(mFrames, capacity);
+            mWeights = Arrays.copyOf(mWeights, capacity);
+        }
+        final int node = mSize++;
+        mParents[node] = parent;
+        mFrames[node] = frame;
+        mWeights[node] = 0;
+        mChildren.put(((long) parent << 32) | (frame & 0xffffffffL), node);
+        return node;
+    }
+
+    public void addWeight(int node, long weight) {
+        mWeights[node] += weight;
+    }
+
+    /**
+     * Add all the stacks of another tree of the same trace into this tree
+     */
+    public void merge(CallTree other) {
+        final int oldSize = mSize;
+        final int[] nodes = new int[other.mSize];
+        nodes[ROOT] = ROOT;
+        for (int i = 1; i < other.mSize; i++) {
+            final int parent = nodes[other.mParents[i]];
+            // The children of a node which is new to this tree must be new as well
+            nodes[i] = parent >= oldSize ?
+                    append(parent, other.mFrames[i]) : child(parent, other.mFrames[i]);
+            mWeights[nodes[i]] += other.mWeights[i];
+        }
+        mWeights[ROOT] += other.mWeights[ROOT];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getParent(int node) {
+        return mParents[node];
+    }
+
+    public int getFrame(int node) {
+        return mFrames[node];
+    }
+
+    public long getWeight(int node) {
+        return mWeights[node];
+    }
+
+    /**
+     * @return the total weight of every node and its descendants
+     */
+    public long[] getTotalWeights() {
+        final long[] totals = Arrays.copyOf(mWeights, mSize);
+        for (int i = mSize - 1; i > ROOT; i--) {
+            totals[mParents[i]] += totals[i];
+        }
+        return totals;
+    }
+
+    /**
+     * @return the depth of every node, the threads are at depth 1
+     */
+    public int[] getDepths() {
+        final int[] depths = new int[mSize];
+        for (int i = 1; i < mSize; i++) {
+            depths[i] = depths[mParents[i]] + 1;
+        }
+        return depths;
+    }
+
+    public static int threadFrameOf(int threadId) {
+        return -1 - threadId;
+    }
+
+    public static boolean isThreadFrame(int frame) {
+        return frame < 0;
+    }
+
+    /**
+     * @return the thread id of a thread frame
+     */
+    public static int threadIdOf(int frame) {
+        return -1 - frame;
+    }
+
+    /**
+     * @return the name of a frame, "class.method" or the thread name
+     */
+    public static String frameName(TraceFile trace, int frame) {
+        return isThreadFrame(frame) ?
+                trace.getThreadName(threadIdOf(frame)) : trace.getMethods().get(frame).getName();
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-method times of repeated traces of the same scenario. Only the totals of each iteration are kept,
+ * in one row of primitive arrays per method, so the memory doesn't grow with the trace sizes.
+ * Methods are matched across traces by their full names, since the method ids differ between traces.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class IterationStats {
+    private final int mIterations;
+    private final Map<String, Integer> mSlots = new HashMap<>();
+    private String[] mNames;
+    private String[] mFullNames;
+    // Row of a slot is [slot * iterations, (slot + 1) * iterations)
+    private long[] mInclusiveTimes;
+    private long[] mExclusiveTimes;
+    private long[] mCalls;
+    private int mSize = 0;
+    private int mCount = 0;
+
+
+    /**
+     * @param iterations the max number of iterations
+     */
+    public IterationStats(int iterations) {
+        this.mIterations = iterations;
+        resize(256);
+    }
+
+    /**
+     * Add the stats of the next iteration, methods not called in it count as 0
+     */
+    public void add(TraceFile trace, MethodStats stats) {
+        if (mCount == mIterations) {
+            throw new IllegalStateException("All " + mIterations + " iterations have been added");
+        }
+
+        final List<MethodInfo> methods = trace.getMethods();
+        for (int i = 0; i < stats.size(); i++) {
+            MethodInfo method = methods.get(stats.getMethodIndex(i));
+            Integer slot = mSlots.get(method.getFullName());
+            if (slot == null) {
+                if (mSize == mNames.length) {
+                    resize(mSize * 2);
+                }
+                slot = mSize++;
+                mSlots.put(method.getFullName(), slot);
+                mNames[slot] = method.getName();
+                mFullNames[slot] = method.getFullName();
+            }
+
+            int index = slot * mIterations + mCount;
+            mInclusiveTimes[index] += stats.getInclusiveTime(i);
+            mExclusiveTimes[index] += stats.getExclusiveTime(i);
+            mCalls[index] += stats.getCalls(i);
+        }
+        mCount++;
+    }
+
+    private void resize(int capacity) {
+        mNames = mNames == null ? new String[capacity] : Arrays.copyOf(mNames, capacity);
+        mFullNames = mFullNames == null ? new String[capacity] : Arrays.copyOf(mFullNames, capacity);
+        mInclusiveTimes = mInclusiveTimes == null ?
+                new long[capacity * mIterations] : Arrays.copyOf(mInclusiveTimes, capacity * mIterations);
+        mExclusiveTimes = mExclusiveTimes == null ?
+                new long[capacity * mIterations] : Arrays.copyOf(mExclusiveTimes, capacity * mIterations);
+        mCalls = mCalls == null ?
+                new long[capacity * mIterations] : Arrays.copyOf(mCalls, capacity * mIterations);
+    }
+
+    /**
+     * @return the number of iterations added
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the number of methods
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public String getName(int slot) {
+        return mNames[slot];
+    }
+
+    public String getFullName(int slot) {
+        return mFullNames[slot];
+    }
+
+    public Distribution getInclusiveTimes(int slot) {
+        return new Distribution(mInclusiveTimes, slot * mIterations, mCount);
+    }
+
+    public Distribution getExclusiveTimes(int slot) {
+        return new Distribution(mExclusiveTimes, slot * mIterations, mCount);
+    }
+
+    public Distribution getCalls(int slot) {
+        return new Distribution(mCalls, slot * mIterations, mCount);
+    }
+
+    /**
+     * @return the slots of the top n methods by the median of exclusive time
+     */
+    public int[] topByMedianExclusiveTime(int n) {
+        final double[] medians = new double[mSize];
+        Integer[] slots = new Integer[mSize];
+        for (int i = 0; i < mSize; i++) {
+            medians[i] = getExclusiveTimes(i).getMedian();
+            slots[i] = i;
+        }
+        Arrays.sort(slots, (a, b) -> Double.compare(medians[b], medians[a]));
+
+        int[] top = new int[Math.min(n, mSize)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = slots[i];
+        }
+        return top;
+    }
+
+    /**
+     * Distribution of a value over the iterations
+     */
+    public static class Distribution {
+        private final long[] mSorted;
+        private final double mMean;
+        private final double mVariance;
+
+
+        Distribution(long[] values, int offset, int count) {
+            mSorted = Arrays.copyOfRange(values, offset, offset + count);
+            Arrays.sort(mSorted);
+
+            // Welford's algorithm, which doesn't lose precision on large values
+            double mean = 0, m2 = 0;
+            for (int i = 0; i < count; i++) {
+                double delta = mSorted[i] - mean;
+                mean += delta / (i + 1);
+                m2 += delta * (mSorted[i] - mean);
+            }
+            mMean = mean;
+            mVariance = count > 1 ? m2 / (count - 1) : 0;
+        }
+
+        public double getMean() {
+            return mMean;
+        }
+
+        /**
+         * @return the sample variance
+         */
+        public double getVariance() {
+            return mVariance;
+        }
+
+        public double getStandardDeviation() {
+            return Math.sqrt(mVariance);
+        }
+
+        public double getMedian() {
+            return getPercentile(50);
+        }
+
+        public long getMin() {
+            return mSorted.length == 0 ? 0 : mSorted[0];
+        }
+
+        public long getMax() {
+            return mSorted.length == 0 ? 0 : mSorted[mSorted.length - 1];
+        }
+
+        /**
+         * @param percentile in [0, 100], interpolated linearly between the closest ranks
+         */
+        public double getPercentile(double percentile) {
+            if (mSorted.length == 0) {
+                return 0;
+            }
+            double rank = percentile / 100 * (mSorted.length - 1);
+            int lower = (int) Math.floor(rank);
+            int upper = Math.min(lower + 1, mSorted.length - 1);
+            return mSorted[lower] + (mSorted[upper] - mSorted[lower]) * (rank - lower);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing long to int hash map, for keys which pack two ints
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class LongIntMap {
+    private static final long FREE = 0;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private boolean mHasFreeKey;
+    private int mFreeValue;
+    private int mSize;
+    private int mMask;
+    private final int mMissingValue;
+
+
+    public LongIntMap(int expectedSize, int missingValue) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.mKeys = new long[capacity];
+        this.mValues = new int[capacity];
+        this.mMask = capacity - 1;
+        this.mMissingValue = missingValue;
+    }
+
+    public int get(long key) {
+        if (key == FREE) {
+            return mHasFreeKey ? mFreeValue : mMissingValue;
+        }
+
+        int index = mix(key) & mMask;
+        long k;
+        while ((k = mKeys[index]) != FREE) {
+            if (k == key) {
+                return mValues[index];
+            }
+            index = (index + 1) & mMask;
+        }
+        return mMissingValue;
+    }
+
+    public void put(long key, int value) {
+        if (key == FREE) {
+            if (!mHasFreeKey) {
+                mSize++;
+            }
+            mHasFreeKey = true;
+            mFreeValue = value;
+            return;
+        }
+
+        int index = mix(key) & mMask;
+        long k;
+        while ((k = mKeys[index]) != FREE) {
+            if (k == key) {
+                mValues[index] = value;
+                return;
+            }
+            index = (index + 1) & mMask;
+        }
+
+        mKeys[index] = key;
+        mValues[index] = value;
+        if (++mSize * 2 > mKeys.length) {
+            rehash(mKeys.length * 2);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, FREE);
+        mHasFreeKey = false;
+        mSize = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+        mSize = mHasFreeKey ? 1 : 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Call stacks and per-method stats aggregated over many traces of the same app.
+ * <p>
+ * The method tables of the traces are mapped onto one id space by {@link NameTable}, where a method is
+ * identified by its full name and a thread by its name. Every trace is decoded in one pass straight into
+ * the global ids, and the profiles of the traces are reduced by a fork-join tree, so the memory grows with
+ * the distinct stacks instead of the records. A {@link TraceArchive} is added from its stored aggregates,
+ * without decoding its records. The frames of {@link #getTree()} are the global method ids,
+ * or {@link CallTree#threadFrameOf(int)} of the global thread ids.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class MergedProfile {
+    private final NameTable mMethods;
+    private final NameTable mThreads;
+    private final CallTree mTree = new CallTree();
+    private final MethodStats mStats = new MethodStats(1024);
+    private int mTraceCount = 0;
+    private long mRecordCount = 0;
+
+
+    private MergedProfile(NameTable methods, NameTable threads) {
+        this.mMethods = methods;
+        this.mThreads = threads;
+    }
+
+    /**
+     * Decode the traces in parallel and merge them, the traces which can't be read are skipped
+     *
+     * @param mapping the mapping to deobfuscate the traces, can be null
+     */
+    public static MergedProfile merge(List<File> files, ProguardMapping mapping, ForkJoinPool pool) {
+        return pool.invoke(new MergeTask(new NameTable(), new NameTable(), files, mapping, 0, files.size()));
+    }
+
+    public CallTree getTree() {
+        return mTree;
+    }
+
+    /**
+     * @return the stats keyed by the global method ids
+     */
+    public MethodStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * @return the number of merged traces
+     */
+    public int getTraceCount() {
+        return mTraceCount;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return "class.method" of the global method id
+     */
+    public String getMethodName(int methodId) {
+        String fullName = mMethods.getName(methodId);
+        int space = fullName.indexOf(' ');
+        return space >= 0 ? fullName.substring(0, space) : fullName;
+    }
+
+    public String getMethodSignature(int methodId) {
+        String fullName = mMethods.getName(methodId);
+        int space = fullName.indexOf(' ');
+        return space >= 0 ? fullName.substring(space + 1) : "";
+    }
+
+    public String getThreadName(int threadId) {
+        return mThreads.getName(threadId);
+    }
+
+    /**
+     * @return the name of a frame of the tree, "class.method" or the thread name
+     */
+    public String frameName(int frame) {
+        return CallTree.isThreadFrame(frame) ? getThreadName(CallTree.threadIdOf(frame)) : getMethodName(frame);
+    }
+
+    private void add(TraceFile trace) throws IOException {
+        final int[] methodIds = globalMethodIdsOf(trace);
+        new CallStackWalker(trace, false).walk(new ProfileBuilder(mTree, mStats,
+                methodIndex -> methodIds[methodIndex], threadId -> mThreads.intern(trace.getThreadName(threadId))));
+        mTraceCount++;
+        mRecordCount += trace.getRecordCount();
+    }
+
+    /**
+     * Add the stacks and the method stats stored in an archive, its records aren't decoded
+     */
+    private void add(TraceArchive archive) throws IOException {
+        final TraceFile header = archive.getHeader();
+        final int[] methodIds = globalMethodIdsOf(header);
+
+        final CallTree tree = archive.readTree();
+        final int[] nodes = new int[tree.size()];
+        for (int i = 1; i < tree.size(); i++) {
+            int frame = tree.getFrame(i);
+            frame = CallTree.isThreadFrame(frame) ? CallTree.threadFrameOf(
+                    mThreads.intern(header.getThreadName(CallTree.threadIdOf(frame)))) : methodIds[frame];
+            nodes[i] = mTree.child(nodes[tree.getParent(i)], frame);
+            mTree.addWeight(nodes[i], tree.getWeight(i));
+        }
+
+        final MethodStats stats = archive.readStats();
+        for (int slot = 0; slot < stats.size(); slot++) {
+            mStats.add(methodIds[stats.getMethodIndex(slot)], stats.getInclusiveTime(slot),
+                    stats.getExclusiveTime(slot), stats.getCalls(slot));
+        }
+        mTraceCount++;
+        mRecordCount += archive.getRecordCount();
+    }
+
+    private int[] globalMethodIdsOf(TraceFile trace) {
+        final int[] methodIds = new int[trace.getMethods().size()];
+        for (int i = 0; i < methodIds.length; i++) {
+            methodIds[i] = mMethods.intern(trace.getMethods().get(i).getFullName());
+        }
+        return methodIds;
+    }
+
+    private void addAll(MergedProfile other) {
+        // The frames of both trees are in the same global id space
+        mTree.merge(other.mTree);
+        mStats.addAll(other.mStats);
+        mTraceCount += other.mTraceCount;
+        mRecordCount += other.mRecordCount;
+    }
+
+    /**
+     * Decodes a range of traces by splitting it in halves, and merges the profiles of the halves
+     */
+    private static class MergeTask extends RecursiveTask<MergedProfile> {
+        private static final long serialVersionUID = 1L;
+
+        private final NameTable mMethods;
+        private final NameTable mThreads;
+        private final List<File> mFiles;
+        private final ProguardMapping mMapping;
+        private final int mFrom;
+        private final int mTo;
+
+        MergeTask(NameTable methods, NameTable threads, List<File> files, ProguardMapping mapping,
+                  int from, int to) {
+            this.mMethods = methods;
+            this.mThreads = threads;
+            this.mFiles = files;
+            this.mMapping = mapping;
+            this.mFrom = from;
+            this.mTo = to;
+        }
+
+        @Override
+        protected MergedProfile compute() {
+            if (mTo - mFrom <= 1) {
+                MergedProfile profile = new MergedProfile(mMethods, mThreads);
+                if (mTo > mFrom) {
+                    File file = mFiles.get(mFrom);
+                    try {
+                        if (TraceArchive.isArchive(file.getName())) {
+                            try (TraceArchive archive = TraceArchive.open(file)) {
+                                if (mMapping != null) {
+                                    archive.getHeader().applyMapping(mMapping);
+                                }
+                                profile.add(archive);
+                            }
+                        } else {
+                            try (TraceFile trace = TraceFile.open(file)) {
+                                if (mMapping != null) {
+                                    trace.applyMapping(mMapping);
+                                }
+                                profile.add(trace);
+                            }
+                        }
+                    } catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+                        System.out.println("Skip trace file \"" + file + "\": " + e.getMessage());
+                    }
+                }
+                return profile;
+            }
+
+            int middle = (mFrom + mTo) >>> 1;
+            MergeTask right = new MergeTask(mMethods, mThreads, mFiles, mMapping, middle, mTo);
+            right.fork();
+            MergedProfile left = new MergeTask(mMethods, mThreads, mFiles, mMapping, mFrom, middle).compute();
+            MergedProfile other = right.join();
+            // Merge the smaller profile into the larger one
+            if (left.mTree.size() >= other.mTree.size()) {
+                left.addAll(other);
+                return left;
+            } else {
+                other.addAll(left);
+                return other;
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+/**
+ * One entry of the "*methods" section of a trace file
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class MethodInfo {
+    private final int mId;
+    private final String mClassName;
+    private final String mMethodName;
+    private final String mSignature;
+    private final String mSourceFile;
+    private final int mLineNumber;
+
+
+    public MethodInfo(int id, String className, String methodName, String signature,
+                      String sourceFile, int lineNumber) {
+        this.mId = id;
+        this.mClassName = className;
+        this.mMethodName = methodName;
+        this.mSignature = signature;
+        this.mSourceFile = sourceFile;
+        this.mLineNumber = lineNumber;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public String getClassName() {
+        return mClassName;
+    }
+
+    public String getMethodName() {
+        return mMethodName;
+    }
+
+    public String getSignature() {
+        return mSignature;
+    }
+
+    public String getSourceFile() {
+        return mSourceFile;
+    }
+
+    /**
+     * @return the line number, or -1 if the trace doesn't record it
+     */
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    /**
+     * @return "class.method"
+     */
+    public String getName() {
+        return mClassName + "." + mMethodName;
+    }
+
+    /**
+     * @return "class.method signature", which identifies a method across different traces
+     */
+    public String getFullName() {
+        return mClassName + "." + mMethodName + " " + mSignature;
+    }
+
+    @Override
+    public String toString() {
+        return getFullName();
+    }
+}
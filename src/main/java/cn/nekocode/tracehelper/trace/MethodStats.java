@@ -0,0 +1,125 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.util.Arrays;
+
+/**
+ * Inclusive time, exclusive time and call count of methods, kept in primitive arrays
+ * indexed by slot, with an {@link IntIntMap} from the method index to the slot
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class MethodStats {
+    private final IntIntMap mSlots;
+    private int[] mMethods;
+    private long[] mInclusiveTimes;
+    private long[] mExclusiveTimes;
+    private long[] mCalls;
+    private int mSize = 0;
+
+
+    public MethodStats(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        this.mSlots = new IntIntMap(capacity, -1);
+        this.mMethods = new int[capacity];
+        this.mInclusiveTimes = new long[capacity];
+        this.mExclusiveTimes = new long[capacity];
+        this.mCalls = new long[capacity];
+    }
+
+    public void add(int methodIndex, long inclusiveTime, long exclusiveTime, long calls) {
+        int slot = mSlots.get(methodIndex);
+        if (slot < 0) {
+            if (mSize == mMethods.length) {
+                int capacity = mSize * 2;
+                mMethods = Arrays.copyOf(mMethods, capacity);
+                mInclusiveTimes = Arrays.copyOf(mInclusiveTimes, capacity);
+                mExclusiveTimes = Arrays.copyOf(mExclusiveTimes, capacity);
+                mCalls = Arrays.copyOf(mCalls, capacity);
+            }
+            slot = mSize++;
+            mSlots.put(methodIndex, slot);
+            mMethods[slot] = methodIndex;
+        }
+
+        mInclusiveTimes[slot] += inclusiveTime;
+        mExclusiveTimes[slot] += exclusiveTime;
+        mCalls[slot] += calls;
+    }
+
+    public void addAll(MethodStats other) {
+        for (int slot = 0; slot < other.mSize; slot++) {
+            add(other.mMethods[slot], other.mInclusiveTimes[slot], other.mExclusiveTimes[slot], other.mCalls[slot]);
+        }
+    }
+
+    /**
+     * @return the number of methods
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the slot of the method, or -1 if the method is never called
+     */
+    public int slotOf(int methodIndex) {
+        return mSlots.get(methodIndex);
+    }
+
+    public int getMethodIndex(int slot) {
+        return mMethods[slot];
+    }
+
+    /**
+     * @return the time from entering to exiting the method, recursive calls are counted once
+     */
+    public long getInclusiveTime(int slot) {
+        return mInclusiveTimes[slot];
+    }
+
+    /**
+     * @return the time spent in the method itself, not in its callees
+     */
+    public long getExclusiveTime(int slot) {
+        return mExclusiveTimes[slot];
+    }
+
+    public long getCalls(int slot) {
+        return mCalls[slot];
+    }
+
+    /**
+     * @return the slots of the top n methods by exclusive time
+     */
+    public int[] topByExclusiveTime(int n) {
+        Integer[] slots = new Integer[mSize];
+        for (int i = 0; i < mSize; i++) {
+            slots[i] = i;
+        }
+        Arrays.sort(slots, (a, b) -> {
+            int c = Long.compare(mExclusiveTimes[b], mExclusiveTimes[a]);
+            return c != 0 ? c : Long.compare(mInclusiveTimes[b], mInclusiveTimes[a]);
+        });
+
+        int[] top = new int[Math.min(n, mSize)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = slots[i];
+        }
+        return top;
+    }
+}
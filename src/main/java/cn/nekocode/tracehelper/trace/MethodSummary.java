@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Per-method inclusive time, exclusive time and call count of a trace, in total and per thread
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class MethodSummary {
+    private final TraceFile mTrace;
+    private final MethodStats mTotal;
+    private final Map<Integer, MethodStats> mThreads = new LinkedHashMap<>();
+
+
+    private MethodSummary(TraceFile trace) {
+        this.mTrace = trace;
+        this.mTotal = new MethodStats(trace.getMethods().size());
+    }
+
+    /**
+     * @param threadClock measure by the thread cpu time instead of the wall time
+     */
+    public static MethodSummary build(TraceFile trace, boolean threadClock) throws IOException {
+        MethodSummary summary = new MethodSummary(trace);
+        new CallStackWalker(trace, threadClock).walk(new ProfileBuilder(null, null) {
+            @Override
+            MethodStats statsOf(int threadId) {
+                MethodStats stats = new MethodStats(256);
+                summary.mThreads.put(threadId, stats);
+                return stats;
+            }
+        });
+        for (MethodStats stats : summary.mThreads.values()) {
+            summary.mTotal.addAll(stats);
+        }
+        return summary;
+    }
+
+    public TraceFile getTrace() {
+        return mTrace;
+    }
+
+    public MethodStats getTotal() {
+        return mTotal;
+    }
+
+    /**
+     * @return the stats of every thread by thread id, in the order they appear in the trace
+     */
+    public Map<Integer, MethodStats> getThreads() {
+        return Collections.unmodifiableMap(mThreads);
+    }
+}
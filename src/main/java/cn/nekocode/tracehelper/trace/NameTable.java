@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns names into dense ids which are shared by the traces decoded in parallel.
+ * Looking up a known name takes no lock, only a new name is added under the lock.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class NameTable {
+    private final ConcurrentHashMap<String, Integer> mIds = new ConcurrentHashMap<>();
+    private final List<String> mNames = new ArrayList<>();
+
+
+    public int intern(String name) {
+        Integer id = mIds.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (mNames) {
+            id = mIds.get(name);
+            if (id == null) {
+                id = mNames.size();
+                mNames.add(name);
+                mIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    public String getName(int id) {
+        synchronized (mNames) {
+            return mNames.get(id);
+        }
+    }
+
+    public int size() {
+        synchronized (mNames) {
+            return mNames.size();
+        }
+    }
+}
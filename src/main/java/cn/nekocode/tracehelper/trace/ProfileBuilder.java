@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Builds the {@link CallTree} weighted by the exclusive time and the {@link MethodStats} of a walk,
+ * either of them can be null. The method indexes and the thread ids of the trace are mapped by two functions
+ * to the frames and the stats keys, e.g. to the global ids of a {@link MergedProfile}.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class ProfileBuilder implements CallStackWalker.Visitor {
+    private final CallTree mTree;
+    private final MethodStats mStats;
+    private final IntUnaryOperator mMethodIds;
+    private final IntUnaryOperator mThreadIds;
+    private final List<int[]> mStacks = new ArrayList<>();
+    private final List<MethodStats> mThreadStats = new ArrayList<>();
+    // How many frames of a method are on the stack, to count the inclusive time of recursive calls once
+    private final List<IntIntMap> mOnStackCounts = new ArrayList<>();
+
+
+    ProfileBuilder(CallTree tree, MethodStats stats) {
+        this(tree, stats, IntUnaryOperator.identity(), IntUnaryOperator.identity());
+    }
+
+    ProfileBuilder(CallTree tree, MethodStats stats, IntUnaryOperator methodIds, IntUnaryOperator threadIds) {
+        this.mTree = tree;
+        this.mStats = stats;
+        this.mMethodIds = methodIds;
+        this.mThreadIds = threadIds;
+    }
+
+    /**
+     * @return the stats which the methods of a thread are added to, or null to skip the stats of the thread
+     */
+    MethodStats statsOf(int threadId) {
+        return mStats;
+    }
+
+    @Override
+    public void onThread(int thread, int threadId) {
+        if (mTree != null) {
+            int[] stack = new int[64];
+            stack[0] = mTree.child(CallTree.ROOT, CallTree.threadFrameOf(mThreadIds.applyAsInt(threadId)));
+            mStacks.add(stack);
+        }
+        MethodStats stats = statsOf(threadId);
+        mThreadStats.add(stats);
+        mOnStackCounts.add(stats != null ? new IntIntMap(64, 0) : null);
+    }
+
+    @Override
+    public void onEnter(int thread, int depth, int methodIndex, long time) {
+        if (mTree != null) {
+            int[] stack = mStacks.get(thread);
+            if (depth + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                mStacks.set(thread, stack);
+            }
+            stack[depth + 1] = mTree.child(stack[depth], mMethodIds.applyAsInt(methodIndex));
+        }
+
+        IntIntMap counts = mOnStackCounts.get(thread);
+        if (counts != null) {
+            counts.put(methodIndex, counts.get(methodIndex) + 1);
+        }
+    }
+
+    @Override
+    public void onExit(int thread, int depth, int methodIndex, long time,
+                       long inclusiveTime, long exclusiveTime) {
+        if (mTree != null) {
+            mTree.addWeight(mStacks.get(thread)[depth + 1], exclusiveTime);
+        }
+
+        IntIntMap counts = mOnStackCounts.get(thread);
+        if (counts != null) {
+            int count = counts.get(methodIndex) - 1;
+            counts.put(methodIndex, count);
+            mThreadStats.get(thread).add(mMethodIds.applyAsInt(methodIndex),
+                    count == 0 ? inclusiveTime : 0, exclusiveTime, 1);
+        }
+    }
+}
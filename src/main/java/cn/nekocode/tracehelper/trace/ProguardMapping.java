@@ -0,0 +1,381 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ProGuard or R8 mapping file which maps the obfuscated classes and methods back to the original names.
+ * <p>
+ * Mapping files of large apps are over 100 MB, so a parsed mapping is cached as a binary index
+ * named by the sha-1 of the mapping file, and the index is memory-mapped and looked up in place.
+ * The index holds two open-addressing hash tables of entry offsets, for classes by obfuscated name
+ * and for methods by obfuscated class and method name. Overloads share a method key, so all entries
+ * of a key are probed and told apart by their signatures.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class ProguardMapping {
+    private static final int MAGIC = 0x4d50544d;    // "MTPM"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int EMPTY = -1;
+
+    private final ByteBuffer mIndex;
+    private final int mClassTableOffset;
+    private final int mClassTableSize;
+    private final int mMethodTableOffset;
+    private final int mMethodTableSize;
+
+
+    private ProguardMapping(ByteBuffer index) throws IOException {
+        this.mIndex = index;
+        if (index.limit() < HEADER_SIZE || index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Invalid mapping index");
+        }
+        this.mClassTableSize = index.getInt(8);
+        this.mMethodTableSize = index.getInt(12);
+        this.mClassTableOffset = HEADER_SIZE;
+        this.mMethodTableOffset = HEADER_SIZE + mClassTableSize * 4;
+    }
+
+    /**
+     * Load the cached index of the mapping file, or parse the mapping file and cache its index
+     *
+     * @param cacheDir the directory of cached indexes
+     */
+    public static ProguardMapping load(File mappingFile, File cacheDir) throws IOException {
+        File indexFile = new File(cacheDir, sha1(mappingFile) + ".mapping");
+        if (!indexFile.isFile()) {
+            cacheDir.mkdirs();
+            File tmp = File.createTempFile("mapping", ".tmp", cacheDir);
+            try {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp))) {
+                    new Builder().parse(mappingFile).write(out);
+                }
+                Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                tmp.delete();
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ProguardMapping(index);
+        }
+    }
+
+    /**
+     * @return the original name of the class, or the name itself if it isn't obfuscated
+     */
+    public String deobfuscateClass(String className) {
+        final byte[] key = className.getBytes(StandardCharsets.UTF_8);
+        int slot = hash(className) & (mClassTableSize - 1);
+        while (true) {
+            int entry = mIndex.getInt(mClassTableOffset + slot * 4);
+            if (entry == EMPTY) {
+                return className;
+            }
+            if (stringEquals(entry, key)) {
+                return readString(entry + 2 + stringLength(entry));
+            }
+            slot = (slot + 1) & (mClassTableSize - 1);
+        }
+    }
+
+    /**
+     * @return the method with the original class, method name and signature
+     */
+    public MethodInfo deobfuscate(MethodInfo method) {
+        // Dalvik writes the class names with slashes while ART writes them with dots
+        final boolean slashed = method.getClassName().indexOf('/') >= 0;
+        final String obfuscatedClass = slashed ? method.getClassName().replace('/', '.') : method.getClassName();
+        final String signature = deobfuscateDescriptor(method.getSignature());
+        final String key = obfuscatedClass + "." + method.getMethodName();
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] signatureBytes = signature.getBytes(StandardCharsets.UTF_8);
+
+        // All entries of the key are probed, and the one with the same signature wins
+        String name = null;
+        int slot = hash(key) & (mMethodTableSize - 1);
+        while (true) {
+            int entry = mIndex.getInt(mMethodTableOffset + slot * 4);
+            if (entry == EMPTY) {
+                break;
+            }
+            if (stringEquals(entry, keyBytes)) {
+                int nameOffset = entry + 2 + stringLength(entry);
+                int descriptorOffset = nameOffset + 2 + stringLength(nameOffset);
+                if (name == null || stringEquals(descriptorOffset, signatureBytes)) {
+                    name = readString(nameOffset);
+                }
+            }
+            slot = (slot + 1) & (mMethodTableSize - 1);
+        }
+
+        String className = deobfuscateClass(obfuscatedClass);
+        String methodName = method.getMethodName();
+        if (name != null) {
+            // Methods inlined by R8 are qualified by their own classes
+            int dot = name.lastIndexOf('.');
+            if (dot >= 0) {
+                className = name.substring(0, dot);
+                methodName = name.substring(dot + 1);
+            } else {
+                methodName = name;
+            }
+        }
+        return new MethodInfo(method.getId(), slashed ? className.replace('.', '/') : className, methodName, signature,
+                method.getSourceFile(), method.getLineNumber());
+    }
+
+    /**
+     * Replace the obfuscated classes in a descriptor such as "(La/b;I)V"
+     */
+    String deobfuscateDescriptor(String descriptor) {
+        StringBuilder sb = new StringBuilder(descriptor.length());
+        int i = 0;
+        while (i < descriptor.length()) {
+            char c = descriptor.charAt(i);
+            int end;
+            if (c == 'L' && (end = descriptor.indexOf(';', i)) > 0) {
+                String className = descriptor.substring(i + 1, end).replace('/', '.');
+                sb.append('L').append(deobfuscateClass(className).replace('.', '/')).append(';');
+                i = end + 1;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return sb.toString();
+    }
+
+    private int stringLength(int offset) {
+        return mIndex.getShort(offset) & 0xffff;
+    }
+
+    private String readString(int offset) {
+        byte[] bytes = new byte[stringLength(offset)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = mIndex.get(offset + 2 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean stringEquals(int offset, byte[] bytes) {
+        if (stringLength(offset) != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (mIndex.get(offset + 2 + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(String s) {
+        int h = s.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static String sha1(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1024 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a mapping file into the entries of the index
+     */
+    private static class Builder {
+        private final List<String[]> mClasses = new ArrayList<>();
+        private final List<String[]> mMethods = new ArrayList<>();
+
+
+        Builder parse(File mappingFile) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(mappingFile.toPath(), StandardCharsets.UTF_8)) {
+                String obfuscatedClass = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty() || line.trim().startsWith("#")) {
+                        continue;
+                    }
+
+                    int arrow = line.indexOf(" -> ");
+                    if (arrow < 0) {
+                        continue;
+                    }
+                    if (!Character.isWhitespace(line.charAt(0))) {
+                        // "com.foo.Bar -> a.b:"
+                        String original = line.substring(0, arrow).trim();
+                        obfuscatedClass = line.substring(arrow + 4).trim();
+                        if (obfuscatedClass.endsWith(":")) {
+                            obfuscatedClass = obfuscatedClass.substring(0, obfuscatedClass.length() - 1);
+                        }
+                        mClasses.add(new String[]{obfuscatedClass, original});
+                        continue;
+                    }
+
+                    // "    1:5:void bar(int,java.lang.String):10:14 -> a", fields have no parentheses
+                    String member = line.substring(0, arrow).trim();
+                    int open = member.indexOf('(');
+                    int close = member.indexOf(')', open);
+                    if (obfuscatedClass == null || open < 0 || close < 0) {
+                        continue;
+                    }
+                    int space = member.lastIndexOf(' ', open);
+                    if (space < 0) {
+                        continue;
+                    }
+                    String returnType = member.substring(0, space);
+                    returnType = returnType.substring(returnType.lastIndexOf(':') + 1);
+                    String name = member.substring(space + 1, open);
+                    String[] parameters = member.substring(open + 1, close).split(",");
+
+                    StringBuilder descriptor = new StringBuilder("(");
+                    for (String parameter : parameters) {
+                        if (!parameter.isEmpty()) {
+                            descriptor.append(descriptorOf(parameter.trim()));
+                        }
+                    }
+                    descriptor.append(')').append(descriptorOf(returnType.trim()));
+
+                    String obfuscatedName = line.substring(arrow + 4).trim();
+                    mMethods.add(new String[]{obfuscatedClass + "." + obfuscatedName, name, descriptor.toString()});
+                }
+            }
+            return this;
+        }
+
+        private static String descriptorOf(String type) {
+            StringBuilder sb = new StringBuilder();
+            while (type.endsWith("[]")) {
+                sb.append('[');
+                type = type.substring(0, type.length() - 2);
+            }
+            switch (type) {
+                case "void": return sb.append('V').toString();
+                case "boolean": return sb.append('Z').toString();
+                case "byte": return sb.append('B').toString();
+                case "char": return sb.append('C').toString();
+                case "short": return sb.append('S').toString();
+                case "int": return sb.append('I').toString();
+                case "long": return sb.append('J').toString();
+                case "float": return sb.append('F').toString();
+                case "double": return sb.append('D').toString();
+                default: return sb.append('L').append(type.replace('.', '/')).append(';').toString();
+            }
+        }
+
+        void write(OutputStream output) throws IOException {
+            final int classTableSize = tableSizeOf(mClasses.size());
+            final int methodTableSize = tableSizeOf(mMethods.size());
+            final int entriesOffset = HEADER_SIZE + (classTableSize + methodTableSize) * 4;
+
+            // Lay out the entries after the tables, then fill the tables with their offsets
+            ByteArrayOutputStream entries = new ByteArrayOutputStream();
+            DataOutputStream entryOut = new DataOutputStream(entries);
+            int[] classTable = newTable(classTableSize);
+            for (String[] entry : mClasses) {
+                insert(classTable, entry[0], entriesOffset + entryOut.size());
+                writeStrings(entryOut, entry);
+            }
+            int[] methodTable = newTable(methodTableSize);
+            for (String[] entry : mMethods) {
+                insert(methodTable, entry[0], entriesOffset + entryOut.size());
+                writeStrings(entryOut, entry);
+            }
+            entryOut.flush();
+            if ((long) entriesOffset + entries.size() > Integer.MAX_VALUE) {
+                throw new IOException("Mapping file is too large");
+            }
+
+            DataOutputStream out = new DataOutputStream(output);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(classTableSize);
+            out.writeInt(methodTableSize);
+            out.writeInt(mClasses.size());
+            out.writeInt(mMethods.size());
+            for (int offset : classTable) {
+                out.writeInt(offset);
+            }
+            for (int offset : methodTable) {
+                out.writeInt(offset);
+            }
+            entries.writeTo(out);
+            out.flush();
+        }
+
+        private static int tableSizeOf(int count) {
+            // Keep the load factor under 1/2
+            int size = 16;
+            while (size < count * 2) {
+                size <<= 1;
+            }
+            return size;
+        }
+
+        private static int[] newTable(int size) {
+            int[] table = new int[size];
+            java.util.Arrays.fill(table, EMPTY);
+            return table;
+        }
+
+        private static void insert(int[] table, String key, int offset) {
+            int slot = hash(key) & (table.length - 1);
+            while (table[slot] != EMPTY) {
+                slot = (slot + 1) & (table.length - 1);
+            }
+            table[slot] = offset;
+        }
+
+        private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+            for (String s : strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeShort(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
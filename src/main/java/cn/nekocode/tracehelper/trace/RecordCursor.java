@@ -0,0 +1,140 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Forward-only cursor over the binary records of a {@link TraceFile}.
+ * Nothing is allocated per record, the fields of the current record are read through the getters.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class RecordCursor {
+    private final TraceFile mTrace;
+    private final int mRecordSize;
+    private final boolean mDualClock;
+    private final boolean mWideThreadId;
+    private final long mRecordCount;
+
+    private ByteBuffer mWindow;
+    private long mWindowStart;
+    private long mWindowEnd;
+    private long mIndex = -1;
+
+    private int mThreadId;
+    private int mMethodValue;
+    private int mThreadTime;
+    private int mWallTime;
+
+
+    RecordCursor(TraceFile trace) {
+        this.mTrace = trace;
+        this.mRecordSize = trace.getRecordSize();
+        this.mDualClock = trace.getClock() == TraceFile.CLOCK_DUAL && mRecordSize >= 14;
+        this.mWideThreadId = trace.getDataVersion() >= 2;
+        this.mRecordCount = trace.getRecordCount();
+    }
+
+    /**
+     * Move to the next record
+     *
+     * @return false if there are no more records
+     */
+    public boolean next() throws IOException {
+        if (mIndex + 1 >= mRecordCount) {
+            mIndex = mRecordCount;
+            return false;
+        }
+
+        mIndex++;
+        if (mWindow == null || mIndex >= mWindowEnd || mIndex < mWindowStart) {
+            mWindow = mTrace.mapWindow(mIndex);
+            mWindowStart = mIndex - mIndex % mTrace.getWindowRecords();
+            mWindowEnd = mWindowStart + mWindow.limit() / mRecordSize;
+        }
+
+        int p = (int) (mIndex - mWindowStart) * mRecordSize;
+        if (mWideThreadId) {
+            mThreadId = mWindow.getShort(p) & 0xffff;
+            p += 2;
+        } else {
+            mThreadId = mWindow.get(p) & 0xff;
+            p += 1;
+        }
+        mMethodValue = mWindow.getInt(p);
+        if (mDualClock) {
+            mThreadTime = mWindow.getInt(p + 4);
+            mWallTime = mWindow.getInt(p + 8);
+        } else {
+            mThreadTime = mWallTime = mWindow.getInt(p + 4);
+        }
+        return true;
+    }
+
+    /**
+     * Position the cursor so that the following {@link #next()} returns the record at the specific index
+     */
+    public void seek(long recordIndex) {
+        mIndex = Math.max(-1, Math.min(recordIndex, mRecordCount) - 1);
+    }
+
+    /**
+     * @return the index of the current record
+     */
+    public long index() {
+        return mIndex;
+    }
+
+    public int threadId() {
+        return mThreadId;
+    }
+
+    public int methodId() {
+        return mMethodValue & ~0x03;
+    }
+
+    /**
+     * @return one of {@link TraceFile#ACTION_ENTER}, {@link TraceFile#ACTION_EXIT} and {@link TraceFile#ACTION_UNROLL}
+     */
+    public int action() {
+        return mMethodValue & 0x03;
+    }
+
+    /**
+     * @return the thread cpu time in microseconds since the start of tracing.
+     * If the trace only has one clock it is the same as {@link #wallTime()}.
+     */
+    public long threadTime() {
+        return mThreadTime & 0xffffffffL;
+    }
+
+    /**
+     * @return the wall clock time in microseconds since the start of tracing.
+     * If the trace only has one clock it is the same as {@link #threadTime()}.
+     */
+    public long wallTime() {
+        return mWallTime & 0xffffffffL;
+    }
+
+    /**
+     * @return the raw method value (method id and action) of the current record
+     */
+    public int methodValue() {
+        return mMethodValue;
+    }
+}
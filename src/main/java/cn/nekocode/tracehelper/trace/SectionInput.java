@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Reads a deflated section of varints from a {@link TraceArchive}, see {@link SectionOutput}
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class SectionInput implements AutoCloseable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Inflater mInflater = new Inflater();
+    private final InputStream mIn;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition = 0;
+    private int mLimit = 0;
+
+
+    /**
+     * Read the section starting at the offset, the position of the channel is moved by reading
+     */
+    SectionInput(FileChannel channel, long offset) throws IOException {
+        this.mIn = new InflaterInputStream(Channels.newInputStream(channel.position(offset)), mInflater, BUFFER_SIZE);
+    }
+
+    long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (mPosition == mLimit) {
+                fill();
+            }
+            byte b = mBuffer[mPosition++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in trace archive");
+    }
+
+    int readInt() throws IOException {
+        return (int) readVarint();
+    }
+
+    long readZigzag() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    byte[] readBytes() throws IOException {
+        final byte[] bytes = new byte[readInt()];
+        int position = Math.min(bytes.length, mLimit - mPosition);
+        System.arraycopy(mBuffer, mPosition, bytes, 0, position);
+        mPosition += position;
+        while (position < bytes.length) {
+            int read = mIn.read(bytes, position, bytes.length - position);
+            if (read < 0) {
+                throw new EOFException("Truncated trace archive");
+            }
+            position += read;
+        }
+        return bytes;
+    }
+
+    private void fill() throws IOException {
+        mLimit = mIn.read(mBuffer);
+        mPosition = 0;
+        if (mLimit <= 0) {
+            mLimit = 0;
+            throw new EOFException("Truncated trace archive");
+        }
+    }
+
+    @Override
+    public void close() {
+        mInflater.end();
+    }
+}
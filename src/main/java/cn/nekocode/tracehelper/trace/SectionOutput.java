@@ -0,0 +1,90 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a deflated section of varints to a {@link TraceArchive}, see {@link SectionInput}
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+class SectionOutput {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+    private final DeflaterOutputStream mOut;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPosition = 0;
+
+
+    /**
+     * @param out the stream which the section is appended to, it isn't closed by {@link #finish()}
+     */
+    SectionOutput(OutputStream out) {
+        this.mOut = new DeflaterOutputStream(out, mDeflater, BUFFER_SIZE);
+    }
+
+    /**
+     * Write an unsigned value in 7-bit groups, the low group first
+     */
+    void writeVarint(long value) throws IOException {
+        if (mPosition > BUFFER_SIZE - 10) {
+            flushBuffer();
+        }
+        while ((value & ~0x7fL) != 0) {
+            mBuffer[mPosition++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mPosition++] = (byte) value;
+    }
+
+    /**
+     * Write a signed value, small negative values are kept short by the zigzag encoding
+     */
+    void writeZigzag(long value) throws IOException {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write the length of the bytes followed by the bytes
+     */
+    void writeBytes(byte[] bytes) throws IOException {
+        writeVarint(bytes.length);
+        flushBuffer();
+        mOut.write(bytes);
+    }
+
+    /**
+     * Write the rest of the section, the deflater is released then
+     */
+    void finish() throws IOException {
+        try {
+            flushBuffer();
+            mOut.finish();
+        } finally {
+            mDeflater.end();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        mOut.write(mBuffer, 0, mPosition);
+        mPosition = 0;
+    }
+}
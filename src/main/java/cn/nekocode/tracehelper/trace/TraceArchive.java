@@ -0,0 +1,363 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Compact archive of a trace, written by {@link TraceArchiveWriter}. It keeps every record, so the trace
+ * can be restored with the same records, and the aggregates can be read without decoding the records.
+ * <p>
+ * Layout, little endian:
+ * <pre>
+ * header   magic "MTAR", version u2, reserved u2, record count u8, trace size u8,
+ *          offsets u8 of the sections below
+ * header   text header and binary header of the trace
+ * events   the records as moves along the tree, see {@link TraceArchiveWriter}
+ * stats    inclusive time, exclusive time and calls of every method
+ * tree     parent, frame and exclusive time of every node of the {@link CallTree}
+ * </pre>
+ * Every section is a deflated stream of varints, and the times are the wall times.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceArchive implements Closeable {
+    public static final String EXTENSION = ".mta";
+
+    static final int MAGIC = 0x5241544d;    // "MTAR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    static final int TAG_RECORD = 1;
+    static final int TAG_THREAD = 2;
+    static final int TAG_ENTERS = 4;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final TraceFile mHeader;
+    private final long mRecordCount;
+    private final long mTraceSize;
+    private final long mEventsOffset;
+    private final long mStatsOffset;
+    private final long mTreeOffset;
+    private final byte[] mRawHeader;
+
+
+    private TraceArchive(File file, FileChannel channel) throws IOException {
+        this.mFile = file;
+        this.mChannel = channel;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Not a trace archive: " + file);
+            }
+        }
+        header.flip();
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a trace archive: " + file);
+        }
+        if ((header.getShort(4) & 0xffff) != VERSION) {
+            throw new IOException("Unsupported trace archive version: " + (header.getShort(4) & 0xffff));
+        }
+        mRecordCount = header.getLong(8);
+        mTraceSize = header.getLong(16);
+        final long headerOffset = header.getLong(24);
+        mEventsOffset = header.getLong(32);
+        mStatsOffset = header.getLong(40);
+        mTreeOffset = header.getLong(48);
+
+        final byte[] rawHeader;
+        try (SectionInput in = new SectionInput(channel, headerOffset)) {
+            byte[] textHeader = in.readBytes();
+            byte[] binaryHeader = in.readBytes();
+            rawHeader = Arrays.copyOf(textHeader, textHeader.length + binaryHeader.length);
+            System.arraycopy(binaryHeader, 0, rawHeader, textHeader.length, binaryHeader.length);
+        }
+        mRawHeader = rawHeader;
+        mHeader = TraceFile.open(ByteBuffer.wrap(mRawHeader));
+    }
+
+    public static TraceArchive open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new TraceArchive(file, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public static boolean isArchive(String file) {
+        return file.endsWith(EXTENSION);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the trace without records, which has the methods and threads of the archived trace
+     */
+    public TraceFile getHeader() {
+        return mHeader;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return the size of the trace restored from the archive
+     */
+    public long getTraceSize() {
+        return mTraceSize;
+    }
+
+    /**
+     * Read the unique stacks weighted by the exclusive wall time, the frames are the method indexes of
+     * {@link #getHeader()} or the thread frames
+     */
+    public CallTree readTree() throws IOException {
+        try (SectionInput in = new SectionInput(mChannel, mTreeOffset)) {
+            final int size = in.readInt();
+            final CallTree tree = new CallTree();
+            for (int node = 1; node < size; node++) {
+                int parent = node - in.readInt();
+                int frame = (int) in.readZigzag();
+                // The parents are added before their children, so the nodes keep their indexes
+                tree.addWeight(tree.child(parent, frame), in.readVarint());
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Read the stats of the methods by the wall time, keyed by the method indexes of {@link #getHeader()}
+     */
+    public MethodStats readStats() throws IOException {
+        try (SectionInput in = new SectionInput(mChannel, mStatsOffset)) {
+            final int size = in.readInt();
+            final MethodStats stats = new MethodStats(size);
+            for (int i = 0; i < size; i++) {
+                int methodIndex = in.readInt();
+                long inclusiveTime = in.readVarint();
+                long exclusiveTime = in.readVarint();
+                stats.add(methodIndex, inclusiveTime, exclusiveTime, in.readVarint());
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Decode the events back to the trace file
+     */
+    public void restore(File file) throws IOException {
+        final CallTree tree = readTree();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             SectionInput in = new SectionInput(mChannel, mEventsOffset)) {
+            writeFully(channel, ByteBuffer.wrap(mRawHeader));
+            new EventReader(tree, in, channel).read();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mHeader.close();
+        mChannel.close();
+    }
+
+    static boolean isDualClock(TraceFile trace) {
+        // The same condition as the record layout of RecordCursor
+        return trace.getClock() == TraceFile.CLOCK_DUAL && trace.getRecordSize() >= 14;
+    }
+
+    /**
+     * @return the current node of a thread after a record which is written as it is
+     */
+    static int nodeAfterRecord(CallTree tree, int node, int action, int methodIndex) {
+        if (methodIndex < 0) {
+            return node;
+        }
+        if (action == TraceFile.ACTION_ENTER) {
+            return tree.child(node, methodIndex);
+        }
+        return tree.getFrame(node) == methodIndex ? tree.getParent(node) : node;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Decodes the events of {@link TraceArchiveWriter} to the binary records
+     */
+    private class EventReader {
+        private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+        private final CallTree mTree;
+        private final SectionInput mIn;
+        private final FileChannel mOut;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        private final int mRecordSize;
+        private final boolean mDualClock;
+        private final boolean mWideThreadId;
+        private final int[] mMethodIds;
+
+        private final IntIntMap mThreadIndexes = new IntIntMap(64, -1);
+        private int[] mNodes = new int[16];
+        private int[] mThreadTimes = new int[16];
+        private int[] mWallTimes = new int[16];
+        private int mThreadCount = 0;
+        private int[] mPath = new int[64];
+
+        EventReader(CallTree tree, SectionInput in, FileChannel out) {
+            this.mTree = tree;
+            this.mIn = in;
+            this.mOut = out;
+            this.mRecordSize = mHeader.getRecordSize();
+            this.mDualClock = isDualClock(mHeader);
+            this.mWideThreadId = mHeader.getDataVersion() >= 2;
+            this.mMethodIds = new int[mHeader.getMethods().size()];
+            for (int i = 0; i < mMethodIds.length; i++) {
+                mMethodIds[i] = mHeader.getMethods().get(i).getId();
+            }
+        }
+
+        void read() throws IOException {
+            int threadId = -1;
+            int thread = -1;
+            long records = 0;
+            while (records < mRecordCount) {
+                final long tag = mIn.readVarint();
+                if ((tag & TAG_THREAD) != 0) {
+                    threadId = mIn.readInt();
+                    thread = threadIndexOf(threadId);
+                } else if (thread < 0) {
+                    throw new IOException("Corrupted trace archive: " + mFile);
+                }
+                final int node = mNodes[thread];
+
+                if ((tag & TAG_RECORD) != 0) {
+                    final int action = (int) (tag >>> 3) & 0x03;
+                    final int methodId = (int) (mIn.readVarint() << 2);
+                    readTimes(thread);
+                    writeRecord(threadId, methodId | action, thread);
+                    mNodes[thread] = nodeAfterRecord(mTree, node, action, mHeader.getMethodIndex(methodId));
+                    records++;
+                    continue;
+                }
+
+                final long up = tag >>> 3;
+                final int target = (tag & TAG_ENTERS) != 0 ? mIn.readInt() : -1;
+                readTimes(thread);
+
+                int current = node;
+                for (long i = 0; i < up; i++) {
+                    checkMethodNode(current);
+                    writeRecord(threadId, mMethodIds[mTree.getFrame(current)] | TraceFile.ACTION_EXIT, thread);
+                    current = mTree.getParent(current);
+                }
+                records += up;
+
+                if (target >= 0) {
+                    // The frames from the common ancestor down to the target
+                    int depth = 0;
+                    for (int n = target; n != current; n = mTree.getParent(n)) {
+                        checkMethodNode(n);
+                        if (depth == mPath.length) {
+                            mPath = Arrays.copyOf(mPath, depth * 2);
+                        }
+                        mPath[depth++] = n;
+                    }
+                    for (int i = depth - 1; i >= 0; i--) {
+                        writeRecord(threadId, mMethodIds[mTree.getFrame(mPath[i])] | TraceFile.ACTION_ENTER, thread);
+                    }
+                    records += depth;
+                    current = target;
+                }
+                mNodes[thread] = current;
+            }
+
+            mBuffer.flip();
+            writeFully(mOut, mBuffer);
+        }
+
+        private void checkMethodNode(int node) throws IOException {
+            if (node <= CallTree.ROOT || node >= mTree.size() || CallTree.isThreadFrame(mTree.getFrame(node))) {
+                throw new IOException("Corrupted trace archive: " + mFile);
+            }
+        }
+
+        private void readTimes(int thread) throws IOException {
+            if (mDualClock) {
+                mThreadTimes[thread] += (int) mIn.readZigzag();
+            }
+            mWallTimes[thread] += (int) mIn.readZigzag();
+        }
+
+        private void writeRecord(int threadId, int methodValue, int thread) throws IOException {
+            if (mBuffer.remaining() < mRecordSize) {
+                mBuffer.flip();
+                writeFully(mOut, mBuffer);
+                mBuffer.clear();
+            }
+
+            final int start = mBuffer.position();
+            if (mWideThreadId) {
+                mBuffer.putShort((short) threadId);
+            } else {
+                mBuffer.put((byte) threadId);
+            }
+            mBuffer.putInt(methodValue);
+            if (mDualClock) {
+                mBuffer.putInt(mThreadTimes[thread]);
+            }
+            mBuffer.putInt(mWallTimes[thread]);
+            while (mBuffer.position() < start + mRecordSize) {
+                mBuffer.put((byte) 0);
+            }
+        }
+
+        private int threadIndexOf(int threadId) {
+            int index = mThreadIndexes.get(threadId);
+            if (index >= 0) {
+                return index;
+            }
+
+            index = mThreadCount++;
+            if (index == mNodes.length) {
+                int capacity = index * 2;
+                mNodes = Arrays.copyOf(mNodes, capacity);
+                mThreadTimes = Arrays.copyOf(mThreadTimes, capacity);
+                mWallTimes = Arrays.copyOf(mWallTimes, capacity);
+            }
+            mThreadIndexes.put(threadId, index);
+            mNodes[index] = mTree.child(CallTree.ROOT, CallTree.threadFrameOf(threadId));
+            return index;
+        }
+    }
+}
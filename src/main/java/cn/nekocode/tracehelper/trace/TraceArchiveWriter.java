@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes a trace as a {@link TraceArchive}.
+ * <p>
+ * The records are walked twice: first into a {@link CallTree} of the unique stacks and the method stats,
+ * then into the events. Every thread has a current node in the tree, and a run of records on one thread
+ * at the same time which exits some frames and then enters some frames is written as one move to
+ * a node. Such runs are what the sampling profiler writes between two samples, so a sample costs a few bytes
+ * however deep its stack is. The records which don't move along the tree, e.g. exits without a matching
+ * enter, are written as they are.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceArchiveWriter {
+
+    private TraceArchiveWriter() {
+    }
+
+    public static void write(TraceFile trace, File file) throws IOException {
+        final CallTree tree = new CallTree();
+        final MethodStats stats = new MethodStats(trace.getMethods().size());
+        new CallStackWalker(trace, false).walk(new ProfileBuilder(tree, stats));
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final OutputStream out = Channels.newOutputStream(channel);
+            channel.position(TraceArchive.HEADER_SIZE);
+
+            final long headerOffset = channel.position();
+            SectionOutput section = new SectionOutput(out);
+            final byte[] textHeader = TraceWriter.textHeaderOf(trace).getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer buffer = trace.read(trace.getBinaryHeaderOffset(),
+                    (int) (trace.getDataOffset() - trace.getBinaryHeaderOffset()));
+            final byte[] binaryHeader = new byte[buffer.remaining()];
+            buffer.get(binaryHeader);
+            section.writeBytes(textHeader);
+            section.writeBytes(binaryHeader);
+            section.finish();
+
+            final long eventsOffset = channel.position();
+            section = new SectionOutput(out);
+            new EventWriter(trace, tree, section).write();
+            section.finish();
+
+            // The tree is written after the events, since the events may add the stacks the walker skipped
+            final long statsOffset = channel.position();
+            section = new SectionOutput(out);
+            section.writeVarint(stats.size());
+            for (int slot = 0; slot < stats.size(); slot++) {
+                section.writeVarint(stats.getMethodIndex(slot));
+                section.writeVarint(stats.getInclusiveTime(slot));
+                section.writeVarint(stats.getExclusiveTime(slot));
+                section.writeVarint(stats.getCalls(slot));
+            }
+            section.finish();
+
+            final long treeOffset = channel.position();
+            section = new SectionOutput(out);
+            section.writeVarint(tree.size());
+            for (int node = 1; node < tree.size(); node++) {
+                section.writeVarint(node - tree.getParent(node));
+                section.writeZigzag(tree.getFrame(node));
+                section.writeVarint(tree.getWeight(node));
+            }
+            section.finish();
+
+            final long recordSize = trace.getRecordSize();
+            ByteBuffer header = ByteBuffer.allocate(TraceArchive.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(TraceArchive.MAGIC)
+                    .putShort((short) TraceArchive.VERSION)
+                    .putShort((short) 0)
+                    .putLong(trace.getRecordCount())
+                    .putLong(textHeader.length + binaryHeader.length + trace.getRecordCount() * recordSize)
+                    .putLong(headerOffset)
+                    .putLong(eventsOffset)
+                    .putLong(statsOffset)
+                    .putLong(treeOffset);
+            header.clear();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        }
+    }
+
+    /**
+     * Encodes the records as moves along the tree, see {@link TraceArchive#restore(File)} for the decoding
+     */
+    private static class EventWriter {
+        private final TraceFile mTrace;
+        private final CallTree mTree;
+        private final SectionOutput mOut;
+        private final boolean mDualClock;
+
+        private final IntIntMap mThreadIndexes = new IntIntMap(64, -1);
+        private int[] mThreadIds = new int[16];
+        private int[] mNodes = new int[16];
+        private int[] mThreadTimes = new int[16];
+        private int[] mWallTimes = new int[16];
+        private int mThreadCount = 0;
+        private int mLastThread = -1;
+
+        // The move being collected
+        private int mMoveThread = -1;
+        private int mMoveThreadTime;
+        private int mMoveWallTime;
+        private int mMoveUp;
+        private boolean mMoveEnters;
+
+        EventWriter(TraceFile trace, CallTree tree, SectionOutput out) {
+            this.mTrace = trace;
+            this.mTree = tree;
+            this.mOut = out;
+            this.mDualClock = TraceArchive.isDualClock(trace);
+        }
+
+        void write() throws IOException {
+            final RecordCursor cursor = mTrace.records();
+            while (cursor.next()) {
+                final int thread = threadIndexOf(cursor.threadId());
+                final int methodIndex = mTrace.getMethodIndex(cursor.methodId());
+                final int action = cursor.action();
+                final int threadTime = (int) cursor.threadTime();
+                final int wallTime = (int) cursor.wallTime();
+                final int node = mNodes[thread];
+
+                final boolean enter = action == TraceFile.ACTION_ENTER && methodIndex >= 0;
+                final boolean exit = action == TraceFile.ACTION_EXIT && methodIndex >= 0 &&
+                        mTree.getFrame(node) == methodIndex;
+                if (mMoveThread >= 0 && (thread != mMoveThread || threadTime != mMoveThreadTime ||
+                        wallTime != mMoveWallTime || !(enter || (exit && !mMoveEnters)))) {
+                    flushMove();
+                }
+
+                if (enter || exit) {
+                    if (mMoveThread < 0) {
+                        mMoveThread = thread;
+                        mMoveThreadTime = threadTime;
+                        mMoveWallTime = wallTime;
+                        mMoveUp = 0;
+                        mMoveEnters = false;
+                    }
+                    if (enter) {
+                        mNodes[thread] = mTree.child(node, methodIndex);
+                        mMoveEnters = true;
+                    } else {
+                        mNodes[thread] = mTree.getParent(node);
+                        mMoveUp++;
+                    }
+                    continue;
+                }
+
+                // A record written as it is, e.g. an unroll or an exit of a frame which is not on the top
+                writeTag(((long) action << 3) | TraceArchive.TAG_RECORD, thread);
+                mOut.writeVarint((cursor.methodId() & 0xffffffffL) >>> 2);
+                writeTimes(thread, threadTime, wallTime);
+                mNodes[thread] = TraceArchive.nodeAfterRecord(mTree, node, action, methodIndex);
+            }
+            if (mMoveThread >= 0) {
+                flushMove();
+            }
+        }
+
+        private void flushMove() throws IOException {
+            final int thread = mMoveThread;
+            writeTag(((long) mMoveUp << 3) | (mMoveEnters ? TraceArchive.TAG_ENTERS : 0), thread);
+            if (mMoveEnters) {
+                mOut.writeVarint(mNodes[thread]);
+            }
+            writeTimes(thread, mMoveThreadTime, mMoveWallTime);
+            mMoveThread = -1;
+        }
+
+        private void writeTag(long tag, int thread) throws IOException {
+            if (thread != mLastThread) {
+                mOut.writeVarint(tag | TraceArchive.TAG_THREAD);
+                mOut.writeVarint(mThreadIds[thread]);
+                mLastThread = thread;
+            } else {
+                mOut.writeVarint(tag);
+            }
+        }
+
+        private void writeTimes(int thread, int threadTime, int wallTime) throws IOException {
+            // The times are unsigned 32-bit, so the deltas are taken with int overflow
+            if (mDualClock) {
+                mOut.writeZigzag(threadTime - mThreadTimes[thread]);
+                mThreadTimes[thread] = threadTime;
+            }
+            mOut.writeZigzag(wallTime - mWallTimes[thread]);
+            mWallTimes[thread] = wallTime;
+        }
+
+        private int threadIndexOf(int threadId) {
+            int index = mThreadIndexes.get(threadId);
+            if (index >= 0) {
+                return index;
+            }
+
+            index = mThreadCount++;
+            if (index == mNodes.length) {
+                int capacity = index * 2;
+                mThreadIds = Arrays.copyOf(mThreadIds, capacity);
+                mNodes = Arrays.copyOf(mNodes, capacity);
+                mThreadTimes = Arrays.copyOf(mThreadTimes, capacity);
+                mWallTimes = Arrays.copyOf(mWallTimes, capacity);
+            }
+            mThreadIndexes.put(threadId, index);
+            mThreadIds[index] = threadId;
+            mNodes[index] = mTree.child(CallTree.ROOT, CallTree.threadFrameOf(threadId));
+            return index;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Reader of the dmtrace (method trace v1~v3) files written by the method profiler.
+ * The file is memory-mapped window by window, so only the text header is decoded onto the heap
+ * and the binary records are decoded in place by {@link RecordCursor}.
+ * Files compressed by {@link BlockGzipWriter} are read transparently, block by block.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceFile implements Closeable {
+    public static final int ACTION_ENTER = 0;
+    public static final int ACTION_EXIT = 1;
+    public static final int ACTION_UNROLL = 2;
+
+    public static final int CLOCK_THREAD_CPU = 0;
+    public static final int CLOCK_WALL = 1;
+    public static final int CLOCK_DUAL = 2;
+
+    static final int MAGIC = 0x574f4c53;    // "SLOW"
+    private static final long HEADER_LIMIT = 256L * 1024 * 1024;
+    private static final long INITIAL_HEADER_SIZE = 1024 * 1024;
+    private static final long SEEK_MARGIN_RECORDS = 4096;
+
+    private final File mFile;
+    private final TraceSource mSource;
+    private final long mFileSize;
+
+    private int mVersion;
+    private final Map<String, String> mKeys = new LinkedHashMap<>();
+    private final Map<Integer, String> mThreads = new LinkedHashMap<>();
+    private final List<MethodInfo> mMethods = new ArrayList<>();
+    private IntIntMap mMethodIndexes;
+    private int mClock;
+
+    private long mBinaryHeaderOffset;
+    private int mDataVersion;
+    private long mStartTime;
+    private int mRecordSize;
+    private long mDataOffset;
+    private long mRecordCount;
+    private long mWindowRecords;
+
+
+    private TraceFile(File file, TraceSource source) throws IOException {
+        this.mFile = file;
+        this.mSource = source;
+        this.mFileSize = source.size();
+    }
+
+    public static TraceFile open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        TraceSource source = null;
+        try {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            channel.read(magic, 0);
+            source = (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b ?
+                    new BlockGzipSource(channel) : new TraceSource.Mapped(channel);
+            return open(file, source);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read a trace which is in memory, {@link #getFile()} of it returns null
+     */
+    public static TraceFile open(ByteBuffer data) throws IOException {
+        return open(null, new TraceSource.Memory(data));
+    }
+
+    private static TraceFile open(File file, TraceSource source) throws IOException {
+        TraceFile traceFile = new TraceFile(file, source);
+        try {
+            traceFile.parse();
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+        return traceFile;
+    }
+
+    private void parse() throws IOException {
+        // The header is read in growing chunks, since reading a compressed file costs more than mapping it
+        final long headerLimit = Math.min(mFileSize, HEADER_LIMIT);
+        long headerSize = Math.min(headerLimit, INITIAL_HEADER_SIZE);
+        ByteBuffer header;
+        while (true) {
+            header = mSource.read(0, (int) headerSize).order(ByteOrder.LITTLE_ENDIAN);
+            mBinaryHeaderOffset = parseTextHeader(header);
+            if ((mBinaryHeaderOffset >= 0 && header.limit() - mBinaryHeaderOffset >= 18) || headerSize >= headerLimit) {
+                break;
+            }
+
+            mKeys.clear();
+            mThreads.clear();
+            mMethods.clear();
+            headerSize = Math.min(headerLimit, headerSize * 4);
+        }
+
+        if (mBinaryHeaderOffset < 0) {
+            throw new IOException("Truncated trace header: " + mFile);
+        }
+        int pos = (int) mBinaryHeaderOffset;
+        if (header.limit() - pos < 16 || header.getInt(pos) != MAGIC) {
+            throw new IOException("Not a method trace file: " + mFile);
+        }
+
+        mDataVersion = header.getShort(pos + 4) & 0xffff;
+        int offset = header.getShort(pos + 6) & 0xffff;
+        mStartTime = header.getLong(pos + 8);
+        switch (mDataVersion) {
+            case 1:
+                mRecordSize = 9;
+                break;
+            case 2:
+                mRecordSize = 10;
+                break;
+            case 3:
+                mRecordSize = header.getShort(pos + 16) & 0xffff;
+                break;
+            default:
+                throw new IOException("Unsupported trace data version: " + mDataVersion);
+        }
+        if (mRecordSize < (mClock == CLOCK_DUAL ? 14 : 10) && mDataVersion != 1) {
+            throw new IOException("Invalid trace record size: " + mRecordSize);
+        }
+
+        mDataOffset = mBinaryHeaderOffset + offset;
+        mRecordCount = Math.max(0, (mFileSize - mDataOffset) / mRecordSize);
+        mWindowRecords = Math.max(1, mSource.windowSize() / mRecordSize);
+    }
+
+    /**
+     * @return the offset of the binary header, or -1 if the header is truncated
+     */
+    private long parseTextHeader(ByteBuffer buf) throws IOException {
+        final int SECTION_NONE = 0, SECTION_VERSION = 1, SECTION_THREADS = 2, SECTION_METHODS = 3;
+        int section = SECTION_NONE;
+        boolean versionLine = false;
+        int pos = 0;
+        int limit = buf.limit();
+
+        while (pos < limit) {
+            int end = pos;
+            while (end < limit && buf.get(end) != '\n') {
+                end++;
+            }
+            if (end >= limit) {
+                break;
+            }
+
+            int lineEnd = end > pos && buf.get(end - 1) == '\r' ? end - 1 : end;
+            String line = decode(buf, pos, lineEnd);
+            pos = end + 1;
+
+            if (line.startsWith("*")) {
+                switch (line) {
+                    case "*version":
+                        section = SECTION_VERSION;
+                        versionLine = true;
+                        break;
+                    case "*threads":
+                        section = SECTION_THREADS;
+                        break;
+                    case "*methods":
+                        section = SECTION_METHODS;
+                        break;
+                    case "*end":
+                        finishTextHeader();
+                        return pos;
+                    default:
+                        throw new IOException("Unknown trace header section: " + line);
+                }
+                continue;
+            }
+
+            switch (section) {
+                case SECTION_VERSION:
+                    if (versionLine) {
+                        mVersion = Integer.parseInt(line.trim());
+                        versionLine = false;
+                    } else {
+                        int eq = line.indexOf('=');
+                        if (eq > 0) {
+                            mKeys.put(line.substring(0, eq), line.substring(eq + 1));
+                        }
+                    }
+                    break;
+
+                case SECTION_THREADS:
+                    int tab = line.indexOf('\t');
+                    if (tab > 0) {
+                        mThreads.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+                    }
+                    break;
+
+                case SECTION_METHODS:
+                    mMethods.add(parseMethod(line));
+                    break;
+
+                default:
+                    throw new IOException("Not a method trace file: " + mFile);
+            }
+        }
+
+        return -1;
+    }
+
+    private void finishTextHeader() {
+        mMethodIndexes = new IntIntMap(mMethods.size(), -1);
+        for (int i = 0; i < mMethods.size(); i++) {
+            mMethodIndexes.put(mMethods.get(i).getId(), i);
+        }
+
+        String clock = mKeys.get("clock");
+        if ("dual".equals(clock)) {
+            mClock = CLOCK_DUAL;
+        } else if ("wall".equals(clock)) {
+            mClock = CLOCK_WALL;
+        } else {
+            mClock = CLOCK_THREAD_CPU;
+        }
+    }
+
+    private static MethodInfo parseMethod(String line) throws IOException {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 2 || !fields[0].startsWith("0x")) {
+            throw new IOException("Invalid method line: " + line);
+        }
+
+        int id = (int) Long.parseLong(fields[0].substring(2), 16);
+        int lineNumber = -1;
+        if (fields.length > 5) {
+            try {
+                lineNumber = Integer.parseInt(fields[5]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return new MethodInfo(id, fields[1],
+                fields.length > 2 ? fields[2] : "",
+                fields.length > 3 ? fields[3] : "",
+                fields.length > 4 ? fields[4] : "",
+                lineNumber);
+    }
+
+    private static String decode(ByteBuffer buf, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Map the window which contains the record at the specific index
+     */
+    ByteBuffer mapWindow(long recordIndex) throws IOException {
+        long first = recordIndex - recordIndex % mWindowRecords;
+        long count = Math.min(mWindowRecords, mRecordCount - first);
+        ByteBuffer window = mSource.read(mDataOffset + first * mRecordSize, (int) (count * mRecordSize));
+        return window.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Read the raw bytes of the trace
+     */
+    ByteBuffer read(long position, int length) throws IOException {
+        return mSource.read(position, length);
+    }
+
+    /**
+     * Read the raw bytes of the trace into the remaining space of the buffer
+     */
+    void read(long position, ByteBuffer target) throws IOException {
+        mSource.read(position, target);
+    }
+
+    long getWindowRecords() {
+        return mWindowRecords;
+    }
+
+    public RecordCursor records() {
+        return new RecordCursor(this);
+    }
+
+    /**
+     * @return the file, or null if the trace is in memory
+     */
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return the uncompressed size of the trace
+     */
+    public long getFileSize() {
+        return mFileSize;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the key/value pairs of the "*version" section, such as "clock" and "elapsed-time-usec"
+     */
+    public Map<String, String> getKeys() {
+        return Collections.unmodifiableMap(mKeys);
+    }
+
+    public int getClock() {
+        return mClock;
+    }
+
+    public Map<Integer, String> getThreads() {
+        return Collections.unmodifiableMap(mThreads);
+    }
+
+    public String getThreadName(int threadId) {
+        String name = mThreads.get(threadId);
+        return name != null ? name : "Thread-" + threadId;
+    }
+
+    public List<MethodInfo> getMethods() {
+        return Collections.unmodifiableList(mMethods);
+    }
+
+    /**
+     * Rename the methods to their original names, the method ids are kept
+     */
+    public void applyMapping(ProguardMapping mapping) {
+        for (int i = 0; i < mMethods.size(); i++) {
+            mMethods.set(i, mapping.deobfuscate(mMethods.get(i)));
+        }
+    }
+
+    /**
+     * @return the index of the method in {@link #getMethods()}, or -1 if it is not in the method table
+     */
+    public int getMethodIndex(int methodId) {
+        return mMethodIndexes.get(methodId);
+    }
+
+    public int getDataVersion() {
+        return mDataVersion;
+    }
+
+    /**
+     * @return the start time of tracing in microseconds since the epoch
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public int getRecordSize() {
+        return mRecordSize;
+    }
+
+    public long getBinaryHeaderOffset() {
+        return mBinaryHeaderOffset;
+    }
+
+    public long getDataOffset() {
+        return mDataOffset;
+    }
+
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Find a record to start reading from for a time range. The records are in the order they are written,
+     * which is nearly but not strictly the order of wall time, so the caller should skip earlier records.
+     *
+     * @return the index of a record at or before the wall time
+     */
+    public long findRecord(long wallTime) throws IOException {
+        if (mSource instanceof BlockGzipSource) {
+            long record = ((BlockGzipSource) mSource).findRecord(wallTime, mDataOffset, mRecordSize);
+            return Math.max(0, record - SEEK_MARGIN_RECORDS);
+        }
+
+        // Binary search, then step back a window since the order is not strict
+        RecordCursor cursor = records();
+        long low = 0, high = mRecordCount;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            cursor.seek(middle);
+            if (cursor.next() && cursor.wallTime() < wallTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(0, low - SEEK_MARGIN_RECORDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mSource.close();
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sparse index of the records of a trace, cached in a sidecar file "out.trace.idx" next to the trace.
+ * Records are indexed in blocks: for every block it keeps the time bounds of the records around it,
+ * and for every thread the blocks which contain its records, so a time range of some threads
+ * can be read without scanning the whole trace.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceIndex {
+    public static final String EXTENSION = ".idx";
+    static final int BLOCK_RECORDS = 4096;
+    private static final int MAGIC = 0x5849544d;    // "MTIX"
+    private static final int VERSION = 1;
+
+    private final long mRecordCount;
+    // The max wall time of the records before each block, and the min wall time of the records from each block on.
+    // The records are only nearly in the order of time, so both bounds are needed to find a time range safely.
+    private final long[] mMaxTimesBefore;
+    private final long[] mMinTimesFrom;
+    private final Map<Integer, int[]> mThreadBlocks;
+
+
+    private TraceIndex(long recordCount, long[] maxTimesBefore, long[] minTimesFrom, Map<Integer, int[]> threadBlocks) {
+        this.mRecordCount = recordCount;
+        this.mMaxTimesBefore = maxTimesBefore;
+        this.mMinTimesFrom = minTimesFrom;
+        this.mThreadBlocks = threadBlocks;
+    }
+
+    /**
+     * Read the sidecar index of the trace, or build it and write the sidecar if it's missing or stale
+     */
+    public static TraceIndex load(TraceFile trace) throws IOException {
+        final File file = trace.getFile();
+        if (file == null) {
+            return build(trace);
+        }
+
+        File indexFile = new File(file.getPath() + EXTENSION);
+        if (indexFile.isFile()) {
+            try {
+                TraceIndex index = read(indexFile, file, trace);
+                if (index != null) {
+                    return index;
+                }
+            } catch (IOException ignored) {
+                // Rebuild a broken index
+            }
+        }
+
+        TraceIndex index = build(trace);
+        try {
+            index.write(indexFile, file);
+        } catch (IOException ignored) {
+            // The directory may be read-only, the index just isn't cached
+            indexFile.delete();
+        }
+        return index;
+    }
+
+    public static TraceIndex build(TraceFile trace) throws IOException {
+        final long recordCount = trace.getRecordCount();
+        final int blockCount = (int) ((recordCount + BLOCK_RECORDS - 1) / BLOCK_RECORDS);
+        long[] maxTimesBefore = new long[blockCount];
+        long[] minTimesFrom = new long[blockCount];
+        long[] minTimes = new long[blockCount];
+
+        // Thread ids are at most 16 bits
+        int[][] threadBlocks = new int[0x10000][];
+        int[] threadBlockCounts = new int[0x10000];
+
+        RecordCursor cursor = trace.records();
+        long maxTime = -1;
+        for (int block = 0; block < blockCount; block++) {
+            maxTimesBefore[block] = maxTime;
+            long minTime = Long.MAX_VALUE;
+            for (int i = 0; i < BLOCK_RECORDS && cursor.next(); i++) {
+                long time = cursor.wallTime();
+                maxTime = Math.max(maxTime, time);
+                minTime = Math.min(minTime, time);
+
+                int threadId = cursor.threadId();
+                int[] blocks = threadBlocks[threadId];
+                int count = threadBlockCounts[threadId];
+                if (blocks == null) {
+                    blocks = threadBlocks[threadId] = new int[16];
+                } else if (blocks[count - 1] == block) {
+                    continue;
+                } else if (count == blocks.length) {
+                    blocks = threadBlocks[threadId] = Arrays.copyOf(blocks, count * 2);
+                }
+                blocks[count] = block;
+                threadBlockCounts[threadId] = count + 1;
+            }
+            minTimes[block] = minTime;
+        }
+
+        long minTime = Long.MAX_VALUE;
+        for (int block = blockCount - 1; block >= 0; block--) {
+            minTime = Math.min(minTime, minTimes[block]);
+            minTimesFrom[block] = minTime;
+        }
+
+        Map<Integer, int[]> threads = new LinkedHashMap<>();
+        for (int threadId = 0; threadId < threadBlocks.length; threadId++) {
+            if (threadBlocks[threadId] != null) {
+                threads.put(threadId, Arrays.copyOf(threadBlocks[threadId], threadBlockCounts[threadId]));
+            }
+        }
+        return new TraceIndex(recordCount, maxTimesBefore, minTimesFrom, threads);
+    }
+
+    /**
+     * @return null if the index is of another version of the trace file
+     */
+    private static TraceIndex read(File indexFile, File traceFile, TraceFile trace) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != traceFile.length() ||
+                    in.readLong() != traceFile.lastModified()) {
+                return null;
+            }
+            long recordCount = in.readLong();
+            if (recordCount != trace.getRecordCount()) {
+                return null;
+            }
+
+            int blockCount = in.readInt();
+            long[] maxTimesBefore = new long[blockCount];
+            long[] minTimesFrom = new long[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                maxTimesBefore[i] = in.readLong();
+                minTimesFrom[i] = in.readLong();
+            }
+
+            int threadCount = in.readInt();
+            Map<Integer, int[]> threads = new LinkedHashMap<>();
+            for (int i = 0; i < threadCount; i++) {
+                int threadId = in.readUnsignedShort();
+                int[] blocks = new int[in.readInt()];
+                for (int j = 0; j < blocks.length; j++) {
+                    blocks[j] = in.readInt();
+                }
+                threads.put(threadId, blocks);
+            }
+            return new TraceIndex(recordCount, maxTimesBefore, minTimesFrom, threads);
+        }
+    }
+
+    private void write(File indexFile, File traceFile) throws IOException {
+        // Written to a temp file first, so a concurrent reader never sees a partial index
+        File tempFile = new File(indexFile.getPath() + ".part");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(traceFile.length());
+            out.writeLong(traceFile.lastModified());
+            out.writeLong(mRecordCount);
+
+            out.writeInt(mMaxTimesBefore.length);
+            for (int i = 0; i < mMaxTimesBefore.length; i++) {
+                out.writeLong(mMaxTimesBefore[i]);
+                out.writeLong(mMinTimesFrom[i]);
+            }
+
+            out.writeInt(mThreadBlocks.size());
+            for (Map.Entry<Integer, int[]> entry : mThreadBlocks.entrySet()) {
+                out.writeShort(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (int block : entry.getValue()) {
+                    out.writeInt(block);
+                }
+            }
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+                throw new IOException("Couldn't write " + indexFile);
+            }
+        }
+    }
+
+    public int getBlockCount() {
+        return mMaxTimesBefore.length;
+    }
+
+    /**
+     * @return the index of the first record of the block
+     */
+    public long getFirstRecord(int block) {
+        return (long) block * BLOCK_RECORDS;
+    }
+
+    /**
+     * @return the number of records in the block
+     */
+    public int getRecordCount(int block) {
+        return (int) Math.min(BLOCK_RECORDS, mRecordCount - getFirstRecord(block));
+    }
+
+    /**
+     * @return the first block which may contain records at or after the wall time
+     */
+    public int firstBlockFrom(long wallTime) {
+        // The last block before which all records are earlier than the time
+        int low = 0, high = mMaxTimesBefore.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mMaxTimesBefore[middle] < wallTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return Math.max(0, low - 1);
+    }
+
+    /**
+     * @return the block after the last one which may contain records at or before the wall time
+     */
+    public int endBlockUntil(long wallTime) {
+        // The first block from which all records are later than the time
+        int low = 0, high = mMinTimesFrom.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (mMinTimesFrom[middle] <= wallTime) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the blocks of every thread by thread id
+     */
+    public Map<Integer, int[]> getThreadBlocks() {
+        return Collections.unmodifiableMap(mThreadBlocks);
+    }
+
+    /**
+     * @return the ascending blocks which contain records of the thread
+     */
+    public int[] getBlocks(int threadId) {
+        int[] blocks = mThreadBlocks.get(threadId);
+        return blocks != null ? blocks : new int[0];
+    }
+}
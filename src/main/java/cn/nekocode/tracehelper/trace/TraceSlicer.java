@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Set;
+
+/**
+ * Extracts the records of some threads in a time range into a new trace file,
+ * reading only the blocks of the trace which {@link TraceIndex} says may contain them
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceSlicer {
+    private static final int READ_BLOCKS = 16;
+    private static final String NUM_METHOD_CALLS_KEY = "num-method-calls=";
+
+    private final TraceFile mTrace;
+    private final TraceIndex mIndex;
+
+
+    public TraceSlicer(TraceFile trace, TraceIndex index) {
+        this.mTrace = trace;
+        this.mIndex = index;
+    }
+
+    /**
+     * Write the slice as a trace file with the same header, except for the threads not kept
+     *
+     * @param threadIds the threads to keep, or null to keep all threads
+     * @param startTime the start of wall time in microseconds, inclusive
+     * @param endTime   the end of wall time in microseconds, inclusive
+     * @return the number of records written
+     */
+    public long write(File file, Set<Integer> threadIds, long startTime, long endTime) throws IOException {
+        final BitSet blocks = selectBlocks(threadIds, startTime, endTime);
+        final int recordSize = mTrace.getRecordSize();
+        final boolean wideThreadId = mTrace.getDataVersion() >= 2;
+        final int timeOffset = (wideThreadId ? 2 : 1) +
+                (mTrace.getClock() == TraceFile.CLOCK_DUAL && recordSize >= 14 ? 8 : 4);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeHeader(channel, threadIds);
+
+            final byte[] input = new byte[READ_BLOCKS * TraceIndex.BLOCK_RECORDS * recordSize];
+            final ByteBuffer inputBuffer = ByteBuffer.wrap(input).order(ByteOrder.LITTLE_ENDIAN);
+            final byte[] output = new byte[input.length];
+            long written = 0;
+
+            // Read runs of consecutive blocks at once
+            int block = blocks.nextSetBit(0);
+            while (block >= 0) {
+                int end = block + 1;
+                while (end - block < READ_BLOCKS && blocks.get(end)) {
+                    end++;
+                }
+
+                long firstRecord = mIndex.getFirstRecord(block);
+                long lastRecord = mIndex.getFirstRecord(end - 1) + mIndex.getRecordCount(end - 1);
+                int length = (int) ((lastRecord - firstRecord) * recordSize);
+                inputBuffer.clear().limit(length);
+                mTrace.read(mTrace.getDataOffset() + firstRecord * recordSize, inputBuffer);
+
+                int outputLength = 0;
+                for (int p = 0; p < length; p += recordSize) {
+                    int threadId = wideThreadId ? inputBuffer.getShort(p) & 0xffff : input[p] & 0xff;
+                    long time = inputBuffer.getInt(p + timeOffset) & 0xffffffffL;
+                    if (time < startTime || time > endTime || (threadIds != null && !threadIds.contains(threadId))) {
+                        continue;
+                    }
+                    System.arraycopy(input, p, output, outputLength, recordSize);
+                    outputLength += recordSize;
+                }
+                writeFully(channel, ByteBuffer.wrap(output, 0, outputLength));
+                written += outputLength / recordSize;
+
+                block = blocks.nextSetBit(end);
+            }
+            return written;
+        }
+    }
+
+    private BitSet selectBlocks(Set<Integer> threadIds, long startTime, long endTime) {
+        final int first = mIndex.firstBlockFrom(startTime);
+        final int end = mIndex.endBlockUntil(endTime);
+        BitSet blocks = new BitSet(mIndex.getBlockCount());
+        if (first >= end) {
+            return blocks;
+        }
+
+        if (threadIds == null) {
+            blocks.set(first, end);
+        } else {
+            for (int threadId : threadIds) {
+                for (int block : mIndex.getBlocks(threadId)) {
+                    if (block >= first && block < end) {
+                        blocks.set(block);
+                    }
+                }
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Copy the text header without the threads not kept and the outdated call count, then the binary header
+     */
+    private void writeHeader(FileChannel channel, Set<Integer> threadIds) throws IOException {
+        final int textLength = (int) mTrace.getBinaryHeaderOffset();
+        ByteBuffer textHeader = mTrace.read(0, textLength);
+        byte[] text = new byte[textLength];
+        textHeader.get(text);
+
+        byte[] output = new byte[textLength];
+        int outputLength = 0;
+        boolean inThreads = false;
+        int start = 0;
+        while (start < textLength) {
+            int end = start;
+            while (end < textLength && text[end] != '\n') {
+                end++;
+            }
+            end = Math.min(end + 1, textLength);
+            String line = new String(text, start, end - start, StandardCharsets.UTF_8).trim();
+
+            boolean keep = true;
+            if (line.startsWith("*")) {
+                inThreads = "*threads".equals(line);
+            } else if (inThreads && threadIds != null) {
+                int tab = line.indexOf('\t');
+                try {
+                    keep = tab <= 0 || threadIds.contains(Integer.parseInt(line.substring(0, tab)));
+                } catch (NumberFormatException ignored) {
+                }
+            } else if (line.startsWith(NUM_METHOD_CALLS_KEY)) {
+                keep = false;
+            }
+
+            if (keep) {
+                System.arraycopy(text, start, output, outputLength, end - start);
+                outputLength += end - start;
+            }
+            start = end;
+        }
+        writeFully(channel, ByteBuffer.wrap(output, 0, outputLength));
+
+        long binaryHeaderLength = mTrace.getDataOffset() - mTrace.getBinaryHeaderOffset();
+        writeFully(channel, mTrace.read(mTrace.getBinaryHeaderOffset(), (int) binaryHeaderLength));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The bytes of a trace, which is a plain file, a buffer in memory or a compressed file
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+interface TraceSource extends Closeable {
+    /**
+     * @return the uncompressed size
+     */
+    long size() throws IOException;
+
+    /**
+     * @return a buffer of the uncompressed bytes in the range, its position is 0
+     */
+    ByteBuffer read(long position, int length) throws IOException;
+
+    /**
+     * Read the uncompressed bytes from the position into the remaining space of the buffer
+     */
+    void read(long position, ByteBuffer target) throws IOException;
+
+    /**
+     * @return the preferred size of the windows read by {@link RecordCursor}
+     */
+    long windowSize();
+
+    /**
+     * A plain file which is memory-mapped
+     */
+    class Mapped implements TraceSource {
+        private final FileChannel mChannel;
+
+        Mapped(FileChannel channel) {
+            this.mChannel = channel;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return mChannel.size();
+        }
+
+        @Override
+        public ByteBuffer read(long position, int length) throws IOException {
+            return mChannel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        @Override
+        public void read(long position, ByteBuffer target) throws IOException {
+            while (target.hasRemaining()) {
+                int count = mChannel.read(target, position);
+                if (count < 0) {
+                    throw new EOFException();
+                }
+                position += count;
+            }
+        }
+
+        @Override
+        public long windowSize() {
+            return 64L * 1024 * 1024;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * A trace which is already in memory, such as the data received from ddmlib
+     */
+    class Memory implements TraceSource {
+        private final ByteBuffer mBuffer;
+
+        Memory(ByteBuffer buffer) {
+            this.mBuffer = buffer.slice();
+        }
+
+        @Override
+        public long size() {
+            return mBuffer.limit();
+        }
+
+        @Override
+        public ByteBuffer read(long position, int length) {
+            ByteBuffer buffer = mBuffer.duplicate();
+            buffer.position((int) position);
+            buffer.limit((int) position + length);
+            return buffer.slice();
+        }
+
+        @Override
+        public void read(long position, ByteBuffer target) {
+            target.put(read(position, target.remaining()));
+        }
+
+        @Override
+        public long windowSize() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * Writes a trace file whose text header is generated from the parsed header of {@link TraceFile},
+ * e.g. after the methods are renamed by {@link TraceFile#applyMapping(ProguardMapping)}.
+ * The binary header and records are copied as is.
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceWriter {
+    private static final int COPY_SIZE = 4 * 1024 * 1024;
+
+
+    public static void write(TraceFile trace, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(channel, ByteBuffer.wrap(textHeaderOf(trace).getBytes(StandardCharsets.UTF_8)));
+
+            final long end = trace.getFileSize();
+            final ByteBuffer buffer = ByteBuffer.allocate(COPY_SIZE);
+            long position = trace.getBinaryHeaderOffset();
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(COPY_SIZE, end - position));
+                trace.read(position, buffer);
+                buffer.flip();
+                position += buffer.remaining();
+                writeFully(channel, buffer);
+            }
+        }
+    }
+
+    static String textHeaderOf(TraceFile trace) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("*version\n").append(trace.getVersion()).append('\n');
+        for (Map.Entry<String, String> entry : trace.getKeys().entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+        }
+        sb.append("*threads\n");
+        for (Map.Entry<Integer, String> entry : trace.getThreads().entrySet()) {
+            sb.append(entry.getKey()).append('\t').append(entry.getValue()).append('\n');
+        }
+        sb.append("*methods\n");
+        for (MethodInfo method : trace.getMethods()) {
+            sb.append(String.format("0x%08x", method.getId()))
+                    .append('\t').append(method.getClassName())
+                    .append('\t').append(method.getMethodName())
+                    .append('\t').append(method.getSignature())
+                    .append('\t').append(method.getSourceFile());
+            if (method.getLineNumber() >= 0) {
+                sb.append('\t').append(method.getLineNumber());
+            }
+            sb.append('\n');
+        }
+        sb.append("*end\n");
+        return sb.toString();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
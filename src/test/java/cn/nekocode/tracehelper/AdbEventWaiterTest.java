@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * The waits must be woken up by the changes which ddmlib doesn't report, well before their timeout
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class AdbEventWaiterTest {
+    private static final long TIMEOUT_SECONDS = 10;
+    private static final long MAX_WAKE_UP_MILLIS = 2000;
+
+
+    @Test
+    public void wakesUpWhenTheFutureCompletes() throws InterruptedException {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        result.whenComplete((started, throwable) -> AdbEventWaiter.wakeUp());
+        new Thread(() -> {
+            sleepQuietly(100);
+            result.complete(false);
+        }).start();
+
+        long start = System.nanoTime();
+        assertTrue(AdbEventWaiter.await(result::isDone, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertWokenUp(start);
+    }
+
+    @Test
+    public void wakesUpOnTheDeviceListsOfTheAdbServer() throws Exception {
+        CountDownLatch nextList = new CountDownLatch(1);
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread adbServer = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] request = new byte[22];
+                    in.readFully(request);
+                    assertEquals("0012host:track-devices", new String(request, StandardCharsets.UTF_8));
+
+                    OutputStream out = socket.getOutputStream();
+                    sleepQuietly(100);
+                    out.write("OKAY0000".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    nextList.await();
+                    sleepQuietly(100);
+                    out.write("0015emulator-5554\tdevice\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    in.read();
+                } catch (IOException | InterruptedException ignored) {
+                }
+            });
+            adbServer.start();
+
+            AdbDeviceTracker tracker = new AdbDeviceTracker(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+            try {
+                tracker.startTracking();
+                long start = System.nanoTime();
+                assertTrue(AdbEventWaiter.await(tracker::hasDeviceList, TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                assertWokenUp(start);
+                assertEquals(Collections.emptyMap(), tracker.getDevices());
+
+                nextList.countDown();
+                start = System.nanoTime();
+                assertTrue(AdbEventWaiter.await(() -> !tracker.getDevices().isEmpty(),
+                        TIMEOUT_SECONDS, TimeUnit.SECONDS));
+                assertWokenUp(start);
+                assertEquals(Collections.singletonMap("emulator-5554", AdbDeviceTracker.STATE_ONLINE),
+                        tracker.getDevices());
+            } finally {
+                tracker.close();
+            }
+            adbServer.join();
+        }
+    }
+
+    private static void assertWokenUp(long start) {
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < MAX_WAKE_UP_MILLIS);
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {
+        }
+    }
+}
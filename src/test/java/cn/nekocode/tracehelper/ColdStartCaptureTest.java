@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The recorded outputs of "am start -W"
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class ColdStartCaptureTest {
+    @Test
+    public void launchesActivityNamedError() {
+        assertTrue(ColdStartCapture.isLaunched(
+                "Starting: Intent { cmp=com.example.app/.ErrorActivity }\r\n" +
+                        "Status: ok\r\n" +
+                        "LaunchState: COLD\r\n" +
+                        "Activity: com.example.app/.ErrorActivity\r\n" +
+                        "TotalTime: 612\r\n" +
+                        "WaitTime: 618\r\n" +
+                        "Complete\r\n"));
+    }
+
+    @Test
+    public void failsOnErrorLines() {
+        assertFalse(ColdStartCapture.isLaunched(
+                "Starting: Intent { cmp=com.example.app/.Missing }\n" +
+                        "Error type 3\n" +
+                        "Error: Activity class {com.example.app/com.example.app.Missing} does not exist.\n"));
+    }
+
+    @Test
+    public void failsWithoutStatusOk() {
+        assertFalse(ColdStartCapture.isLaunched(
+                "Starting: Intent { cmp=com.example.app/.MainActivity }\n" +
+                        "Exception occurred while executing 'start':\n" +
+                        "java.lang.SecurityException: Permission Denial: starting Intent { cmp=com.example.app/" +
+                        ".MainActivity } not exported from uid 10123\n"));
+        assertFalse(ColdStartCapture.isLaunched(
+                "Starting: Intent { cmp=com.example.app/.MainActivity }\n" +
+                        "Status: timeout\n" +
+                        "Activity: com.example.app/.MainActivity\n" +
+                        "Complete\n"));
+    }
+}
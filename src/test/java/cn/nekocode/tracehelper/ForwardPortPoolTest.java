@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.IDevice;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class ForwardPortPoolTest {
+    private static final int FIRST_PORT = 28900;
+    private static final int PERFD_PORT = 12389;
+
+
+    @Test
+    public void neverLeasesTheSamePortTwice() throws IOException {
+        ForwardPortPool pool = new ForwardPortPool(FIRST_PORT, 8);
+        Set<Integer> ports = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ports.add(pool.acquire()));
+        }
+        try {
+            pool.acquire();
+            fail("All the ports are leased");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void skipsPortBoundElsewhere() throws IOException {
+        ForwardPortPool pool = new ForwardPortPool(FIRST_PORT, 2);
+        try (ServerSocket socket = new ServerSocket(FIRST_PORT, 1, InetAddress.getLoopbackAddress())) {
+            assertTrue(socket.isBound());
+            assertEquals(FIRST_PORT + 1, pool.acquire());
+            try {
+                pool.acquire();
+                fail("The other port is bound");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void releasedPortCanBeLeasedAgain() throws IOException {
+        ForwardPortPool pool = new ForwardPortPool(FIRST_PORT, 1);
+        int port = pool.acquire();
+        pool.release(port);
+        assertEquals(port, pool.acquire());
+    }
+
+    @Test
+    public void connectionReleasesItsPortOnClose() throws Exception {
+        ForwardPortPool pool = new ForwardPortPool(FIRST_PORT, 1);
+        IDevice device = mock(IDevice.class);
+        PerfdConnection connection = new PerfdConnection(device, PERFD_PORT, pool);
+
+        assertTrue(connection.forward());
+        assertEquals(FIRST_PORT, connection.getLocalPort());
+        verify(device).createForward(FIRST_PORT, PERFD_PORT);
+
+        connection.close();
+        verify(device).removeForward(FIRST_PORT, PERFD_PORT);
+        assertEquals(FIRST_PORT, pool.acquire());
+    }
+
+    @Test
+    public void connectionRetriesOnTheNextPortIfForwardFails() throws Exception {
+        ForwardPortPool pool = new ForwardPortPool(FIRST_PORT, 4);
+        IDevice device = mock(IDevice.class);
+        doThrow(new IOException("cannot bind")).when(device).createForward(FIRST_PORT, PERFD_PORT);
+        PerfdConnection connection = new PerfdConnection(device, PERFD_PORT, pool);
+
+        assertTrue(connection.forward());
+        assertEquals(FIRST_PORT + 1, connection.getLocalPort());
+        verify(device, times(2)).createForward(anyInt(), eq(PERFD_PORT));
+        connection.close();
+    }
+}
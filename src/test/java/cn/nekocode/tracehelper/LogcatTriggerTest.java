@@ -0,0 +1,114 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class LogcatTriggerTest {
+    /**
+     * A recorded "logcat -v brief" with CRLF line endings, as adb shells of old devices print them,
+     * and markers with 2, 3 and 4 byte utf-8 characters
+     */
+    static final String RECORDED_LOGCAT = "--------- beginning of main\r\n" +
+            "I/ActivityManager(  612): Displayed com.example.app/.MainActivity: +412ms\r\n" +
+            "D/Feed    ( 4321): loading page 1 of \u00ablatest\u00bb\r\n" +
+            "I/Trace   ( 4321): \u5f00\u59cb scroll \u2713 TRACE_START\r\n" +
+            "D/Feed    ( 4321): bind item \ud83d\ude00 at 3\r\n" +
+            "W/Feed    ( 4321): TRACE_START is not at the end of this line\r\n" +
+            "I/Trace   ( 4321): \u7ed3\u675f scroll \ud83c\udfc1 TRACE_STOP\r\n" +
+            "D/Feed    ( 4321): idle\r\n";
+    static final Pattern START_PATTERN = Pattern.compile("\u5f00\u59cb scroll \u2713 TRACE_START$");
+    static final Pattern STOP_PATTERN = Pattern.compile("\u7ed3\u675f scroll \ud83c\udfc1 TRACE_STOP$");
+
+
+    @Test
+    public void matchesMarkersSplitAtEveryByte() {
+        byte[] data = RECORDED_LOGCAT.getBytes(StandardCharsets.UTF_8);
+        for (int chunkSize = 1; chunkSize <= 16; chunkSize++) {
+            assertEquals("chunk size " + chunkSize,
+                    Arrays.asList("start", "stop"), replay(data, chunkSize, START_PATTERN, STOP_PATTERN));
+        }
+    }
+
+    @Test
+    public void matchesMarkersAtEverySplitPoint() {
+        byte[] data = RECORDED_LOGCAT.getBytes(StandardCharsets.UTF_8);
+        for (int split = 0; split <= data.length; split++) {
+            List<String> events = new ArrayList<>();
+            LogcatTrigger trigger = new LogcatTrigger(START_PATTERN, STOP_PATTERN, listenerOf(events));
+            // The output buffer of the shell is reused, the trigger mustn't keep it
+            byte[] buffer = new byte[data.length + 8];
+            System.arraycopy(data, 0, buffer, 4, split);
+            trigger.addOutput(buffer, 4, split);
+            Arrays.fill(buffer, (byte) 0);
+            System.arraycopy(data, split, buffer, 0, data.length - split);
+            trigger.addOutput(buffer, 0, data.length - split);
+            trigger.flush();
+            assertEquals("split at " + split, Arrays.asList("start", "stop"), events);
+        }
+    }
+
+    @Test
+    public void matchesTheLastLineWithoutLineEnding() {
+        byte[] data = "I/Trace ( 1): \u5f00\u59cb scroll \u2713 TRACE_START".getBytes(StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList("start"), replay(data, 5, START_PATTERN, null));
+    }
+
+    @Test
+    public void replacesMalformedBytes() {
+        List<String> events = new ArrayList<>();
+        LogcatTrigger trigger = new LogcatTrigger(Pattern.compile("^a\ufffdb\ufffdc$"), null, listenerOf(events));
+        // A truncated 3 byte sequence, then a stray continuation byte
+        byte[] data = {'a', (byte) 0xe5, (byte) 0xbc, 'b', (byte) 0x80, 'c', '\r', '\n'};
+        trigger.addOutput(data, 0, data.length);
+        assertEquals(Arrays.asList("start"), events);
+    }
+
+    private static List<String> replay(byte[] data, int chunkSize, Pattern startPattern, Pattern stopPattern) {
+        List<String> events = new ArrayList<>();
+        LogcatTrigger trigger = new LogcatTrigger(startPattern, stopPattern, listenerOf(events));
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            trigger.addOutput(data, offset, Math.min(chunkSize, data.length - offset));
+        }
+        trigger.flush();
+        return events;
+    }
+
+    private static LogcatTrigger.Listener listenerOf(List<String> events) {
+        return new LogcatTrigger.Listener() {
+            @Override
+            public void onStartMarker() {
+                events.add("start");
+            }
+
+            @Override
+            public void onStopMarker() {
+                events.add("stop");
+            }
+        };
+    }
+}
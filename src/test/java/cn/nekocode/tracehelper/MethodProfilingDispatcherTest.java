@@ -0,0 +1,78 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.Client;
+import com.android.ddmlib.ClientData;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class MethodProfilingDispatcherTest {
+    private final Client mClientA = mock(Client.class);
+    private final Client mClientB = mock(Client.class);
+    private final ClientData.IMethodProfilingHandler mHandlerA = mock(ClientData.IMethodProfilingHandler.class);
+    private final ClientData.IMethodProfilingHandler mHandlerB = mock(ClientData.IMethodProfilingHandler.class);
+
+
+    @After
+    public void tearDown() {
+        MethodProfilingDispatcher.unregister(mClientA, mHandlerA);
+        MethodProfilingDispatcher.unregister(mClientB, mHandlerB);
+    }
+
+    @Test
+    public void routesCallbacksToTheHandlerOfEachClient() {
+        MethodProfilingDispatcher.register(mClientA, mHandlerA);
+        MethodProfilingDispatcher.register(mClientB, mHandlerB);
+        final ClientData.IMethodProfilingHandler dispatcher = MethodProfilingDispatcher.getInstance();
+
+        byte[] data = new byte[]{1, 2, 3};
+        dispatcher.onSuccess(data, mClientA);
+        dispatcher.onSuccess("/sdcard/b.trace", mClientB);
+        dispatcher.onEndFailure(mClientB, "failed");
+
+        verify(mHandlerA).onSuccess(data, mClientA);
+        verifyNoMoreInteractions(mHandlerA);
+        verify(mHandlerB).onSuccess("/sdcard/b.trace", mClientB);
+        verify(mHandlerB).onEndFailure(mClientB, "failed");
+        verifyNoMoreInteractions(mHandlerB);
+    }
+
+    @Test
+    public void unregisterKeepsTheHandlerOfAnotherSession() {
+        MethodProfilingDispatcher.register(mClientA, mHandlerA);
+        // A finished session of the same client must not remove the handler of the current one
+        MethodProfilingDispatcher.unregister(mClientA, mHandlerB);
+
+        MethodProfilingDispatcher.getInstance().onEndFailure(mClientA, "failed");
+        verify(mHandlerA).onEndFailure(mClientA, "failed");
+        verifyNoInteractions(mHandlerB);
+    }
+
+    @Test
+    public void ignoresCallbacksOfUnregisteredClients() {
+        MethodProfilingDispatcher.register(mClientA, mHandlerA);
+        MethodProfilingDispatcher.unregister(mClientA, mHandlerA);
+
+        MethodProfilingDispatcher.getInstance().onSuccess(new byte[0], mClientA);
+        verifyNoInteractions(mHandlerA);
+    }
+}
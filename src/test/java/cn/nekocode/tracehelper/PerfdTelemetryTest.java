@@ -0,0 +1,245 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.tools.profiler.proto.CpuProfiler;
+import com.android.tools.profiler.proto.CpuServiceGrpc;
+import com.android.tools.profiler.proto.MemoryProfiler;
+import com.android.tools.profiler.proto.MemoryServiceGrpc;
+import com.android.tools.profiler.proto.Profiler;
+import com.android.tools.profiler.proto.ProfilerServiceGrpc;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the telemetry against an in-process stand-in of perfd, whose clock advances a millisecond per query
+ * and whose samples are derived from the end of the requested time range
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class PerfdTelemetryTest {
+    private static final String SERVER_NAME = "perfd";
+    private static final int PID = 4321;
+    private static final long PERFD_START_TIME = TimeUnit.SECONDS.toNanos(5000);
+    private static final long CLOCK_STEP = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private final AtomicLong mClock = new AtomicLong(PERFD_START_TIME);
+    private final AtomicInteger mMonitoredApps = new AtomicInteger();
+    private Server mServer;
+
+
+    @After
+    public void tearDown() {
+        if (mServer != null) {
+            mServer.shutdownNow();
+        }
+    }
+
+    @Test
+    public void savesAlignedRowsOfPerfdSamples() throws Exception {
+        startServer(true);
+        PerfdTelemetry telemetry = new PerfdTelemetry(null, PID);
+        assertTrue(telemetry.start(InProcessChannelBuilder.forName(SERVER_NAME).directExecutor().build()));
+        assertEquals(2, mMonitoredApps.get());
+        Thread.sleep(500);
+        TelemetryFile samples = telemetry.stop();
+        assertEquals(0, mMonitoredApps.get());
+        assertNull(telemetry.stop());
+
+        long traceStartTime = TimeUnit.SECONDS.toMicros(1500000000);
+        samples.setTraceStartTime(traceStartTime);
+        File file = mFolder.newFile("out" + TelemetryFile.EXTENSION);
+        samples.write(file);
+        TelemetryFile telemetryFile = TelemetryFile.read(file);
+
+        assertArrayEquals(PerfdTelemetry.COLUMNS, telemetryFile.getColumns());
+        assertEquals(PERFD_START_TIME, telemetryFile.getPerfdStartTime());
+        assertEquals(traceStartTime, telemetryFile.getTraceStartTime());
+        // The scheduled polls and the final one of stopping
+        assertTrue(telemetryFile.getRowCount() >= 1);
+        for (int row = 0; row < telemetryFile.getRowCount(); row++) {
+            // Every poll reads the clock once, after the read of starting
+            long now = PERFD_START_TIME + (row + 1) * CLOCK_STEP;
+            long time = TimeUnit.NANOSECONDS.toMicros(now - PERFD_START_TIME);
+            assertEquals(time, telemetryFile.getValue(row, 0));
+            assertEquals(traceStartTime + time, telemetryFile.toTraceTime(telemetryFile.getValue(row, 0)));
+            long[] expected = {time, millisOf(now) * 2, millisOf(now), millisOf(now) * 4, 1,
+                    millisOf(now) * 10, millisOf(now) * 20, millisOf(now) * 30, 7, 5, 1};
+            for (int column = 0; column < expected.length; column++) {
+                assertEquals("row " + row + " " + PerfdTelemetry.COLUMNS[column],
+                        expected[column], telemetryFile.getValue(row, column));
+            }
+        }
+    }
+
+    @Test
+    public void failsToStartWithoutMonitoring() throws Exception {
+        startServer(false);
+        PerfdTelemetry telemetry = new PerfdTelemetry(null, PID);
+        assertFalse(telemetry.start(InProcessChannelBuilder.forName(SERVER_NAME).directExecutor().build()));
+        assertNull(telemetry.stop());
+    }
+
+    @Test
+    public void readsBackAnEmptyTelemetry() throws IOException {
+        TelemetryFile telemetry = new TelemetryFile(PerfdTelemetry.COLUMNS);
+        telemetry.setPerfdStartTime(PERFD_START_TIME);
+        File file = mFolder.newFile("empty" + TelemetryFile.EXTENSION);
+        telemetry.write(file);
+
+        TelemetryFile telemetryFile = TelemetryFile.read(file);
+        assertEquals(0, telemetryFile.getRowCount());
+        assertEquals(PERFD_START_TIME, telemetryFile.getPerfdStartTime());
+        assertEquals(0, telemetryFile.getTraceStartTime());
+        assertEquals(Arrays.asList(PerfdTelemetry.COLUMNS), Arrays.asList(telemetryFile.getColumns()));
+    }
+
+    private static long millisOf(long time) {
+        return TimeUnit.NANOSECONDS.toMillis(time - PERFD_START_TIME);
+    }
+
+    /**
+     * @param isMonitoring whether the cpu and memory services are served, or only the clock
+     */
+    private void startServer(boolean isMonitoring) throws IOException {
+        InProcessServerBuilder builder = InProcessServerBuilder.forName(SERVER_NAME).directExecutor()
+                .addService(new ProfilerServiceGrpc.ProfilerServiceImplBase() {
+                    @Override
+                    public void getCurrentTime(Profiler.TimeRequest request,
+                                               StreamObserver<Profiler.TimeResponse> observer) {
+                        reply(observer, Profiler.TimeResponse.newBuilder()
+                                .setTimestampNs(mClock.getAndAdd(CLOCK_STEP)).build());
+                    }
+                });
+        if (isMonitoring) {
+            builder.addService(new FakeCpuService()).addService(new FakeMemoryService());
+        }
+        mServer = builder.build().start();
+    }
+
+    private static <T> void reply(StreamObserver<T> observer, T response) {
+        observer.onNext(response);
+        observer.onCompleted();
+    }
+
+    private class FakeCpuService extends CpuServiceGrpc.CpuServiceImplBase {
+        private boolean mHasReportedThreads = false;
+
+        @Override
+        public void startMonitoringApp(CpuProfiler.CpuStartRequest request,
+                                       StreamObserver<CpuProfiler.CpuStartResponse> observer) {
+            assertEquals(PID, request.getProcessId());
+            mMonitoredApps.incrementAndGet();
+            reply(observer, CpuProfiler.CpuStartResponse.getDefaultInstance());
+        }
+
+        @Override
+        public void stopMonitoringApp(CpuProfiler.CpuStopRequest request,
+                                      StreamObserver<CpuProfiler.CpuStopResponse> observer) {
+            mMonitoredApps.decrementAndGet();
+            reply(observer, CpuProfiler.CpuStopResponse.getDefaultInstance());
+        }
+
+        @Override
+        public void getData(CpuProfiler.CpuDataRequest request,
+                            StreamObserver<CpuProfiler.CpuDataResponse> observer) {
+            long millis = millisOf(request.getEndTimestamp());
+            reply(observer, CpuProfiler.CpuDataResponse.newBuilder()
+                    .addData(CpuProfiler.CpuProfilerData.newBuilder()
+                            .setCpuUsage(CpuProfiler.CpuUsageData.newBuilder()
+                                    .setAppCpuTimeInMillisec(millis * 2)
+                                    .setSystemCpuTimeInMillisec(millis)
+                                    .setElapsedTimeInMillisec(millis * 4)))
+                    .build());
+        }
+
+        @Override
+        public void getThreads(CpuProfiler.GetThreadsRequest request,
+                               StreamObserver<CpuProfiler.GetThreadsResponse> observer) {
+            CpuProfiler.GetThreadsResponse.Builder response = CpuProfiler.GetThreadsResponse.newBuilder();
+            // The states are only reported once, they are kept by the later polls
+            if (!mHasReportedThreads) {
+                mHasReportedThreads = true;
+                response.addThreads(threadOf(1, CpuProfiler.GetThreadsResponse.State.SLEEPING,
+                        CpuProfiler.GetThreadsResponse.State.RUNNING));
+                response.addThreads(threadOf(2, CpuProfiler.GetThreadsResponse.State.RUNNING,
+                        CpuProfiler.GetThreadsResponse.State.WAITING));
+            }
+            reply(observer, response.build());
+        }
+
+        private CpuProfiler.GetThreadsResponse.Thread threadOf(int tid, CpuProfiler.GetThreadsResponse.State first,
+                                                               CpuProfiler.GetThreadsResponse.State last) {
+            return CpuProfiler.GetThreadsResponse.Thread.newBuilder()
+                    .setTid(tid)
+                    .addActivities(CpuProfiler.GetThreadsResponse.ThreadActivity.newBuilder()
+                            .setTimestamp(PERFD_START_TIME + 2).setNewState(last))
+                    .addActivities(CpuProfiler.GetThreadsResponse.ThreadActivity.newBuilder()
+                            .setTimestamp(PERFD_START_TIME + 1).setNewState(first))
+                    .build();
+        }
+    }
+
+    private class FakeMemoryService extends MemoryServiceGrpc.MemoryServiceImplBase {
+        @Override
+        public void startMonitoringApp(MemoryProfiler.MemoryStartRequest request,
+                                       StreamObserver<MemoryProfiler.MemoryStartResponse> observer) {
+            assertEquals(PID, request.getProcessId());
+            mMonitoredApps.incrementAndGet();
+            reply(observer, MemoryProfiler.MemoryStartResponse.getDefaultInstance());
+        }
+
+        @Override
+        public void stopMonitoringApp(MemoryProfiler.MemoryStopRequest request,
+                                      StreamObserver<MemoryProfiler.MemoryStopResponse> observer) {
+            mMonitoredApps.decrementAndGet();
+            reply(observer, MemoryProfiler.MemoryStopResponse.getDefaultInstance());
+        }
+
+        @Override
+        public void getData(MemoryProfiler.MemoryRequest request, StreamObserver<MemoryProfiler.MemoryData> observer) {
+            long millis = millisOf(request.getEndTime());
+            // Only the last memory sample is kept, while the counts are summed up
+            reply(observer, MemoryProfiler.MemoryData.newBuilder()
+                    .addMemSamples(MemoryProfiler.MemoryData.MemorySample.newBuilder()
+                            .setJavaMem(1).setNativeMem(2).setTotalMem(3))
+                    .addMemSamples(MemoryProfiler.MemoryData.MemorySample.newBuilder()
+                            .setJavaMem(millis * 10).setNativeMem(millis * 20).setTotalMem(millis * 30))
+                    .addVmStatsSamples(MemoryProfiler.MemoryData.VmStatsSample.newBuilder()
+                            .setJavaAllocationCount(4).setJavaFreeCount(2).setGcCount(1))
+                    .addVmStatsSamples(MemoryProfiler.MemoryData.VmStatsSample.newBuilder()
+                            .setJavaAllocationCount(3).setJavaFreeCount(3))
+                    .build());
+        }
+    }
+}
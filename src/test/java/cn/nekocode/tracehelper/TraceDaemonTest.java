@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceDaemonTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void confinesOutputFilesToTheOutputDir() throws IOException {
+        File outputDir = mFolder.newFolder("traces");
+        File otherDir = mFolder.newFolder("other");
+        TraceDaemon daemon = new TraceDaemon(null, 0, outputDir);
+
+        assertTrue(daemon.isInOutputDir(new File(outputDir, "out.trace").getPath()));
+        assertTrue(daemon.isInOutputDir(new File(outputDir, "app/out.trace").getPath()));
+        assertFalse(daemon.isInOutputDir(new File(otherDir, "out.trace").getPath()));
+        assertFalse(daemon.isInOutputDir(new File(outputDir, "../other/out.trace").getPath()));
+        // A sibling which only shares the prefix of the name
+        assertFalse(daemon.isInOutputDir(new File(mFolder.getRoot(), "traces2/out.trace").getPath()));
+
+        File link = new File(outputDir, "link");
+        Files.createSymbolicLink(link.toPath(), otherDir.toPath());
+        assertFalse(daemon.isInOutputDir(new File(link, "out.trace").getPath()));
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TransferLimiterTest {
+
+    @After
+    public void tearDown() {
+        TransferLimiter.setMaxTransfers(0);
+    }
+
+    @Test
+    public void neverLetsMoreThanMaxHoldersIn() throws Exception {
+        final int maxTransfers = 2;
+        TransferLimiter.setMaxTransfers(maxTransfers);
+        final AtomicInteger holders = new AtomicInteger();
+        final AtomicInteger maxHolders = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 16; i++) {
+                futures.add(executor.submit(() -> {
+                    TransferLimiter.Permit permit = TransferLimiter.acquire();
+                    try {
+                        maxHolders.accumulateAndGet(holders.incrementAndGet(), Math::max);
+                        Thread.sleep(20);
+                        holders.decrementAndGet();
+                    } finally {
+                        permit.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(maxTransfers, maxHolders.get());
+    }
+
+    @Test
+    public void releaseIsIdempotent() throws Exception {
+        TransferLimiter.setMaxTransfers(1);
+        TransferLimiter.Permit permit = TransferLimiter.acquire();
+        permit.release();
+        permit.release();
+
+        // A second release must not add a permit
+        TransferLimiter.Permit first = TransferLimiter.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TransferLimiter.Permit> second = executor.submit(TransferLimiter::acquire);
+            Thread.sleep(100);
+            assertFalse(second.isDone());
+
+            first.release();
+            second.get(10, TimeUnit.SECONDS).release();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unlimitedByDefault() throws Exception {
+        List<TransferLimiter.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            permits.add(TransferLimiter.acquire());
+        }
+        for (TransferLimiter.Permit permit : permits) {
+            permit.release();
+        }
+    }
+}
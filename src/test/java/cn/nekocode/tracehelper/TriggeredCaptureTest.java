@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.IShellOutputReceiver;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Drives the capture by a fake device which replays the recorded logcat of {@link LogcatTriggerTest},
+ * with profilers which save the number of their segment as the trace
+ *
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TriggeredCaptureTest {
+    private static final long PRE_ROLL_MILLIS = 200;
+    private static final long POST_ROLL_MILLIS = 300;
+    // The time from arming to the start marker, and from the start marker to the stop marker
+    private static final long START_DELAY_MILLIS = 500;
+    private static final long STOP_DELAY_MILLIS = 200;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+    private final List<FakeSegment> mSegments = new ArrayList<>();
+    private volatile long mStartMarkerTime;
+    private volatile long mStopMarkerTime;
+
+
+    @Test
+    public void keepsThePreRollBeforeTheStartMarker() throws Exception {
+        File output = new File(mFolder.getRoot(), "out.trace");
+        assertTrue(captureOf(output, PRE_ROLL_MILLIS).run());
+
+        // The profiler is restarted every pre-roll period until the start marker
+        assertTrue(mSegments.size() >= 2);
+        FakeSegment last = mSegments.get(mSegments.size() - 1);
+        assertTrue(last.mStartTime < mStartMarkerTime);
+        assertEquals(String.valueOf(mSegments.size() - 1), read(output));
+        File preRollFile = new File(mFolder.getRoot(), "out-preroll.trace");
+        assertEquals(String.valueOf(mSegments.size() - 2), read(preRollFile));
+        assertPostRoll(last);
+        for (FakeSegment segment : mSegments) {
+            verify(segment.mProfiler).terminate();
+        }
+    }
+
+    @Test
+    public void startsAtTheStartMarkerWithoutPreRoll() throws Exception {
+        File output = new File(mFolder.getRoot(), "out.trace");
+        assertTrue(captureOf(output, 0).run());
+
+        assertEquals(1, mSegments.size());
+        FakeSegment segment = mSegments.get(0);
+        assertTrue(segment.mStartTime >= mStartMarkerTime);
+        assertEquals("0", read(output));
+        assertFalse(new File(mFolder.getRoot(), "out-preroll.trace").exists());
+        assertPostRoll(segment);
+        verify(segment.mProfiler).terminate();
+    }
+
+    private void assertPostRoll(FakeSegment segment) {
+        assertTrue(mStopMarkerTime > 0);
+        assertTrue(segment.mStopTime - mStopMarkerTime >= TimeUnit.MILLISECONDS.toNanos(POST_ROLL_MILLIS));
+    }
+
+    private TriggeredCapture captureOf(File output, long preRollMillis) throws Exception {
+        IDevice device = mock(IDevice.class);
+        doAnswer(invocation -> {
+            replayLogcat(invocation.getArgument(1));
+            return null;
+        }).when(device).executeShellCommand(startsWith("logcat"), any(IShellOutputReceiver.class),
+                anyLong(), any());
+        PerfdConnection connection = mock(PerfdConnection.class);
+        when(connection.getDevice()).thenReturn(device);
+
+        return new TriggeredCapture(connection, "com.example.app", 0, output.getPath(),
+                LogcatTriggerTest.START_PATTERN, LogcatTriggerTest.STOP_PATTERN,
+                preRollMillis, POST_ROLL_MILLIS, 0) {
+            @Override
+            StudioProfilerHack startProfiling() {
+                FakeSegment segment = new FakeSegment(mSegments.size(), output);
+                mSegments.add(segment);
+                return segment.mProfiler;
+            }
+        };
+    }
+
+    /**
+     * Stream the recorded logcat in small chunks, with the markers delayed, until the receiver is cancelled
+     */
+    private void replayLogcat(IShellOutputReceiver receiver) throws InterruptedException {
+        String logcat = LogcatTriggerTest.RECORDED_LOGCAT;
+        int start = logcat.indexOf("I/Trace");
+        int stop = logcat.indexOf("I/Trace", start + 1);
+        feed(receiver, logcat.substring(0, start));
+        Thread.sleep(START_DELAY_MILLIS);
+        mStartMarkerTime = System.nanoTime();
+        feed(receiver, logcat.substring(start, stop));
+        Thread.sleep(STOP_DELAY_MILLIS);
+        mStopMarkerTime = System.nanoTime();
+        feed(receiver, logcat.substring(stop));
+        while (!receiver.isCancelled()) {
+            Thread.sleep(10);
+        }
+        receiver.flush();
+    }
+
+    private static void feed(IShellOutputReceiver receiver, String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        for (int offset = 0; offset < data.length; offset += 7) {
+            receiver.addOutput(data, offset, Math.min(7, data.length - offset));
+        }
+    }
+
+    private static String read(File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static class FakeSegment {
+        private final StudioProfilerHack mProfiler = mock(StudioProfilerHack.class);
+        private final long mStartTime = System.nanoTime();
+        private volatile long mStopTime;
+
+        FakeSegment(int number, File output) {
+            when(mProfiler.stopProfilingApp()).thenAnswer(invocation -> {
+                mStopTime = System.nanoTime();
+                Files.write(output.toPath(), String.valueOf(number).getBytes(StandardCharsets.UTF_8));
+                return true;
+            });
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import cn.nekocode.tracehelper.benchmark.TraceGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class CallTreeTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void parallelBuildEqualsSerialBuild() throws IOException {
+        File file = mFolder.newFile("out.trace");
+        new TraceGenerator(7).setMethodCount(2000).setThreadCount(24).generate(file, 4 << 20);
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try (TraceFile trace = TraceFile.open(file)) {
+            for (boolean threadClock : new boolean[]{false, true}) {
+                CallTree serial = CallTree.build(trace, threadClock);
+                CallTree parallel = CallTree.build(trace, threadClock, pool);
+                assertEquals(serial.size(), parallel.size());
+                assertEquals(weightsOf(serial), weightsOf(parallel));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void parallelBuildOfCompressedTrace() throws IOException {
+        File file = mFolder.newFile("out.trace");
+        File compressedFile = new File(mFolder.getRoot(), "out.trace" + BlockGzipWriter.EXTENSION);
+        new TraceGenerator(11).setMethodCount(2000).setThreadCount(32).generate(file, 2 << 20);
+
+        ForkJoinPool pool = new ForkJoinPool(3);
+        try (TraceFile trace = TraceFile.open(file)) {
+            BlockGzipWriter.write(trace, compressedFile, pool);
+            try (TraceFile compressed = TraceFile.open(compressedFile)) {
+                assertEquals(weightsOf(CallTree.build(trace, false)),
+                        weightsOf(CallTree.build(compressed, false, pool)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the weight of every stack of frames, which doesn't depend on the order of the nodes
+     */
+    private static Map<List<Integer>, Long> weightsOf(CallTree tree) {
+        Map<List<Integer>, Long> weights = new HashMap<>();
+        List<List<Integer>> stacks = new ArrayList<>(tree.size());
+        stacks.add(new ArrayList<>());
+        for (int node = 1; node < tree.size(); node++) {
+            List<Integer> stack = new ArrayList<>(stacks.get(tree.getParent(node)));
+            stack.add(tree.getFrame(node));
+            stacks.add(stack);
+            assertNull(weights.put(stack, tree.getWeight(node)));
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 nekocode
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.nekocode.tracehelper.trace;
+
+import cn.nekocode.tracehelper.benchmark.TraceGenerator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author nekocode (nekocode.cn@gmail.com)
+ */
+public class TraceArchiveTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+
+    @Test
+    public void restoresEveryRecord() throws IOException {
+        File file = mFolder.newFile("out.trace");
+        File archiveFile = new File(mFolder.getRoot(), "out" + TraceArchive.EXTENSION);
+        File restoredFile = new File(mFolder.getRoot(), "restored.trace");
+        long recordCount = new TraceGenerator(3).setMethodCount(2000).setThreadCount(12).generate(file, 4 << 20);
+
+        try (TraceFile trace = TraceFile.open(file)) {
+            TraceArchiveWriter.write(trace, archiveFile);
+            try (TraceArchive archive = TraceArchive.open(archiveFile)) {
+                assertEquals(recordCount, archive.getRecordCount());
+                assertEquals(statsOf(MethodSummary.build(trace, false).getTotal(), trace),
+                        statsOf(archive.readStats(), archive.getHeader()));
+                archive.restore(restoredFile);
+            }
+
+            try (TraceFile restored = TraceFile.open(restoredFile)) {
+                assertEquals(recordCount, restored.getRecordCount());
+                assertEquals(trace.getThreads(), restored.getThreads());
+                for (int i = 0; i < trace.getMethods().size(); i++) {
+                    assertEquals(trace.getMethods().get(i).getFullName(), restored.getMethods().get(i).getFullName());
+                }
+
+                RecordCursor expected = trace.records();
+                RecordCursor actual = restored.records();
+                while (expected.next()) {
+                    assertTrue(actual.next());
+                    String message = "record " + expected.index();
+                    assertEquals(message, expected.threadId(), actual.threadId());
+                    assertEquals(message, expected.methodValue(), actual.methodValue());
+                    assertEquals(message, expected.threadTime(), actual.threadTime());
+                    assertEquals(message, expected.wallTime(), actual.wallTime());
+                }
+                assertFalse(actual.next());
+            }
+        }
+    }
+
+    @Test
+    public void mergeOfArchivesEqualsMergeOfTraces() throws IOException {
+        List<File> traces = new ArrayList<>();
+        List<File> archives = new ArrayList<>();
+        // Two traces of the same methods and one of other methods
+        for (long seed : new long[]{5, 5, 9}) {
+            File file = mFolder.newFile("trace" + traces.size() + ".trace");
+            new TraceGenerator(seed).setMethodCount(1000).setThreadCount(6).generate(file, 1 << 20);
+            File archiveFile = new File(mFolder.getRoot(), "trace" + traces.size() + TraceArchive.EXTENSION);
+            try (TraceFile trace = TraceFile.open(file)) {
+                TraceArchiveWriter.write(trace, archiveFile);
+            }
+            traces.add(file);
+            archives.add(archiveFile);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            MergedProfile expected = MergedProfile.merge(traces, null, pool);
+            MergedProfile actual = MergedProfile.merge(archives, null, pool);
+            assertEquals(3, actual.getTraceCount());
+            assertEquals(expected.getRecordCount(), actual.getRecordCount());
+            assertEquals(weightsOf(expected), weightsOf(actual));
+            assertEquals(statsOf(expected), statsOf(actual));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * @return the inclusive time, the exclusive time and the calls by the full method name
+     */
+    private static Map<String, List<Long>> statsOf(MethodStats stats, TraceFile trace) {
+        Map<String, List<Long>> result = new HashMap<>();
+        for (int slot = 0; slot < stats.size(); slot++) {
+            result.put(trace.getMethods().get(stats.getMethodIndex(slot)).getFullName(), Arrays.asList(
+                    stats.getInclusiveTime(slot), stats.getExclusiveTime(slot), stats.getCalls(slot)));
+        }
+        return result;
+    }
+
+    private static Map<String, List<Long>> statsOf(MergedProfile profile) {
+        Map<String, List<Long>> result = new HashMap<>();
+        MethodStats stats = profile.getStats();
+        for (int slot = 0; slot < stats.size(); slot++) {
+            result.put(fullNameOf(profile, stats.getMethodIndex(slot)), Arrays.asList(
+                    stats.getInclusiveTime(slot), stats.getExclusiveTime(slot), stats.getCalls(slot)));
+        }
+        return result;
+    }
+
+    /**
+     * @return the weight of every stack of frame names, since the global ids depend on the order of merging
+     */
+    private static Map<List<String>, Long> weightsOf(MergedProfile profile) {
+        CallTree tree = profile.getTree();
+        Map<List<String>, Long> weights = new HashMap<>();
+        List<List<String>> stacks = new ArrayList<>(tree.size());
+        stacks.add(new ArrayList<>());
+        for (int node = 1; node < tree.size(); node++) {
+            int frame = tree.getFrame(node);
+            List<String> stack = new ArrayList<>(stacks.get(tree.getParent(node)));
+            stack.add(CallTree.isThreadFrame(frame) ? profile.frameName(frame) : fullNameOf(profile, frame));
+            stacks.add(stack);
+            // The archives may have the stacks of the records which aren't walked, without weight
+            if (tree.getWeight(node) != 0) {
+                assertNull(weights.put(stack, tree.getWeight(node)));
+            }
+        }
+        return weights;
+    }
+
+    private static String fullNameOf(MergedProfile profile, int methodId) {
+        return profile.getMethodName(methodId) + " " + profile.getMethodSignature(methodId);
+    }
+}